@@ -0,0 +1,421 @@
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.*;
+import javax.imageio.ImageIO;
+
+/**
+ * Headless batch mode: runs an ordered pipeline of Demo operations over a set of image files.
+ * <p>
+ * Usage: java Demo --batch [--workers N] [--parallelism N] [--format png] [--raw WxH,...] [--tiled | --stream]
+ * [--blobs 4|8] input ops outdir
+ * <ul>
+ * <li>input is a directory (every readable image in it) or a glob such as images/*.png</li>
+ * <li>.raw inputs are read with the --raw layout (see RawImageReader.Format), or as 8-bit
+ *     gray with the size guessed from the file size</li>
+ * <li>ops is a comma separated list of steps name[:param], e.g. median:5,equalise,threshold:auto
+ *     (see Demo.NAMED_OPS)</li>
+ * <li>outdir receives one file per input, with the same base name and the output format</li>
+ * <li>with --blobs, the white (gray >= 128) components of each output are labelled with that
+ *     connectivity and outdir also receives base.csv with the area, bounding box and centroid
+ *     of every component (see ConnectedComponents); the count is printed with the file</li>
+ * </ul>
+ * Files are processed by a fixed pool of workers, so at most N images are in memory at once.
+ * Each operation still runs its row bands on the shared RowBands pool. A line is printed for
+ * every finished file and a summary with the aggregate throughput at the end.
+ * <p>
+ * Each file's pipeline is an ImageExpr, so consecutive point operations (negative, rescale,
+ * shift, log, power, random-lut, bitplane, threshold with a fixed value) are composed into one
+ * look-up table, and gray filters after them read the gray plane without an intermediate image.
+ * <p>
+ * With --tiled each image is held in a TiledImage instead and the pipeline runs one tile at a
+ * time, with a halo as wide as the sum of the steps' neighbourhoods (Demo.haloOf), so images
+ * larger than the heap can be processed. .raw inputs are then read strip by strip; other
+ * formats are still decoded whole by ImageIO before being tiled.
+ * <p>
+ * With --stream bands of demo.streamRows rows (default 256) are read from the decoder, pushed
+ * through the pipeline with the same halo and pulled by the encoder as it writes (see
+ * StreamingPipeline), so memory grows with the width only. That holds for .raw and TIFF
+ * inputs; decoders that cannot start at a row (PNG, JPEG, ...) decode the whole image once,
+ * and a warning says so.
+ * <p>
+ * Steps that need the whole image (equalise, threshold:auto, ...) are rejected in both modes,
+ * and so is --blobs.
+ */
+final class BatchRunner {
+    private static final int STREAM_ROWS = Integer.getInteger("demo.streamRows", 256);
+
+    private static final String USAGE =
+            "Usage: java Demo --batch [--workers N] [--parallelism N] [--format png] [--raw WxH,...] [--tiled | --stream]\n"
+            + "       [--blobs 4|8]\n"
+            + "       <input dir or glob> <ops> <output dir>\n"
+            + "  ops: comma separated steps name[:param], e.g. median:5,equalise,threshold:auto\n"
+            + "  raw: WxH[,bits][,le|be][,gray|rgb][,planar][,offset=N][,stride=N], e.g. 4000x3000,12,le,rgb\n"
+            + "  operations: " + String.join(", ", Demo.NAMED_OPS);
+
+    // One step of the pipeline.
+    private static final class Step {
+        final String name;
+        final String arg;
+
+        Step(String name, String arg) {
+            this.name = name;
+            this.arg = arg;
+        }
+
+        @Override
+        public String toString() {
+            return (arg == null) ? name : name + ":" + arg;
+        }
+    }
+
+    // Outcome of one file.
+    private static final class Result {
+        final Path file;
+        final long pixels;
+        final long nanos;
+        final int components;    // with --blobs, otherwise -1
+
+        Result(Path file, long pixels, long nanos) {
+            this(file, pixels, nanos, -1);
+        }
+
+        Result(Path file, long pixels, long nanos, int components) {
+            this.file = file;
+            this.pixels = pixels;
+            this.nanos = nanos;
+            this.components = components;
+        }
+    }
+
+    private BatchRunner() {
+    }
+
+    /**
+     * Runs the batch described by the command line arguments (without the leading --batch).
+     *
+     * @return the process exit code: 0 if every file was written, 1 if some failed, 2 on bad usage
+     */
+    static int run(String[] args) {
+        int workers = Math.min(4, Runtime.getRuntime().availableProcessors());
+        String format = "png";
+        RawImageReader.Format raw = null;
+        boolean tiled = false, stream = false;
+        int blobs = 0;
+        List<String> positional = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--workers":
+                        workers = Integer.parseInt(args[++i]);
+                        break;
+                    case "--parallelism":
+                        RowBands.setParallelism(Integer.parseInt(args[++i]));
+                        break;
+                    case "--format":
+                        format = args[++i];
+                        break;
+                    case "--raw":
+                        raw = RawImageReader.Format.parse(args[++i]);
+                        break;
+                    case "--tiled":
+                        tiled = true;
+                        break;
+                    case "--stream":
+                        stream = true;
+                        break;
+                    case "--blobs":
+                        blobs = Demo.connectivity(args[++i]);
+                        break;
+                    default:
+                        positional.add(args[i]);
+                }
+            }
+            if (tiled && stream) {
+                throw new IllegalArgumentException("Use either --tiled or --stream.");
+            }
+            if (blobs != 0 && (tiled || stream)) {
+                throw new IllegalArgumentException("--blobs needs the whole image and cannot be used with --tiled or --stream.");
+            }
+            if (positional.size() != 3 || workers < 1) {
+                throw new IllegalArgumentException("Expected an input, a list of operations and an output directory.");
+            }
+            if (!ImageIO.getImageWritersByFormatName(format).hasNext()) {
+                throw new IllegalArgumentException("No image writer for format " + format);
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage() + "\n" + USAGE);
+            return 2;
+        }
+
+        Demo demo = new Demo();
+        List<Step> steps;
+        int halo = 0;
+        List<Path> files;
+        Path outDir = Paths.get(positional.get(2));
+        Map<Path, Path> outputs;
+        try {
+            steps = parseSteps(demo, positional.get(1));
+            if (tiled || stream) {
+                halo = localHalo(steps);
+            }
+            files = listInputs(positional.get(0));
+            outputs = outputNames(files, outDir, format);
+            Files.createDirectories(outDir);
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage() + "\n" + USAGE);
+            return 2;
+        }
+        if (files.isEmpty()) {
+            System.err.println("No input images match " + positional.get(0));
+            return 2;
+        }
+        System.out.println("Processing " + files.size() + " file(s) with " + workers + " worker(s): "
+                + pipeline(demo, steps, new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB)));
+
+        // Set by the first --stream input that had to be decoded whole, which prints a warning.
+        AtomicBoolean decodedWhole = new AtomicBoolean();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        CompletionService<Result> done = new ExecutorCompletionService<>(pool);
+        Map<Future<Result>, Path> pending = new HashMap<>();
+        long start = System.nanoTime();
+        for (Path file : files) {
+            String fmt = format;
+            RawImageReader.Format rawFormat = raw;
+            Path out = outputs.get(file);
+            int h = halo, connectivity = blobs;
+            Callable<Result> task = tiled ? () -> processTiled(demo, steps, h, file, rawFormat, out, fmt)
+                    : stream ? () -> processStreamed(demo, steps, h, file, rawFormat, out, fmt, decodedWhole)
+                    : () -> process(demo, steps, file, rawFormat, out, fmt, connectivity);
+            pending.put(done.submit(task), file);
+        }
+        int failed = 0;
+        long totalPixels = 0;
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                Future<Result> f = done.take();
+                try {
+                    Result r = f.get();
+                    totalPixels += r.pixels;
+                    System.out.printf("%-40s %8.2f MPix %8.1f ms %8.2f MPix/s%s%n", r.file.getFileName(),
+                            r.pixels / 1e6, r.nanos / 1e6, r.pixels / 1e6 / (r.nanos / 1e9),
+                            (r.components >= 0) ? String.format(" %8d blobs", r.components) : "");
+                } catch (ExecutionException e) {
+                    failed++;
+                    Throwable cause = e.getCause();
+                    System.err.println(pending.get(f).getFileName() + ": FAILED " + cause);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed = files.size();
+        } finally {
+            pool.shutdownNow();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d file(s) written, %d failed, %.2f MPix in %.2f s: %.2f MPix/s, %.2f files/s%n",
+                files.size() - failed, failed, totalPixels / 1e6, seconds,
+                totalPixels / 1e6 / seconds, (files.size() - failed) / seconds);
+        return (failed == 0) ? 0 : 1;
+    }
+
+    // Parse "name[:param],..." and reject bad names or parameters before any file is read,
+    // by running the pipeline once on a 1x1 image.
+    private static List<Step> parseSteps(Demo demo, String spec) {
+        List<Step> steps = new ArrayList<>();
+        for (String s : spec.split(",")) {
+            s = s.trim();
+            if (s.isEmpty()) {
+                continue;
+            }
+            int colon = s.indexOf(':');
+            steps.add((colon < 0) ? new Step(s, null) : new Step(s.substring(0, colon), s.substring(colon + 1)));
+        }
+        if (steps.isEmpty()) {
+            throw new IllegalArgumentException("No operations given.");
+        }
+        BufferedImage probe = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        for (Step step : steps) {
+            try {
+                probe = demo.applyNamed(probe, step.name, step.arg);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Bad step " + step + ": " + e.getMessage(), e);
+            }
+        }
+        return steps;
+    }
+
+    // Halo needed to run the whole pipeline on tiles or bands: the neighbourhoods of the steps add up.
+    private static int localHalo(List<Step> steps) {
+        int halo = 0;
+        for (Step step : steps) {
+            int h = Demo.haloOf(step.name, step.arg);
+            if (h < 0) {
+                throw new IllegalArgumentException("Step " + step + " needs the whole image and cannot be used with --tiled or --stream.");
+            }
+            halo += h;
+        }
+        return halo;
+    }
+
+    // The expression for one image.
+    private static ImageExpr pipeline(Demo demo, List<Step> steps, BufferedImage img) {
+        ImageExpr e = ImageExpr.source(demo, img);
+        for (Step step : steps) {
+            e = e.then(step.name, step.arg);
+        }
+        return e;
+    }
+
+    // Files named by a directory or a glob (e.g. "images/*.png", "scans/**/*.tif"), sorted.
+    private static List<Path> listInputs(String input) throws IOException {
+        Path dir = Paths.get(input);
+        if (Files.isDirectory(dir)) {
+            Set<String> suffixes = new HashSet<>(Arrays.asList(ImageIO.getReaderFileSuffixes()));
+            suffixes.add("raw");
+            try (Stream<Path> s = Files.list(dir)) {
+                return s.filter(Files::isRegularFile)
+                        .filter(p -> suffixes.contains(suffix(p)))
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+        }
+        // The base directory is everything before the first path element that contains a wildcard.
+        int wildcard = indexOfAny(input, "*?[{");
+        if (wildcard < 0) {
+            return Files.isRegularFile(dir) ? Collections.singletonList(dir) : Collections.emptyList();
+        }
+        int slash = input.lastIndexOf('/', wildcard);
+        Path base = Paths.get(slash < 0 ? "." : input.substring(0, slash + 1));
+        String pattern = input.substring(slash + 1);
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        int depth = pattern.contains("**") ? Integer.MAX_VALUE : pattern.split("/").length;
+        if (!Files.isDirectory(base)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> s = Files.walk(base, depth)) {
+            return s.filter(Files::isRegularFile)
+                    .filter(p -> matcher.matches(base.relativize(p)))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    // Output file for every input: the base name with the output format's extension, or the
+    // full input name plus that extension where two inputs share a base name (a.bmp, a.tif).
+    private static Map<Path, Path> outputNames(List<Path> files, Path outDir, String format) {
+        Map<String, Integer> bases = new HashMap<>();
+        for (Path file : files) {
+            bases.merge(baseName(file), 1, Integer::sum);
+        }
+        Map<Path, Path> outputs = new HashMap<>();
+        Map<Path, Path> taken = new HashMap<>();
+        for (Path file : files) {
+            String base = baseName(file);
+            String name = (bases.get(base) > 1) ? file.getFileName().toString() : base;
+            Path out = outDir.resolve(name + "." + format);
+            Path other = taken.put(out, file);
+            if (other != null) {
+                throw new IllegalArgumentException("Inputs " + other + " and " + file + " would both be written to " + out);
+            }
+            outputs.put(file, out);
+        }
+        return outputs;
+    }
+
+    // Read, run every step and write one file (and with connectivity 4 or 8, the blob
+    // statistics next to it). The time covers all of it.
+    private static Result process(Demo demo, List<Step> steps, Path file, RawImageReader.Format raw,
+                                  Path out, String format, int connectivity) throws IOException {
+        long t0 = System.nanoTime();
+        BufferedImage img;
+        if (suffix(file).equals("raw")) {
+            img = RawImageReader.read(file, (raw != null) ? raw : RawImageReader.Format.guess(Files.size(file)));
+        } else {
+            img = ImageIO.read(file.toFile());
+            if (img == null) {
+                throw new IOException("Unsupported image format");
+            }
+            img = PixelBuffer.wrap(img).image();
+        }
+        long pixels = (long) img.getWidth() * img.getHeight();
+        img = pipeline(demo, steps, img).image();
+        if (!ImageIO.write(img, format, out.toFile())) {
+            throw new IOException("No image writer for format " + format);
+        }
+        if (connectivity == 0) {
+            return new Result(file, pixels, System.nanoTime() - t0);
+        }
+        ConnectedComponents cc = demo.labelComponents(img, connectivity == 8);
+        cc.writeCsv(out.resolveSibling(baseName(out) + ".csv"));
+        return new Result(file, pixels, System.nanoTime() - t0, cc.count);
+    }
+
+    // Like process, but the image is held in tiles and the pipeline runs one tile at a time.
+    private static Result processTiled(Demo demo, List<Step> steps, int halo, Path file, RawImageReader.Format raw,
+                                       Path out, String format) throws IOException {
+        long t0 = System.nanoTime();
+        TiledImage src;
+        if (suffix(file).equals("raw")) {
+            try (RawImageReader reader = new RawImageReader(file, (raw != null) ? raw : RawImageReader.Format.guess(Files.size(file)))) {
+                src = TiledImage.of(reader);
+            }
+        } else {
+            BufferedImage img = ImageIO.read(file.toFile());
+            if (img == null) {
+                throw new IOException("Unsupported image format");
+            }
+            src = TiledImage.of(img);
+        }
+        long pixels = (long) src.width * src.height;
+        try (TiledImage in = src; TiledImage result = in.map(img -> pipeline(demo, steps, img).image(), halo)) {
+            if (!ImageIO.write(result.asRenderedImage(), format, out.toFile())) {
+                throw new IOException("No image writer for format " + format);
+            }
+        }
+        return new Result(file, pixels, System.nanoTime() - t0);
+    }
+
+    // Like process, but the image flows from decoder to encoder in bands of rows.
+    private static Result processStreamed(Demo demo, List<Step> steps, int halo, Path file, RawImageReader.Format raw,
+                                          Path out, String format, AtomicBoolean decodedWhole) throws IOException {
+        long t0 = System.nanoTime();
+        long pixels;
+        try (StreamingPipeline.Source src = StreamingPipeline.open(file, raw)) {
+            pixels = (long) src.width() * src.height();
+            if (src.decodesWhole() && !decodedWhole.getAndSet(true)) {
+                System.err.println("Warning: " + file.getFileName() + " is in a format that cannot be read by rows; "
+                        + "with --stream such inputs are decoded whole (only .raw and TIFF inputs are streamed).");
+            }
+            StreamingPipeline p = new StreamingPipeline(src, img -> pipeline(demo, steps, img).image(), halo, STREAM_ROWS);
+            if (!ImageIO.write(p.asRenderedImage(), format, out.toFile())) {
+                throw new IOException("No image writer for format " + format);
+            }
+        }
+        return new Result(file, pixels, System.nanoTime() - t0);
+    }
+
+    private static String baseName(Path p) {
+        String name = p.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return (dot > 0) ? name.substring(0, dot) : name;
+    }
+
+    private static String suffix(Path p) {
+        String name = p.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return (dot < 0) ? "" : name.substring(dot + 1).toLowerCase();
+    }
+
+    private static int indexOfAny(String s, String chars) {
+        for (int i = 0; i < s.length(); i++) {
+            if (chars.indexOf(s.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
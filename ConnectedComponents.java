@@ -0,0 +1,325 @@
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Connected-component labelling of a thresholded image, with the area, bounding box and
+ * centroid of every component.
+ * <p>
+ * Foreground pixels are those with a gray value of at least 128; they are connected through
+ * their 4 or 8 neighbours. Labelling is the classic two passes with union-find, run in
+ * parallel on strips:
+ * <ul>
+ * <li>every row band labels its strip on its own, giving each pixel a provisional label and
+ * merging labels that meet in a band-local union-find. The statistics of each provisional
+ * label are accumulated in the same pass;</li>
+ * <li>the bands' label ranges are concatenated into one union-find, and the labels that touch
+ * across each band border are merged (one row per border);</li>
+ * <li>every provisional label is resolved to its final label, the statistics are added up
+ * per final label and the label plane is rewritten, again in parallel.</li>
+ * </ul>
+ * The union-find keeps the smallest label of each set as its root, so components are numbered
+ * 1..count in the raster order of their first pixel, whatever the number of bands. The
+ * equivalence tables and statistics are primitive arrays grown by doubling, so images with
+ * millions of components do not allocate an object per component.
+ */
+final class ConnectedComponents {
+    final int width;
+    final int height;
+    // Final label of every pixel, row-major: 0 for the background, 1..count for the components.
+    final int[] labels;
+    final int count;
+    // Statistics of component c at index c (index 0 is unused).
+    private final int[] area, minX, minY, maxX, maxY;
+    private final long[] sumX, sumY;
+
+    private ConnectedComponents(int width, int height, int[] labels, int count) {
+        this.width = width;
+        this.height = height;
+        this.labels = labels;
+        this.count = count;
+        this.area = new int[count + 1];
+        this.minX = new int[count + 1];
+        this.minY = new int[count + 1];
+        this.maxX = new int[count + 1];
+        this.maxY = new int[count + 1];
+        this.sumX = new long[count + 1];
+        this.sumY = new long[count + 1];
+        Arrays.fill(minX, Integer.MAX_VALUE);
+        Arrays.fill(minY, Integer.MAX_VALUE);
+        Arrays.fill(maxX, -1);
+        Arrays.fill(maxY, -1);
+    }
+
+    /**
+     * Label the foreground of a flat, row-major gray plane.
+     *
+     * @param eight 8-connectivity if true (diagonal neighbours connect), 4 otherwise
+     */
+    static ConnectedComponents label(int[] gray, int width, int height, boolean eight) {
+        int[] labels = new int[width * height];
+        int bands = RowBands.count(height);
+        Strip[] strips = new Strip[bands];
+        RowBands.forBands(bands, height, (band, y0, y1) -> {
+            Strip s = new Strip(y0, y1);
+            s.label(gray, labels, width, eight);
+            strips[band] = s;
+        });
+
+        // One union-find over all provisional labels: strip b's label l becomes offset[b] + l.
+        int[] offset = new int[strips.length];
+        int total = 0;
+        for (int b = 0; b < strips.length; b++) {
+            offset[b] = total;
+            total += strips[b].count;
+        }
+        int[] parent = new int[total + 1];
+        for (int b = 0; b < strips.length; b++) {
+            Strip s = strips[b];
+            for (int l = 1; l <= s.count; l++) {
+                parent[offset[b] + l] = offset[b] + s.find(l);
+            }
+        }
+        // Merge across the band borders: the first row of a band against the last of the previous one.
+        for (int b = 1; b < strips.length; b++) {
+            int y = strips[b].y0;
+            if (y == 0 || y >= height) {
+                continue;
+            }
+            int row = y * width, above = row - width;
+            for (int x = 0; x < width; x++) {
+                int l = labels[row + x];
+                if (l == 0) {
+                    continue;
+                }
+                int a = offset[b] + l;
+                int x0 = eight ? Math.max(0, x - 1) : x, x1 = eight ? Math.min(width - 1, x + 1) : x;
+                for (int nx = x0; nx <= x1; nx++) {
+                    int n = labels[above + nx];
+                    if (n != 0) {
+                        union(parent, a, offset[b - 1] + n);
+                    }
+                }
+            }
+        }
+        // Final labels: roots are the smallest label of their set, so they come first.
+        int[] resolved = new int[total + 1];
+        int count = 0;
+        for (int l = 1; l <= total; l++) {
+            int r = find(parent, l);
+            resolved[l] = (r == l) ? ++count : resolved[r];
+        }
+
+        ConnectedComponents cc = new ConnectedComponents(width, height, labels, count);
+        for (int b = 0; b < strips.length; b++) {
+            Strip s = strips[b];
+            for (int l = 1; l <= s.count; l++) {
+                int c = resolved[offset[b] + l];
+                cc.area[c] += s.area[l];
+                cc.sumX[c] += s.sumX[l];
+                cc.sumY[c] += s.sumY[l];
+                cc.minX[c] = Math.min(cc.minX[c], s.minX[l]);
+                cc.minY[c] = Math.min(cc.minY[c], s.minY[l]);
+                cc.maxX[c] = Math.max(cc.maxX[c], s.maxX[l]);
+                cc.maxY[c] = Math.max(cc.maxY[c], s.maxY[l]);
+            }
+        }
+        int[] starts = new int[strips.length];
+        for (int b = 0; b < strips.length; b++) {
+            starts[b] = strips[b].y0;
+        }
+        RowBands.forEach(height, (band, y0, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                // The strip that labelled this row.
+                int b = Arrays.binarySearch(starts, y);
+                if (b < 0) {
+                    b = -b - 2;
+                }
+                while (b + 1 < starts.length && starts[b + 1] == y) {
+                    b++;
+                }
+                int off = offset[b];
+                for (int i = y * width; i < (y + 1) * width; i++) {
+                    if (labels[i] != 0) {
+                        labels[i] = resolved[off + labels[i]];
+                    }
+                }
+            }
+        });
+        return cc;
+    }
+
+    // Root of l, halving the path on the way.
+    private static int find(int[] parent, int l) {
+        while (parent[l] != l) {
+            parent[l] = parent[parent[l]];
+            l = parent[l];
+        }
+        return l;
+    }
+
+    // Merge the sets of a and b under the smaller root.
+    private static void union(int[] parent, int a, int b) {
+        int ra = find(parent, a), rb = find(parent, b);
+        if (ra < rb) {
+            parent[rb] = ra;
+        } else if (rb < ra) {
+            parent[ra] = rb;
+        }
+    }
+
+    // ------------------- Band pass -------------------
+
+    // Provisional labels 1..count of one strip of rows [y0, y1), with their union-find and statistics.
+    private static final class Strip {
+        final int y0, y1;
+        int count;
+        int[] parent = new int[64];
+        int[] area = new int[64], minX = new int[64], minY = new int[64], maxX = new int[64], maxY = new int[64];
+        long[] sumX = new long[64], sumY = new long[64];
+
+        Strip(int y0, int y1) {
+            this.y0 = y0;
+            this.y1 = y1;
+        }
+
+        void label(int[] gray, int[] labels, int width, boolean eight) {
+            for (int y = y0; y < y1; y++) {
+                int row = y * width, above = row - width;
+                boolean first = y == y0;
+                for (int x = 0; x < width; x++) {
+                    int i = row + x;
+                    if (gray[i] < 128) {
+                        continue;
+                    }
+                    // Neighbours already labelled: west, and north-west, north, north-east
+                    // within the strip.
+                    int l = (x > 0) ? labels[i - 1] : 0;
+                    if (!first) {
+                        l = merge(l, labels[above + x]);
+                        if (eight) {
+                            if (x > 0) {
+                                l = merge(l, labels[above + x - 1]);
+                            }
+                            if (x + 1 < width) {
+                                l = merge(l, labels[above + x + 1]);
+                            }
+                        }
+                    }
+                    if (l == 0) {
+                        l = newLabel(x, y);
+                    }
+                    labels[i] = l;
+                    area[l]++;
+                    sumX[l] += x;
+                    sumY[l] += y;
+                    minX[l] = Math.min(minX[l], x);
+                    maxX[l] = Math.max(maxX[l], x);
+                    minY[l] = Math.min(minY[l], y);
+                    maxY[l] = Math.max(maxY[l], y);
+                }
+            }
+        }
+
+        // The label a pixel takes from a labelled neighbour n, merging it with l if both are set.
+        private int merge(int l, int n) {
+            if (n == 0 || n == l) {
+                return l;
+            }
+            if (l == 0) {
+                return n;
+            }
+            union(parent, l, n);
+            return l;
+        }
+
+        private int newLabel(int x, int y) {
+            int l = ++count;
+            if (l == parent.length) {
+                int n = 2 * l;
+                parent = Arrays.copyOf(parent, n);
+                area = Arrays.copyOf(area, n);
+                minX = Arrays.copyOf(minX, n);
+                minY = Arrays.copyOf(minY, n);
+                maxX = Arrays.copyOf(maxX, n);
+                maxY = Arrays.copyOf(maxY, n);
+                sumX = Arrays.copyOf(sumX, n);
+                sumY = Arrays.copyOf(sumY, n);
+            }
+            parent[l] = l;
+            minX[l] = minY[l] = Integer.MAX_VALUE;
+            maxX[l] = maxY[l] = -1;
+            return l;
+        }
+
+        int find(int l) {
+            return ConnectedComponents.find(parent, l);
+        }
+    }
+
+    // ------------------- Results -------------------
+
+    // Number of pixels of component c (1..count).
+    int area(int c) {
+        return area[c];
+    }
+
+    // Bounding box of component c.
+    Rectangle bounds(int c) {
+        return new Rectangle(minX[c], minY[c], maxX[c] - minX[c] + 1, maxY[c] - minY[c] + 1);
+    }
+
+    double centroidX(int c) {
+        return (double) sumX[c] / area[c];
+    }
+
+    double centroidY(int c) {
+        return (double) sumY[c] / area[c];
+    }
+
+    // Area of the largest component (0 if there are none).
+    int largestArea() {
+        int max = 0;
+        for (int c = 1; c <= count; c++) {
+            max = Math.max(max, area[c]);
+        }
+        return max;
+    }
+
+    /**
+     * The labels as a colour image: black background and one colour per component, spread
+     * around the hue circle so that neighbouring labels differ.
+     */
+    BufferedImage toImage() {
+        int[] colour = new int[count + 1];
+        for (int c = 1; c <= count; c++) {
+            colour[c] = Color.HSBtoRGB((float) ((c * 0.618033988749895) % 1.0), 0.8f, 0.95f) & 0xffffff;
+        }
+        PixelBuffer dst = PixelBuffer.create(width, height);
+        RowBands.forEach(height, (band, y0, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                int di = dst.row(y);
+                for (int x = 0; x < width; x++) {
+                    dst.data[di + x] = colour[labels[y * width + x]];
+                }
+            }
+        });
+        return dst.image();
+    }
+
+    // One line per component: id, area, bounding box (x, y, width, height) and centroid.
+    void writeCsv(Path file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("id,area,x,y,width,height,centroid_x,centroid_y");
+            for (int c = 1; c <= count; c++) {
+                out.printf(java.util.Locale.ROOT, "%d,%d,%d,%d,%d,%d,%.2f,%.2f%n", c, area[c], minX[c], minY[c],
+                           maxX[c] - minX[c] + 1, maxY[c] - minY[c] + 1, centroidX(c), centroidY(c));
+            }
+        }
+    }
+}
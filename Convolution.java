@@ -0,0 +1,316 @@
+/**
+ * Spatial convolution kernels on planar, row-major channels, used by Demo.applyConvolution.
+ * <p>
+ * As in the original implementation, the kernel is applied as a correlation (kernel[0][0]
+ * touches the top-left neighbour) and pixels outside the image contribute nothing (zero
+ * padding). Every method writes only the output rows [y0, y1), so callers can run
+ * disjoint row bands in parallel.
+ */
+final class Convolution {
+    // Relative tolerance for treating a kernel as an outer product.
+    private static final float RANK1_EPSILON = 1e-6f;
+
+    private Convolution() {
+    }
+
+    /**
+     * Factor a kernel into a column vector and a row vector such that
+     * kernel[m][n] == col[m] * row[n], or return null if the kernel is not rank-1.
+     * The factors are taken from the row and column through the largest coefficient.
+     *
+     * @param kernel the kernel to factor
+     * @return {col, row}, or null if the kernel does not separate
+     */
+    static float[][] separate(float[][] kernel) {
+        int kRows = kernel.length;
+        int kCols = kernel[0].length;
+        int pr = 0, pc = 0;
+        float max = 0;
+        for (int m = 0; m < kRows; m++) {
+            for (int n = 0; n < kCols; n++) {
+                if (Math.abs(kernel[m][n]) > max) {
+                    max = Math.abs(kernel[m][n]);
+                    pr = m;
+                    pc = n;
+                }
+            }
+        }
+        if (max == 0 || (kRows == 1 && kCols == 1)) {
+            return null;
+        }
+        float pivot = kernel[pr][pc];
+        float[] col = new float[kRows];
+        float[] row = new float[kCols];
+        for (int m = 0; m < kRows; m++) {
+            col[m] = kernel[m][pc];
+        }
+        for (int n = 0; n < kCols; n++) {
+            row[n] = kernel[pr][n] / pivot;
+        }
+        for (int m = 0; m < kRows; m++) {
+            for (int n = 0; n < kCols; n++) {
+                if (Math.abs(kernel[m][n] - col[m] * row[n]) > RANK1_EPSILON * max) {
+                    return null;
+                }
+            }
+        }
+        return new float[][] {col, row};
+    }
+
+    /**
+     * The coefficient of a box kernel (square, odd-sized, every coefficient equal), or NaN
+     * for any other kernel. Box kernels can be applied through integral images.
+     */
+    static float uniformTap(float[][] kernel) {
+        int size = kernel.length;
+        if (size % 2 == 0 || size == 1) {
+            return Float.NaN;
+        }
+        float tap = kernel[0][0];
+        for (float[] row : kernel) {
+            if (row.length != size) {
+                return Float.NaN;
+            }
+            for (float k : row) {
+                if (k != tap) {
+                    return Float.NaN;
+                }
+            }
+        }
+        return (tap != 0) ? tap : Float.NaN;
+    }
+
+    /**
+     * Full 2D correlation of rows [y0, y1). As in rowPass, each row is split into a left
+     * border, an interior where the whole kernel lies inside the image and a right border;
+     * the interior loop has no bounds checks, and rows near the top and bottom are border
+     * pixels throughout. The summation order is the same in both loops.
+     */
+    static void convolve2D(int[] in, float[] out, int width, int height, float[][] kernel, int y0, int y1) {
+        int kRows = kernel.length;
+        int kCols = kernel[0].length;
+        int kCenterX = kCols / 2;
+        int kCenterY = kRows / 2;
+        // Interior: kernel fully inside the image.
+        int xLo = Math.min(kCenterX, width), xHi = Math.max(xLo, width - (kCols - kCenterX) + 1);
+        int yLo = kCenterY, yHi = height - (kRows - kCenterY) + 1;
+        for (int y = y0; y < y1; y++) {
+            int r = y * width;
+            if (y < yLo || y >= yHi) {
+                for (int x = 0; x < width; x++) {
+                    out[r + x] = border2D(in, width, height, kernel, x, y);
+                }
+                continue;
+            }
+            for (int x = 0; x < xLo; x++) {
+                out[r + x] = border2D(in, width, height, kernel, x, y);
+            }
+            int top = (y - kCenterY) * width - kCenterX;
+            for (int x = xLo; x < xHi; x++) {
+                float sum = 0;
+                for (int m = 0; m < kRows; m++) {
+                    float[] k = kernel[m];
+                    int i = top + m * width + x;
+                    for (int n = 0; n < kCols; n++) {
+                        sum += k[n] * in[i + n];
+                    }
+                }
+                out[r + x] = sum;
+            }
+            for (int x = xHi; x < width; x++) {
+                out[r + x] = border2D(in, width, height, kernel, x, y);
+            }
+        }
+    }
+
+    // One output pixel of convolve2D, skipping the taps that fall outside the image.
+    private static float border2D(int[] in, int width, int height, float[][] kernel, int x, int y) {
+        int kCenterX = kernel[0].length / 2, kCenterY = kernel.length / 2;
+        float sum = 0;
+        for (int m = 0; m < kernel.length; m++) {
+            int iy = y + m - kCenterY;
+            if (iy < 0 || iy >= height) {
+                continue;
+            }
+            for (int n = 0; n < kernel[m].length; n++) {
+                int ix = x + n - kCenterX;
+                if (ix >= 0 && ix < width) {
+                    sum += kernel[m][n] * in[iy * width + ix];
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Horizontal 1D pass of a separable kernel over rows [y0, y1): out[y][x] = sum row[n] * in[y][x + n - c].
+     */
+    static void rowPass(int[] in, float[] out, int width, float[] row, int y0, int y1) {
+        int k = row.length, c = k / 2;
+        int xLo = Math.min(c, width), xHi = Math.max(xLo, width - (k - c) + 1);
+        for (int y = y0; y < y1; y++) {
+            int r = y * width;
+            for (int x = 0; x < xLo; x++) {
+                out[r + x] = rowBorder(in, r, width, row, x);
+            }
+            for (int x = xLo; x < xHi; x++) {
+                float sum = 0;
+                int i = r + x - c;
+                for (int n = 0; n < k; n++) {
+                    sum += row[n] * in[i + n];
+                }
+                out[r + x] = sum;
+            }
+            for (int x = xHi; x < width; x++) {
+                out[r + x] = rowBorder(in, r, width, row, x);
+            }
+        }
+    }
+
+    private static float rowBorder(int[] in, int r, int width, float[] row, int x) {
+        int c = row.length / 2;
+        float sum = 0;
+        for (int n = 0; n < row.length; n++) {
+            int ix = x + n - c;
+            if (ix >= 0 && ix < width) {
+                sum += row[n] * in[r + ix];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Vertical 1D pass of a separable kernel over rows [y0, y1): out[y][x] = sum col[m] * in[y + m - c][x].
+     * The input rows y0 - c .. y1 + c (clipped to the image) must already be available.
+     */
+    static void columnPass(float[] in, float[] out, int width, int height, float[] col, int y0, int y1) {
+        int k = col.length, c = k / 2;
+        for (int y = y0; y < y1; y++) {
+            // Border handling is per row: only the taps that fall inside the image are visited.
+            int mLo = Math.max(0, c - y), mHi = Math.min(k, height - y + c);
+            int r = y * width;
+            for (int x = 0; x < width; x++) {
+                out[r + x] = 0;
+            }
+            for (int m = mLo; m < mHi; m++) {
+                float w = col[m];
+                int s = (y + m - c) * width;
+                for (int x = 0; x < width; x++) {
+                    out[r + x] += w * in[s + x];
+                }
+            }
+        }
+    }
+
+    // ------------------- Gaussian blur -------------------
+    // Unlike applyConvolution, the blur helpers average only the pixels inside the image,
+    // so large blurs do not darken the borders.
+
+    /**
+     * Sampled, normalised 1D Gaussian with radius ceil(3 * sigma).
+     */
+    static float[] gaussianKernel(double sigma) {
+        int radius = Math.max(1, (int) Math.ceil(3 * sigma));
+        float[] k = new float[2 * radius + 1];
+        double sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            sum += Math.exp(-i * i / (2 * sigma * sigma));
+        }
+        for (int i = -radius; i <= radius; i++) {
+            k[i + radius] = (float) (Math.exp(-i * i / (2 * sigma * sigma)) / sum);
+        }
+        return k;
+    }
+
+    /**
+     * Widths of n successive box filters whose combined variance is closest to sigma^2
+     * (all widths are odd and differ by at most 2).
+     */
+    static int[] boxSizes(double sigma, int n) {
+        double ideal = Math.sqrt(12 * sigma * sigma / n + 1);
+        int wl = (int) Math.floor(ideal);
+        if (wl % 2 == 0) {
+            wl--;
+        }
+        int wu = wl + 2;
+        int m = (int) Math.round((12 * sigma * sigma - n * wl * wl - 4 * n * wl - 3 * n) / (-4.0 * wl - 4));
+        int[] sizes = new int[n];
+        for (int i = 0; i < n; i++) {
+            sizes[i] = i < m ? wl : wu;
+        }
+        return sizes;
+    }
+
+    /**
+     * Sum of the taps of a centred 1D kernel that fall inside [0, length) for each position.
+     * Dividing a zero-padded result by this weight keeps the borders from darkening.
+     */
+    static float[] borderWeights(float[] k, int length) {
+        int c = k.length / 2;
+        float[] w = new float[length];
+        for (int i = 0; i < length; i++) {
+            float sum = 0;
+            for (int n = 0; n < k.length; n++) {
+                int j = i + n - c;
+                if (j >= 0 && j < length) {
+                    sum += k[n];
+                }
+            }
+            w[i] = sum;
+        }
+        return w;
+    }
+
+    /**
+     * Horizontal running-sum box mean of width 2 * radius + 1 over rows [y0, y1). Cost is
+     * independent of the radius. Only pixels inside the image are averaged.
+     */
+    static void boxRows(float[] in, float[] out, int width, int radius, int y0, int y1) {
+        for (int y = y0; y < y1; y++) {
+            int r = y * width;
+            double sum = 0;
+            int lo = 0, hi = 0; // window is [lo, hi)
+            for (int x = 0; x < width; x++) {
+                int newHi = Math.min(width, x + radius + 1);
+                int newLo = Math.max(0, x - radius);
+                while (hi < newHi) {
+                    sum += in[r + hi++];
+                }
+                while (lo < newLo) {
+                    sum -= in[r + lo++];
+                }
+                out[r + x] = (float) (sum / (hi - lo));
+            }
+        }
+    }
+
+    /**
+     * Vertical running-sum box mean of width 2 * radius + 1 over rows [y0, y1). The running
+     * column sums are seeded from the halo rows above y0.
+     */
+    static void boxColumns(float[] in, float[] out, int width, int height, int radius, int y0, int y1) {
+        double[] sum = new double[width];
+        int lo = Math.max(0, y0 - radius), hi = lo; // window is rows [lo, hi)
+        for (int y = y0; y < y1; y++) {
+            int newHi = Math.min(height, y + radius + 1);
+            int newLo = Math.max(0, y - radius);
+            for (; hi < newHi; hi++) {
+                int s = hi * width;
+                for (int x = 0; x < width; x++) {
+                    sum[x] += in[s + x];
+                }
+            }
+            for (; lo < newLo; lo++) {
+                int s = lo * width;
+                for (int x = 0; x < width; x++) {
+                    sum[x] -= in[s + x];
+                }
+            }
+            int r = y * width;
+            int count = hi - lo;
+            for (int x = 0; x < width; x++) {
+                out[r + x] = (float) (sum[x] / count);
+            }
+        }
+    }
+}
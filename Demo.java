@@ -2,9 +2,10 @@ import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.*;
 import java.io.*;
-import java.util.Stack;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import javax.imageio.*;
 import javax.swing.*;
 
@@ -14,53 +15,52 @@ public class Demo extends JPanel implements ActionListener {
     private BufferedImage secondImage;      // Middle image (second image)
     private BufferedImage processedImage;   // Right image (result of processing)
     
-    // Undo stack for the processedImage.
-    private Stack<BufferedImage> undoStack = new Stack<>();
+    // Undo history for the processedImage (tile deltas, compressed and spilled when old).
+    private final UndoHistory undoHistory = new UndoHistory();
+    // Results of the neighbourhood operations, keyed by input content, operation, parameters and ROI.
+    private final ResultCache resultCache = new ResultCache();
     // Gap between images.
     private final int gap = 10;
+    // Vertical space reserved for the labels above the images.
+    private final int labelHeight = 20;
+    
+    // Row kernels of the point and two-image operations (vectorised when available).
+    private static final PixelKernels KERNELS = PixelKernels.get();
+    
+    // Display-only copies of the three images, at most demo.displaySize pixels on a side.
+    // Every operation works on the full-resolution images.
+    private static final int DISPLAY_SIZE = Integer.getInteger("demo.displaySize", 512);
+    private final DisplayImage originalDisplay = new DisplayImage(DISPLAY_SIZE);
+    private final DisplayImage secondDisplay = new DisplayImage(DISPLAY_SIZE);
+    private final DisplayImage processedDisplay = new DisplayImage(DISPLAY_SIZE);
     
     // ROI selection fields (applies to processedImage).
     private boolean selectingROI = false;
     private Point roiStart = null;
     private Rectangle roi = null; // ROI relative to the processedImage
     
+    // Live histogram and mean/std of the ROI while it is being selected. roiStats is built
+    // once per processedImage and then updated incrementally on each drag.
+    private RoiStats roiStats = null;
+    private JDialog roiStatsDialog = null;
+    private JLabel roiStatsLabel = null;
+    
     // Log area for displaying messages.
     private JTextArea logArea;
     
+    // The background operation currently running, if any (only touched on the EDT).
+    private ImageJob currentJob = null;
+    
+    // Expression over the current processedImage; its statistics are kept until the image changes.
+    private ImageExpr processedExpr = null;
+    
     // Constructor: load the original image from file.
     public Demo(File imageFile, JTextArea logArea) {
         this.logArea = logArea;
         try {
-            BufferedImage img = null;
-            // Check if the file is RAW (by its extension)
-            if (imageFile.getName().toLowerCase().endsWith(".raw")) {
-                String wStr = JOptionPane.showInputDialog(this, "Enter width for RAW image (leave blank to guess):", "");
-                String hStr = JOptionPane.showInputDialog(this, "Enter height for RAW image (leave blank to guess):", "");
-                int w, h;
-                if (wStr == null || hStr == null || wStr.trim().isEmpty() || hStr.trim().isEmpty()) {
-                    Dimension d = guessDimensions(imageFile);
-                    w = d.width;
-                    h = d.height;
-                    log("Guessed RAW dimensions: " + w + " x " + h);
-                } else {
-                    w = Integer.parseInt(wStr);
-                    h = Integer.parseInt(hStr);
-                }
-                img = readRawImage(imageFile, w, h);
-            } else {
-                img = ImageIO.read(imageFile);
-                if (img.getType() != BufferedImage.TYPE_INT_RGB) {
-                    BufferedImage temp = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
-                    Graphics g = temp.getGraphics();
-                    g.drawImage(img, 0, 0, null);
-                    g.dispose();
-                    img = temp;
-                }
-            }
-            // Force resize to exactly 512 x 512
-            originalImage = resizeImage(img);
+            originalImage = readImageFile(imageFile);
             processedImage = copyImage(originalImage);
-        } catch (IOException e) {
+        } catch (IOException | IllegalArgumentException e) {
             JOptionPane.showMessageDialog(this, "Original image could not be read.", "Error", JOptionPane.ERROR_MESSAGE);
             System.exit(1);
         }
@@ -72,16 +72,18 @@ public class Demo extends JPanel implements ActionListener {
             // ROI selection only applies in the processedImage area (right one)
             int offsetX = getLeftImageWidth() + getMiddleImageWidth() + 2 * gap;
             if (selectingROI && e.getX() >= offsetX) {
-                roiStart = new Point(e.getX() - offsetX, e.getY());
+                roiStart = toProcessedImage(e, offsetX);
                 roi = new Rectangle(roiStart);
+                updateRoiStats();
             }
             }
             @Override
             public void mouseReleased(MouseEvent e) {
             if (selectingROI && roiStart != null) {
                 int offsetX = getLeftImageWidth() + getMiddleImageWidth() + 2 * gap;
-                Point currentPoint = new Point(e.getX() - offsetX, e.getY());
+                Point currentPoint = toProcessedImage(e, offsetX);
                 updateROI(currentPoint);
+                updateRoiStats();
                 selectingROI = false;
                 repaint();
                 log("ROI selected: " + roi);
@@ -94,14 +96,25 @@ public class Demo extends JPanel implements ActionListener {
             public void mouseDragged(MouseEvent e) {
             if (selectingROI && roiStart != null) {
                 int offsetX = getLeftImageWidth() + getMiddleImageWidth() + 2 * gap;
-                Point currentPoint = new Point(e.getX() - offsetX, e.getY());
+                Point currentPoint = toProcessedImage(e, offsetX);
                 updateROI(currentPoint);
+                updateRoiStats();
                 repaint();
                 log("ROI updated: " + roi);
             }
             }
         });
         }
+    
+    // Headless instance used by BatchRunner: no image slots, no log area, no dialogs.
+    Demo() {
+    }
+    
+    // Position of a mouse event in processedImage coordinates (the ROI is kept in those).
+    private Point toProcessedImage(MouseEvent e, int offsetX) {
+        return processedDisplay.toImage(processedImage, e.getX() - offsetX, e.getY() - labelHeight);
+    }
+    
     private void updateROI(Point currentPoint) {
         int newX = Math.min(roiStart.x, currentPoint.x);
         int newY = Math.min(roiStart.y, currentPoint.y);
@@ -110,6 +123,38 @@ public class Demo extends JPanel implements ActionListener {
         roi = new Rectangle(newX, newY, newW, newH);
     }
     
+    // Open the ROI statistics panel for a new selection on processedImage.
+    private void showRoiStats() {
+        if (roiStatsDialog == null) {
+            roiStatsLabel = new JLabel();
+            roiStatsLabel.setHorizontalTextPosition(SwingConstants.CENTER);
+            roiStatsLabel.setVerticalTextPosition(SwingConstants.BOTTOM);
+            roiStatsDialog = new JDialog(SwingUtilities.getWindowAncestor(this), "ROI Statistics");
+            roiStatsDialog.getContentPane().add(roiStatsLabel);
+        }
+        roiStatsDialog.setVisible(true);
+        updateRoiStats();
+    }
+    
+    // Bring the ROI statistics panel, if open, up to date with roi. Only the strips the drag
+    // swept since the last call are counted; the tables are rebuilt when processedImage changes.
+    private void updateRoiStats() {
+        if (roiStatsDialog == null || !roiStatsDialog.isVisible() || processedImage == null) {
+            return;
+        }
+        if (roiStats == null || roiStats.image != processedImage) {
+            roiStats = new RoiStats(processedImage);
+        }
+        roiStats.update(roi);
+        double[] ms = roiStats.meanStd();
+        roiStatsLabel.setIcon(new ImageIcon(displayHistogram(roiStats.histogram())));
+        roiStatsLabel.setText(roiStats.count() == 0 ? "No pixels selected"
+                : String.format("%d pixels   Mean: %.2f   Std Dev: %.2f", roiStats.count(), ms[0], ms[1]));
+        if (roiStatsLabel.getPreferredSize().width > roiStatsLabel.getWidth()) {
+            roiStatsDialog.pack();
+        }
+    }
+    
     // Helper: make a copy of a BufferedImage.
     private BufferedImage copyImage(BufferedImage img) {
         BufferedImage copy = new BufferedImage(img.getWidth(), img.getHeight(), img.getType());
@@ -119,27 +164,28 @@ public class Demo extends JPanel implements ActionListener {
         return copy;
     }
     
-    // Methods to get widths of left and middle images (for layout calculations).
+    // Methods to get display widths of left and middle images (for layout calculations).
     private int getLeftImageWidth() {
-        return originalImage != null ? originalImage.getWidth() : 0;
+        return originalImage != null ? originalDisplay.size(originalImage).width : 0;
     }
     private int getMiddleImageWidth() {
         // If secondImage is not loaded, use a placeholder width equal to originalImage.
-        return secondImage != null ? secondImage.getWidth() : (originalImage != null ? originalImage.getWidth() : 0);
+        return secondImage != null ? secondDisplay.size(secondImage).width : getLeftImageWidth();
     }
     
-    // Preferred size: width = sum of widths of three images + 2 gaps, height = max of heights.
+    // Preferred size: width = sum of display widths of three images + 2 gaps, height = max of
+    // display heights plus the labels.
     @Override
     public Dimension getPreferredSize() {
         int w1 = getLeftImageWidth();
         int w2 = getMiddleImageWidth();
-        int w3 = processedImage != null ? processedImage.getWidth() : 0;
+        int w3 = processedImage != null ? processedDisplay.size(processedImage).width : 0;
         int totalWidth = w1 + gap + w2 + gap + w3;
-        int h1 = originalImage != null ? originalImage.getHeight() : 0;
-        int h2 = secondImage != null ? secondImage.getHeight() : 0;
-        int h3 = processedImage != null ? processedImage.getHeight() : 0;
+        int h1 = originalImage != null ? originalDisplay.size(originalImage).height : 0;
+        int h2 = secondImage != null ? secondDisplay.size(secondImage).height : 0;
+        int h3 = processedImage != null ? processedDisplay.size(processedImage).height : 0;
         int maxHeight = Math.max(h1, Math.max(h2, h3));
-        return new Dimension(totalWidth, maxHeight);
+        return new Dimension(totalWidth, maxHeight + labelHeight);
     }
     
     // Clamp value.
@@ -147,86 +193,28 @@ public class Demo extends JPanel implements ActionListener {
         return Math.max(0, Math.min(255, value));
     }
     
-    // ------------------- Utility Methods (Image conversion) -------------------
-    private int[][][] convertToArray(BufferedImage image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-        int[][][] arr = new int[width][height][4];
-        for (int y = 0; y < height; y++){
-            for (int x = 0; x < width; x++){
-                int p = image.getRGB(x, y);
-                arr[x][y][0] = (p >> 24) & 0xff;
-                arr[x][y][1] = (p >> 16) & 0xff;
-                arr[x][y][2] = (p >> 8) & 0xff;
-                arr[x][y][3] = p & 0xff;
-            }
-        }
-        return arr;
-    }
-    
-    private BufferedImage convertToBimage(int[][][] arr) {
-        int width = arr.length;
-        int height = arr[0].length;
-        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        for (int y = 0; y < height; y++){
-            for (int x = 0; x < width; x++){
-                int a = arr[x][y][0];
-                int r = arr[x][y][1];
-                int g = arr[x][y][2];
-                int b = arr[x][y][3];
-                int p = (a << 24) | (r << 16) | (g << 8) | b;
-                img.setRGB(x, y, p);
-            }
-        }
-        return img;
-    }
-    // If no dimensions are provided, try to guess dimensions from the file size.
-    // This method assumes the image is square if possible; if not, it uses the floor of sqrt(fileSize) as width.
-    private Dimension guessDimensions(File file) {
-        long size = file.length();
-        int dim = (int) Math.round(Math.sqrt(size));
-        // If the file size is a perfect square, assume a square image.
-        if (dim * dim == size) {
-            return new Dimension(dim, dim);
-        } else if (size % dim == 0) {
-            // Otherwise, assume width = dim and height = file size / dim
-            return new Dimension(dim, (int) (size / dim));
-        } else {
-            // Fallback: assume square (user may need to adjust)
-            return new Dimension(dim, dim);
-        }
-    }
-
-    // Always resize any image to exactly 512 x 512.
-    private BufferedImage resizeImage(BufferedImage img) {
-        int newWidth = 512;
-        int newHeight = 512;
-        Image tmp = img.getScaledInstance(newWidth, newHeight, Image.SCALE_SMOOTH);
-        BufferedImage resized = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g2d = resized.createGraphics();
-        g2d.drawImage(tmp, 0, 0, null);
-        g2d.dispose();
-        return resized;
-    }
-
-    private BufferedImage readRawImage(File file, int width, int height) throws IOException {
-        int size = width * height;
-        byte[] bytes = new byte[size];
-        try (FileInputStream fis = new FileInputStream(file)) {
-            int read = fis.read(bytes);
-            if (read != size) {
-                throw new IOException("Raw file size does not match expected dimensions.");
+    // Read any image file as TYPE_INT_RGB. For .raw files the layout is asked for (see
+    // RawImageReader.Format); if it is left blank an 8-bit gray image is assumed and its size
+    // guessed from the file size.
+    private BufferedImage readImageFile(File file) throws IOException {
+        if (file.getName().toLowerCase().endsWith(".raw")) {
+            String spec = JOptionPane.showInputDialog(this,
+                    "Enter RAW format WxH[,bits][,le|be][,gray|rgb][,planar][,offset=N][,stride=N]\n"
+                    + "(leave blank to guess an 8-bit gray size):", "");
+            RawImageReader.Format format;
+            if (spec == null || spec.trim().isEmpty()) {
+                format = RawImageReader.Format.guess(file.length());
+                log("Guessed RAW dimensions: " + format.width + " x " + format.height);
+            } else {
+                format = RawImageReader.Format.parse(spec);
             }
+            return RawImageReader.read(file.toPath(), format);
         }
-        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int val = bytes[y * width + x] & 0xff;
-                int rgb = (255 << 24) | (val << 16) | (val << 8) | val;
-                img.setRGB(x, y, rgb);
-            }
+        BufferedImage img = ImageIO.read(file);
+        if (img == null) {
+            throw new IOException("Unsupported image format");
         }
-        return img;
+        return PixelBuffer.wrap(img).image();
     }
 
     // Returns an array of supported image formats.
@@ -272,52 +260,51 @@ public class Demo extends JPanel implements ActionListener {
     
     // Negative (linear transform): s = 255 - r.
     private BufferedImage applyNegative(BufferedImage img) {
-        int width = img.getWidth(), height = img.getHeight();
-        int[][][] arr = convertToArray(img);
-        for (int y = 0; y < height; y++){
-            for (int x = 0; x < width; x++){
-                arr[x][y][1] = 255 - arr[x][y][1];
-                arr[x][y][2] = 255 - arr[x][y][2];
-                arr[x][y][3] = 255 - arr[x][y][3];
+        PixelBuffer src = PixelBuffer.wrap(img);
+        PixelBuffer dst = PixelBuffer.create(src.width, src.height);
+        RowBands.forEach(src.height, (band, y0, y1) -> {
+            for (int y = y0; y < y1; y++){
+                KERNELS.not(src.data, src.row(y), dst.data, dst.row(y), src.width);
             }
-        }
-        return convertToBimage(arr);
+        });
+        return dst.image();
     }
     
         // Rescale intensities: s = round(r * factor), clamped to [0,255].
         private BufferedImage applyRescale(BufferedImage img, float factor) {
-            int width = img.getWidth(), height = img.getHeight();
-            int[][][] arr = convertToArray(img);
-            for (int y = 0; y < height; y++){
-                for (int x = 0; x < width; x++){
-                    arr[x][y][1] = clamp(Math.round(arr[x][y][1] * factor));
-                    arr[x][y][2] = clamp(Math.round(arr[x][y][2] * factor));
-                    arr[x][y][3] = clamp(Math.round(arr[x][y][3] * factor));
+            PixelBuffer src = PixelBuffer.wrap(img);
+            PixelBuffer dst = PixelBuffer.create(src.width, src.height);
+            int[] lut = LutChain.rescale(factor);   // for the scalar kernels, built once
+            RowBands.forEach(src.height, (band, y0, y1) -> {
+                for (int y = y0; y < y1; y++){
+                    KERNELS.rescale(src.data, src.row(y), dst.data, dst.row(y), src.width, factor, lut);
                 }
-            }
-            return convertToBimage(arr);
+            });
+            return dst.image();
         }
     
         // Shift intensities: s = r + shift, clamped to [0,255].
         private BufferedImage applyShift(BufferedImage img, int shift) {
-            int width = img.getWidth(), height = img.getHeight();
-            int[][][] arr = convertToArray(img);
-            for (int y = 0; y < height; y++){
-                for (int x = 0; x < width; x++){
-                    arr[x][y][1] = clamp(arr[x][y][1] + shift);
-                    arr[x][y][2] = clamp(arr[x][y][2] + shift);
-                    arr[x][y][3] = clamp(arr[x][y][3] + shift);
+            PixelBuffer src = PixelBuffer.wrap(img);
+            PixelBuffer dst = PixelBuffer.create(src.width, src.height);
+            int[] lut = LutChain.shift(shift);   // for the scalar kernels, built once
+            RowBands.forEach(src.height, (band, y0, y1) -> {
+                for (int y = y0; y < y1; y++){
+                    KERNELS.shift(src.data, src.row(y), dst.data, dst.row(y), src.width, shift, lut);
                 }
-            }
-            return convertToBimage(arr);
+            });
+            return dst.image();
         }
     
         // Shift+Rescale: Add one random value (between -50 and 50) per pixel (applied to all channels)
         // then rescale each channel independently to the range [0,255].
         private BufferedImage applyShiftAndRescale(BufferedImage img) {
-            int width = img.getWidth(), height = img.getHeight();
-            int[][][] arr = convertToArray(img);
+            PixelBuffer src = PixelBuffer.wrap(img);
+            int width = src.width, height = src.height;
+            PixelBuffer dst = PixelBuffer.create(width, height);
             Random rand = new Random();
+            // The per-pixel shifts are kept so that the second pass sees the same values.
+            byte[] shifts = new byte[width * height];
             
             // Arrays to track min and max per channel.
             int[] minChannel = {255, 255, 255};
@@ -325,108 +312,106 @@ public class Demo extends JPanel implements ActionListener {
             
             // For each pixel, generate a single random shift value and add it to each channel.
             for (int y = 0; y < height; y++){
+                int si = src.row(y);
                 for (int x = 0; x < width; x++){
                     int randomVal = rand.nextInt(101) - 50; // one random value between -50 and 50 per pixel
-                    for (int c = 1; c <= 3; c++){
-                        arr[x][y][c] += randomVal;
-                        minChannel[c - 1] = Math.min(minChannel[c - 1], arr[x][y][c]);
-                        maxChannel[c - 1] = Math.max(maxChannel[c - 1], arr[x][y][c]);
+                    shifts[y * width + x] = (byte) randomVal;
+                    int p = src.data[si + x];
+                    for (int c = 0; c < 3; c++){
+                        int v = ((p >> (16 - 8 * c)) & 0xff) + randomVal;
+                        minChannel[c] = Math.min(minChannel[c], v);
+                        maxChannel[c] = Math.max(maxChannel[c], v);
                     }
                 }
             }
             
             // Rescale each channel independently.
+            int[] rgb = new int[3];
             for (int y = 0; y < height; y++){
+                int si = src.row(y), di = dst.row(y);
                 for (int x = 0; x < width; x++){
-                    for (int c = 1; c <= 3; c++){
-                        if (maxChannel[c - 1] != minChannel[c - 1]) {
-                            int newVal = (arr[x][y][c] - minChannel[c - 1]) * 255 / (maxChannel[c - 1] - minChannel[c - 1]);
-                            arr[x][y][c] = clamp(newVal);
+                    int p = src.data[si + x];
+                    int randomVal = shifts[y * width + x];
+                    for (int c = 0; c < 3; c++){
+                        int v = ((p >> (16 - 8 * c)) & 0xff) + randomVal;
+                        if (maxChannel[c] != minChannel[c]) {
+                            rgb[c] = clamp((v - minChannel[c]) * 255 / (maxChannel[c] - minChannel[c]));
                         } else {
-                            arr[x][y][c] = clamp(arr[x][y][c]);
+                            rgb[c] = clamp(v);
                         }
                     }
+                    dst.data[di + x] = PixelBuffer.pack(rgb[0], rgb[1], rgb[2]);
                 }
             }
-            return convertToBimage(arr);
+            return dst.image();
         }
     
         // ==================== LAB 3 Operations ====================
     
         // Arithmetic operations: perform "add", "subtract", "multiply", or "divide" on two images.
+        // The raw results are rescaled to [0,255] using their global min and max, so the
+        // operation is evaluated twice per channel instead of keeping a full int result image.
+        // Each row's raw channel values go through a planar scratch row (see PixelKernels).
         private BufferedImage applyArithmeticOperation(BufferedImage img1, BufferedImage img2, String op) {
+            int code = PixelKernels.op(op);
             int width = Math.min(img1.getWidth(), img2.getWidth());
             int height = Math.min(img1.getHeight(), img2.getHeight());
-            int[][][] arr1 = convertToArray(img1);
-            int[][][] arr2 = convertToArray(img2);
-            int[][][] res = new int[width][height][4];
-           int minChannel = Integer.MAX_VALUE;
-            int maxChannel = Integer.MIN_VALUE;
-            for (int y = 0; y < height; y++){
-                for (int x = 0; x < width; x++){
-                    res[x][y][0] = arr1[x][y][0]; // alpha from first image
-                    for (int c = 1; c <= 3; c++){
-                        //int v = 0;
-                        switch(op) {
-                            case "add": res[x][y][c] = arr1[x][y][c] + arr2[x][y][c]; break;
-                            case "subtract": res[x][y][c] = arr1[x][y][c] - arr2[x][y][c]; break;
-                            case "multiply": res[x][y][c] = arr1[x][y][c] * arr2[x][y][c]; break;
-                            case "divide": res[x][y][c] = (arr2[x][y][c] == 0) ? 0 : arr1[x][y][c] / arr2[x][y][c]; break;
-                        }
-                        
-                        minChannel = Math.min(minChannel, res[x][y][c]);
-                        maxChannel = Math.max(maxChannel, res[x][y][c]);
-                    }
+            PixelBuffer src1 = PixelBuffer.wrap(img1);
+            PixelBuffer src2 = PixelBuffer.wrap(img2);
+            PixelBuffer dst = PixelBuffer.create(width, height);
+            // One partial min/max per band, merged below.
+            int bands = RowBands.count(height);
+            int[] bandMin = new int[bands];
+            int[] bandMax = new int[bands];
+            RowBands.forBands(bands, height, (band, y0, y1) -> {
+                int[] raw = new int[3 * width];
+                int[] minMax = {Integer.MAX_VALUE, Integer.MIN_VALUE};
+                for (int y = y0; y < y1; y++){
+                    KERNELS.arithmetic(code, src1.data, src1.row(y), src2.data, src2.row(y), raw, width);
+                    KERNELS.minMax(raw, raw.length, minMax);
                 }
+                bandMin[band] = minMax[0];
+                bandMax[band] = minMax[1];
+            });
+            int minChannel = Integer.MAX_VALUE;
+            int maxChannel = Integer.MIN_VALUE;
+            for (int b = 0; b < bands; b++){
+                minChannel = Math.min(minChannel, bandMin[b]);
+                maxChannel = Math.max(maxChannel, bandMax[b]);
             }
             // Rescale result channels to [0,255]
-            for (int y = 0; y < height; y++){
-                for (int x = 0; x < width; x++){
-                    for (int c = 1; c <= 3; c++){
-                            res[x][y][c] = (res[x][y][c] - minChannel) * 255 / (maxChannel - minChannel);
-                            
-                    }
+            int min = minChannel;
+            int range = Math.max(1, maxChannel - minChannel);
+            RowBands.forEach(height, (band, y0, y1) -> {
+                int[] raw = new int[3 * width];
+                for (int y = y0; y < y1; y++){
+                    KERNELS.arithmetic(code, src1.data, src1.row(y), src2.data, src2.row(y), raw, width);
+                    KERNELS.rescaleToRgb(raw, width, min, range, dst.data, dst.row(y));
                 }
-            }
-            return convertToBimage(res);
+            });
+            return dst.image();
         }
     
         // Bitwise Boolean operations: "and", "or", "xor" on two images.
+        // Channels are 8-bit, so the operation is applied to the packed pixels directly.
         private BufferedImage applyBitwiseOperation(BufferedImage img1, BufferedImage img2, String op) {
+            int code = PixelKernels.op(op);
             int width = Math.min(img1.getWidth(), img2.getWidth());
             int height = Math.min(img1.getHeight(), img2.getHeight());
-            int[][][] arr1 = convertToArray(img1);
-            int[][][] arr2 = convertToArray(img2);
-            int[][][] res = new int[width][height][4];
-            for (int y = 0; y < height; y++){
-                for (int x = 0; x < width; x++){
-                    res[x][y][0] = arr1[x][y][0];
-                    for (int c = 1; c <= 3; c++){
-                        int v = 0;
-                        switch(op) {
-                            case "and": v = arr1[x][y][c] & arr2[x][y][c]; break;
-                            case "or":  v = arr1[x][y][c] | arr2[x][y][c]; break;
-                            case "xor": v = arr1[x][y][c] ^ arr2[x][y][c]; break;
-                        }
-                        res[x][y][c] = clamp(v);
-                    }
+            PixelBuffer src1 = PixelBuffer.wrap(img1);
+            PixelBuffer src2 = PixelBuffer.wrap(img2);
+            PixelBuffer dst = PixelBuffer.create(width, height);
+            RowBands.forEach(height, (band, y0, y1) -> {
+                for (int y = y0; y < y1; y++){
+                    KERNELS.bitwise(code, src1.data, src1.row(y), src2.data, src2.row(y), dst.data, dst.row(y), width);
                 }
-            }
-            return convertToBimage(res);
+            });
+            return dst.image();
         }
     
         // Bitwise NOT: apply bitwise complement on each color channel.
         private BufferedImage applyBitwiseNot(BufferedImage img) {
-            int width = img.getWidth(), height = img.getHeight();
-            int[][][] arr = convertToArray(img);
-            for (int y = 0; y < height; y++){
-                for (int x = 0; x < width; x++){
-                    for (int c = 1; c <= 3; c++){
-                        arr[x][y][c] = ~arr[x][y][c] & 0xff;
-                    }
-                }
-            }
-            return convertToBimage(arr);
+            return applyNegative(img);
         }
     
         // ==================== LAB 4 Operations ====================
@@ -439,84 +424,146 @@ public class Demo extends JPanel implements ActionListener {
         // (2) Logarithmic Transform: s = c * log(1 + r).
         // If user does not provide a value for c, compute automatically as c = 255 / ln(256).
         private BufferedImage applyLogTransform(BufferedImage img, Float userC) {
-            int width = img.getWidth(), height = img.getHeight();
-            int[][][] arr = convertToArray(img);
             // Automatic computation:
             float c = (userC != null) ? userC : (255f / (float)Math.log(256));
             log("Logarithmic transform: c = " + c);
-            for (int y = 0; y < height; y++){
-                for (int x = 0; x < width; x++){
-                    for (int channel = 1; channel <= 3; channel++){
-                        int r = arr[x][y][channel];
-                        int s = clamp(Math.round(c * (float)Math.log(1 + r)));
-                        arr[x][y][channel] = s;
-                    }
-                }
-            }
-            return convertToBimage(arr);
+            // Only 256 distinct inputs exist, so evaluate the transform once per value.
+            return new LutChain().then(LutChain.log(c)).apply(img);
         }
     
         // (3) Power-Law Transform: s = c * (r^p).
         // Automatically compute c as 255 / (255^p) so that 255 maps to 255.
         private BufferedImage applyPowerLawTransform(BufferedImage img, float p) {
-            int width = img.getWidth(), height = img.getHeight();
-            int[][][] arr = convertToArray(img);
-            float c = 255f / (float)Math.pow(255, p);
-            for (int y = 0; y < height; y++){
-                for (int x = 0; x < width; x++){
-                    for (int channel = 1; channel <= 3; channel++){
-                        int r = arr[x][y][channel];
-                        int s = clamp(Math.round(c * (float)Math.pow(r, p)));
-                        arr[x][y][channel] = s;
-                    }
-                }
-            }
-            return convertToBimage(arr);
+            return new LutChain().then(LutChain.power(p)).apply(img);
         }
     
         // (4) Random Look-up Table Transform: generate a LUT of 256 random values and apply.
         private BufferedImage applyRandomLUT(BufferedImage img) {
-            int[] lut = new int[256];
-            Random rand = new Random();
-            for (int i = 0; i < 256; i++){
-                lut[i] = rand.nextInt(256);
-            }
-            int width = img.getWidth(), height = img.getHeight();
-            int[][][] arr = convertToArray(img);
-            for (int y = 0; y < height; y++){
-                for (int x = 0; x < width; x++){
-                    for (int channel = 1; channel <= 3; channel++){
-                        int r = arr[x][y][channel];
-                        arr[x][y][channel] = lut[r];
-                    }
-                }
-            }
-            return convertToBimage(arr);
+            return new LutChain().then(LutChain.random(new Random())).apply(img);
         }
     
         // (5) Bit-Plane Slicing: convert the image to grayscale, then extract the specified bit plane.
         private BufferedImage applyBitPlaneSlicing(BufferedImage img, int bit) {
-            int width = img.getWidth(), height = img.getHeight();
-            // Create a new grayscale image.
-            BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-            for (int y = 0; y < height; y++){
-                for (int x = 0; x < width; x++){
-                    // Compute grayscale value (average of R, G, B).
-                    int rgb = img.getRGB(x, y);
-                    int r = (rgb >> 16) & 0xff;
-                    int g = (rgb >> 8) & 0xff;
-                    int b = rgb & 0xff;
-                    int gray = (r + g + b) / 3;
-                    // Extract the bit.
-                    int bitVal = ((gray >> bit) & 1) == 1 ? 255 : 0;
-                    int newPixel = (255 << 24) | (bitVal << 16) | (bitVal << 8) | bitVal;
-                    result.setRGB(x, y, newPixel);
-                }
-            }
-            return result;
+            return new LutChain().thenGray(LutChain.bitPlane(bit)).apply(img);
         }
     
         // ------------------- LAB 6: Convolution -------------------
+        // Choice of the Convolution command that asks for a kernel (see convKernel).
+        private static final String CUSTOM_KERNEL = "Custom...";
+        
+        // Sample masks offered by the Convolution command (and the batch "conv" operation).
+        static final String[] KERNEL_PRESETS = {
+            "Averaging 3x3", 
+            "Weighted Averaging 3x3", 
+            "4-Neighbour Laplacian", 
+            "8-Neighbour Laplacian", 
+            "4-Neighbour Laplacian Enhancement", 
+            "8-Neighbour Laplacian Enhancement", 
+            "Roberts", 
+            "Roberts2",
+            "Sobel X", 
+            "Sobel Y", 
+            "Gaussian 5x5", 
+            "Laplacian of Gaussian 5x5" 
+        };
+        
+        // Kernel of one of the KERNEL_PRESETS, or null if the name is unknown.
+        static float[][] presetKernel(String selection) {
+            switch(selection) {
+                case "Averaging 3x3":
+                    return new float[][] {
+                        {1/9f, 1/9f, 1/9f},
+                        {1/9f, 1/9f, 1/9f},
+                        {1/9f, 1/9f, 1/9f}
+                    };
+                case "Weighted Averaging 3x3":
+                    return new float[][] {
+                        {1/16f, 2/16f, 1/16f},
+                        {2/16f, 4/16f, 2/16f},
+                        {1/16f, 2/16f, 1/16f}
+                    };
+                case "4-Neighbour Laplacian":
+                    return new float[][] {
+                        {0, -1, 0},
+                        {-1, 4, -1},
+                        {0, -1, 0}
+                    };
+                case "8-Neighbour Laplacian":
+                    return new float[][] {
+                        {-1, -1, -1},
+                        {-1, 8, -1},
+                        {-1, -1, -1}
+                    };
+                case "4-Neighbour Laplacian Enhancement":
+                    return new float[][] {
+                        {0, -1, 0},
+                        {-1, 5, -1},
+                        {0, -1, 0}
+                    };
+                case "8-Neighbour Laplacian Enhancement":
+                    return new float[][] {
+                        {-1, -1, -1},
+                        {-1, 9, -1},
+                        {-1, -1, -1}
+                    };
+                case "Roberts":
+                    return new float[][] {
+                        {0, 0, 0},
+                        {0, 0, -1},
+                        {0, 1, 0}
+                    };
+                case "Roberts2":
+                    return new float[][] {
+                        {0, 0, 0},
+                        {0, -1, 0},
+                        {0, 0, 1}
+                    };
+                case "Sobel X":
+                    return new float[][] {
+                        {-1, 0, 1},
+                        {-2, 0, 2},
+                        {-1, 0, 1}
+                    };
+                case "Sobel Y":
+                    return new float[][] {
+                        {-1, -2, -1},
+                        {0, 0, 0},
+                        {1, 2, 1}
+                    };
+                case "Gaussian 5x5":
+                    return new float[][] {
+                        {1/273f, 4/273f, 7/273f, 4/273f, 1/273f},
+                        {4/273f, 16/273f,26/273f,16/273f,4/273f},
+                        {7/273f,26/273f,41/273f,26/273f,7/273f},
+                        {4/273f,16/273f,26/273f,16/273f,4/273f},
+                        {1/273f, 4/273f, 7/273f, 4/273f, 1/273f}
+                    };
+                case "Laplacian of Gaussian 5x5":
+                    return new float[][] {
+                        {0, 0, -1, 0, 0},
+                        {0, -1, -2, -1, 0},
+                        {-1, -2, 16, -2, -1},
+                        {0, -1, -2, -1, 0},
+                        {0, 0, -1, 0, 0}
+                    };
+            }
+            return null;
+        }
+        
+        // Whether a preset's result is shown as absolute values (the edge detectors).
+        static boolean presetUsesAbs(String selection) {
+            switch(selection) {
+                case "8-Neighbour Laplacian":
+                case "Roberts":
+                case "Roberts2":
+                case "Sobel X":
+                case "Sobel Y":
+                case "Laplacian of Gaussian 5x5":
+                    return true;
+            }
+            return false;
+        }
+        
         /**
          * Applies convolution to the given image using the provided kernel.
          * The image is first converted to grayscale. If useAbsolute is true, the result
@@ -530,243 +577,414 @@ public class Demo extends JPanel implements ActionListener {
          * @return a new BufferedImage containing the convolution result in grayscale
          */
         private BufferedImage applyConvolution(BufferedImage img, float[][] kernel, boolean useAbsolute, boolean normalize) {
-            int width = img.getWidth();
-            int height = img.getHeight();
-            int kRows = kernel.length;
-            int kCols = kernel[0].length;
-            int kCenterX = kCols / 2;
-            int kCenterY = kRows / 2;
+            PixelBuffer src = PixelBuffer.wrap(img);
+            int width = src.width;
+            int height = src.height;
             
-            // Get the RGB values from the image.
-            int[][][] arr = convertToArray(img);
+            // Planar, row-major copies of the r, g, b channels.
+            int[][] chan = channelPlanes(src);
             
-            // Create an array to hold convolution results for each channel (r, g, b).
-            float[][][] conv = new float[width][height][3]; // channels: 0=r, 1=g, 2=b
-            
-            // For each pixel and each channel, compute the convolution.
-            for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    for (int c = 1; c <= 3; c++) { // channels 1,2,3 correspond to r, g, b.
-                        float sum = 0;
-                        for (int m = 0; m < kRows; m++) {
-                            for (int n = 0; n < kCols; n++) {
-                                int ix = x + n - kCenterX;
-                                int iy = y + m - kCenterY;
-                                if (ix >= 0 && ix < width && iy >= 0 && iy < height) {
-                                    sum += kernel[m][n] * arr[ix][iy][c];
-                                }
+            // Planar arrays to hold convolution results for each channel (0=r, 1=g, 2=b).
+            // Each band reads its halo rows from the shared channel planes.
+            float[][] conv = new float[3][width * height];
+            float[][] factors = Convolution.separate(kernel);
+            float tap = Convolution.uniformTap(kernel);
+            if (!Float.isNaN(tap)) {
+                // Box mask (e.g. averaging): window sums from integral images, O(1) per pixel.
+                boxFilter(chan, width, height, kernel.length / 2, false, tap, conv);
+            } else if (factors != null) {
+                // Rank-1 kernel: a horizontal pass followed by a vertical pass, O(kRows + kCols) per pixel.
+                float[][] tmp = new float[3][width * height];
+                RowBands.forEach(height, (band, y0, y1) -> {
+                    for (int c = 0; c < 3; c++) {
+                        Convolution.rowPass(chan[c], tmp[c], width, factors[1], y0, y1);
+                    }
+                });
+                RowBands.forEach(height, (band, y0, y1) -> {
+                    for (int c = 0; c < 3; c++) {
+                        Convolution.columnPass(tmp[c], conv[c], width, height, factors[0], y0, y1);
+                    }
+                });
+            } else if (kernel.length * kernel[0].length >= FFTConvolution.MIN_TAPS) {
+                // Large kernel: overlap-save FFT tiles, with bands aligned to whole tile rows.
+                FFTConvolution fft = new FFTConvolution(kernel);
+                RowBands.forEach(height, fft.tileRows(), (band, y0, y1) ->
+                    fft.convolve(chan, conv, width, height, y0, y1));
+            } else {
+                RowBands.forEach(height, (band, y0, y1) -> {
+                    for (int c = 0; c < 3; c++) {
+                        Convolution.convolve2D(chan[c], conv[c], width, height, kernel, y0, y1);
+                    }
+                });
+            }
+            return convolutionToImage(conv, width, height, useAbsolute, normalize);
+        }
+        
+        // Sigma up to which the blur uses a sampled Gaussian; above it, three box filters.
+        private static final double BOX_BLUR_SIGMA = 3.0;
+        
+        /**
+         * Gaussian blur with an arbitrary standard deviation, applied to each colour channel.
+         * Small sigmas use a sampled Gaussian through the separable convolution passes; larger
+         * sigmas are approximated by three successive running-sum box filters, whose cost does
+         * not depend on the radius. Only pixels inside the image contribute at the borders.
+         *
+         * @param img   the input image
+         * @param sigma the standard deviation in pixels (must be positive)
+         * @return a new blurred image
+         */
+        private BufferedImage applyGaussianBlur(BufferedImage img, double sigma) {
+            PixelBuffer src = PixelBuffer.wrap(img);
+            int width = src.width;
+            int height = src.height;
+            int[][] chan = channelPlanes(src);
+            float[][] out = new float[3][width * height];
+            float[][] tmp = new float[3][width * height];
+            if (sigma <= BOX_BLUR_SIGMA) {
+                float[] k = Convolution.gaussianKernel(sigma);
+                float[] wx = Convolution.borderWeights(k, width);
+                float[] wy = Convolution.borderWeights(k, height);
+                RowBands.forEach(height, (band, y0, y1) -> {
+                    for (int c = 0; c < 3; c++) {
+                        Convolution.rowPass(chan[c], tmp[c], width, k, y0, y1);
+                    }
+                });
+                RowBands.forEach(height, (band, y0, y1) -> {
+                    for (int c = 0; c < 3; c++) {
+                        Convolution.columnPass(tmp[c], out[c], width, height, k, y0, y1);
+                        for (int y = y0; y < y1; y++) {
+                            for (int x = 0; x < width; x++) {
+                                out[c][y * width + x] /= wx[x] * wy[y];
                             }
                         }
-                        conv[x][y][c - 1] = sum;
                     }
+                });
+            } else {
+                RowBands.forEach(height, (band, y0, y1) -> {
+                    for (int c = 0; c < 3; c++) {
+                        for (int i = y0 * width; i < y1 * width; i++) {
+                            out[c][i] = chan[c][i];
+                        }
+                    }
+                });
+                for (int size : Convolution.boxSizes(sigma, 3)) {
+                    int radius = size / 2;
+                    RowBands.forEach(height, (band, y0, y1) -> {
+                        for (int c = 0; c < 3; c++) {
+                            Convolution.boxRows(out[c], tmp[c], width, radius, y0, y1);
+                        }
+                    });
+                    RowBands.forEach(height, (band, y0, y1) -> {
+                        for (int c = 0; c < 3; c++) {
+                            Convolution.boxColumns(tmp[c], out[c], width, height, radius, y0, y1);
+                        }
+                    });
                 }
             }
-            
+            return convolutionToImage(out, width, height, false, false);
+        }
+        
+        /**
+         * Box blur: each channel is replaced by its mean over the size x size window around
+         * the pixel (only pixels inside the image count at the borders). The window sums come
+         * from integral images, so any size costs the same per pixel.
+         *
+         * @param img  the input image
+         * @param size the window size (rounded up to an odd number)
+         * @return a new blurred image
+         */
+        private BufferedImage applyBoxBlur(BufferedImage img, int size) {
+            PixelBuffer src = PixelBuffer.wrap(img);
+            float[][] out = new float[3][src.width * src.height];
+            boxFilter(channelPlanes(src), src.width, src.height, size / 2, true, 0, out);
+            return convolutionToImage(out, src.width, src.height, false, false);
+        }
+        
+        // Box filter of each channel plane through its integral image (see IntegralImage.box).
+        private void boxFilter(int[][] chan, int width, int height, int radius, boolean clipped, float weight, float[][] out) {
+            for (int c = 0; c < 3; c++) {
+                IntegralImage table = new IntegralImage(chan[c], width, height, false);
+                float[] o = out[c];
+                RowBands.forEach(height, (band, y0, y1) -> table.box(radius, clipped, weight, o, y0, y1));
+            }
+        }
+        
+        // Split an image into planar, row-major r, g, b channel arrays.
+        private int[][] channelPlanes(PixelBuffer src) {
+            int width = src.width;
+            int[][] chan = new int[3][width * src.height];
+            RowBands.forEach(src.height, (band, y0, y1) -> {
+                for (int y = y0; y < y1; y++) {
+                    int si = src.row(y);
+                    for (int x = 0; x < width; x++) {
+                        int p = src.data[si + x];
+                        chan[0][y * width + x] = PixelBuffer.red(p);
+                        chan[1][y * width + x] = PixelBuffer.green(p);
+                        chan[2][y * width + x] = PixelBuffer.blue(p);
+                    }
+                }
+            });
+            return chan;
+        }
+        
+        // Turn raw convolution sums into an image, applying the useAbsolute/normalize options of
+        // applyConvolution. The global min/max for normalisation is reduced per band and merged.
+        private BufferedImage convolutionToImage(float[][] conv, int width, int height, boolean useAbsolute, boolean normalize) {
             // Optionally take the absolute value.
             if (useAbsolute) {
-                for (int y = 0; y < height; y++) {
-                    for (int x = 0; x < width; x++) {
-                        for (int c = 0; c < 3; c++) {
-                            conv[x][y][c] = Math.abs(conv[x][y][c]);
+                RowBands.forEach(height, (band, y0, y1) -> {
+                    for (float[] out : conv) {
+                        for (int i = y0 * width; i < y1 * width; i++) {
+                            out[i] = Math.abs(out[i]);
                         }
                     }
-                }
+                });
             }
             
             // Optionally normalize the entire image using a global min and max.
             if (normalize) {
-                float globalMin = Float.MAX_VALUE;
-                float globalMax = -Float.MAX_VALUE;
-                for (int y = 0; y < height; y++) {
-                    for (int x = 0; x < width; x++) {
-                        for (int c = 0; c < 3; c++) {
-                            globalMin = Math.min(globalMin, conv[x][y][c]);
-                            globalMax = Math.max(globalMax, conv[x][y][c]);
+                int bands = RowBands.count(height);
+                float[] bandMin = new float[bands];
+                float[] bandMax = new float[bands];
+                RowBands.forBands(bands, height, (band, y0, y1) -> {
+                    float min = Float.MAX_VALUE;
+                    float max = -Float.MAX_VALUE;
+                    for (float[] out : conv) {
+                        for (int i = y0 * width; i < y1 * width; i++) {
+                            min = Math.min(min, out[i]);
+                            max = Math.max(max, out[i]);
                         }
                     }
+                    bandMin[band] = min;
+                    bandMax[band] = max;
+                });
+                float globalMin = Float.MAX_VALUE;
+                float globalMax = -Float.MAX_VALUE;
+                for (int b = 0; b < bands; b++) {
+                    globalMin = Math.min(globalMin, bandMin[b]);
+                    globalMax = Math.max(globalMax, bandMax[b]);
                 }
                 float range = globalMax - globalMin;
                 if (range == 0) {
                     range = 1;
                 }
-                for (int y = 0; y < height; y++) {
-                    for (int x = 0; x < width; x++) {
-                        for (int c = 0; c < 3; c++) {
-                            conv[x][y][c] = (conv[x][y][c] - globalMin) * 255 / range;
+                float min = globalMin, scale = range;
+                RowBands.forEach(height, (band, y0, y1) -> {
+                    for (float[] out : conv) {
+                        for (int i = y0 * width; i < y1 * width; i++) {
+                            out[i] = (out[i] - min) * 255 / scale;
                         }
                     }
-                }
+                });
             }
             
             // Build the output image from the convolved channels.
-            BufferedImage outImg = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-            for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    int r = clamp(Math.round(conv[x][y][0]));
-                    int g = clamp(Math.round(conv[x][y][1]));
-                    int b = clamp(Math.round(conv[x][y][2]));
-                    int rgb = (255 << 24) | (r << 16) | (g << 8) | b;
-                    outImg.setRGB(x, y, rgb);
+            PixelBuffer dst = PixelBuffer.create(width, height);
+            RowBands.forEach(height, (band, y0, y1) -> {
+                for (int y = y0; y < y1; y++) {
+                    int di = dst.row(y);
+                    for (int x = 0; x < width; x++) {
+                        int i = y * width + x;
+                        dst.data[di + x] = PixelBuffer.pack(
+                                clamp(Math.round(conv[0][i])),
+                                clamp(Math.round(conv[1][i])),
+                                clamp(Math.round(conv[2][i])));
+                    }
                 }
-            }
-            return outImg;
+            });
+            return dst.image();
         }
         // ------------------- LAB 7: Order-statistics Filtering -------------------
-        // Helper: extract grayscale values from an image.
-        private int[][] getGrayMatrix(BufferedImage img) {
-            int width = img.getWidth();
-            int height = img.getHeight();
-            int[][] gray = new int[width][height];
-            for (int y = 0; y < height; y++){
-                for (int x = 0; x < width; x++){
-                    int rgb = img.getRGB(x, y);
-                    int r = (rgb >> 16) & 0xff;
-                    int g = (rgb >> 8) & 0xff;
-                    int b = rgb & 0xff;
-                    gray[x][y] = (r + g + b) / 3;
+        // Helper: extract grayscale values from an image as a flat, row-major plane.
+        int[] grayPlane(BufferedImage img) {
+            PixelBuffer src = PixelBuffer.wrap(img);
+            int width = src.width;
+            int[] gray = new int[width * src.height];
+            RowBands.forEach(src.height, (band, y0, y1) -> {
+                for (int y = y0; y < y1; y++){
+                    int si = src.row(y);
+                    for (int x = 0; x < width; x++){
+                        gray[y * width + x] = PixelBuffer.gray(src.data[si + x]);
+                    }
                 }
-            }
+            });
             return gray;
         }
         
-        // Helper: create a grayscale image from a 2D array.
-        private BufferedImage createGrayImage(int[][] gray) {
-            int width = gray.length;
-            int height = gray[0].length;
-            BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-            for (int y = 0; y < height; y++){
-                for (int x = 0; x < width; x++){
-                    int val = clamp(gray[x][y]);
-                    int rgb = (255 << 24) | (val << 16) | (val << 8) | val;
-                    img.setRGB(x, y, rgb);
+        // Helper: create a grayscale image from a flat, row-major plane.
+        BufferedImage createGrayImage(int[] gray, int width, int height) {
+            PixelBuffer dst = PixelBuffer.create(width, height);
+            RowBands.forEach(height, (band, y0, y1) -> {
+                for (int y = y0; y < y1; y++){
+                    int di = dst.row(y);
+                    for (int x = 0; x < width; x++){
+                        dst.data[di + x] = PixelBuffer.packGray(clamp(gray[y * width + x]));
+                    }
                 }
-            }
-            return img;
+            });
+            return dst.image();
         }
         
         // Salt-and-Pepper Noise: randomly set some pixels to 0 or 255.
         private BufferedImage addSaltAndPepperNoise(BufferedImage img, double noiseProb) {
-            int width = img.getWidth(), height = img.getHeight();
             BufferedImage out = copyImage(img);
+            PixelBuffer dst = PixelBuffer.wrap(out);
             Random rand = new Random();
-            for (int y = 0; y < height; y++){
-                for (int x = 0; x < width; x++){
+            for (int y = 0; y < dst.height; y++){
+                int di = dst.row(y);
+                for (int x = 0; x < dst.width; x++){
                     if (rand.nextDouble() < noiseProb) {
                         boolean salt = rand.nextBoolean();
                         int val = salt ? 255 : 0;
-                        int rgb = (255 << 24) | (val << 16) | (val << 8) | val;
-                        out.setRGB(x, y, rgb);
+                        dst.data[di + x] = PixelBuffer.packGray(val);
                     }
                 }
             }
+            return dst.image();
+        }
+        
+        // Running min and/or max of the gray plane over filterSize x filterSize windows.
+        // Either output may be null; min and max share the band passes.
+        private void grayMinMax(int[] gray, int width, int height, int filterSize, int[] outMin, int[] outMax) {
+            int[] rowMin = (outMin != null) ? new int[width * height] : null;
+            int[] rowMax = (outMax != null) ? new int[width * height] : null;
+            RowBands.forEach(height, (band, y0, y1) ->
+                OrderStatistics.rowMinMax(gray, rowMin, rowMax, width, filterSize, y0, y1));
+            RowBands.forEach(height, (band, y0, y1) ->
+                OrderStatistics.columnMinMax(rowMin, rowMax, outMin, outMax, width, height, filterSize, y0, y1));
+        }
+        
+        // Names of the filters that only read the gray plane (see grayFilter).
+        static boolean isGrayFilter(String name) {
+            return name.equals("min") || name.equals("max") || name.equals("midpoint") || name.equals("median");
+        }
+        
+        /**
+         * Min, max, midpoint or median of a flat gray plane over filterSize x filterSize windows.
+         * Works on the plane rather than the image so that several filters (or an ImageExpr) can
+         * share one gray conversion.
+         */
+        int[] grayFilter(int[] gray, int width, int height, String name, int filterSize) {
+            int[] out = new int[width * height];
+            switch(name) {
+                case "min":
+                    grayMinMax(gray, width, height, filterSize, out, null);
+                    break;
+                case "max":
+                    grayMinMax(gray, width, height, filterSize, null, out);
+                    break;
+                case "midpoint": {
+                    // Midpoint: (min + max)/2 from the neighborhood, from one shared pass.
+                    int[] max = new int[width * height];
+                    grayMinMax(gray, width, height, filterSize, out, max);
+                    RowBands.forEach(height, (band, y0, y1) -> {
+                        for (int i = y0 * width; i < y1 * width; i++){
+                            out[i] = (out[i] + max[i]) / 2;
+                        }
+                    });
+                    break;
+                }
+                case "median":
+                    RowBands.forEach(height, (band, y0, y1) ->
+                        OrderStatistics.median(gray, out, width, height, filterSize, y0, y1));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Not a gray filter: " + name);
+            }
             return out;
         }
         
         // Min Filter: replace each pixel with the minimum value in its neighborhood.
         private BufferedImage applyMinFilter(BufferedImage img, int filterSize) {
-            int[][] gray = getGrayMatrix(img);
             int width = img.getWidth(), height = img.getHeight();
-            int offset = filterSize / 2;
-            int[][] out = new int[width][height];
-            for (int y = 0; y < height; y++){
-                for (int x = 0; x < width; x++){
-                    int minVal = 255;
-                    for (int j = -offset; j <= offset; j++){
-                        for (int i = -offset; i <= offset; i++){
-                            int xx = x + i, yy = y + j;
-                            if (xx >= 0 && xx < width && yy >= 0 && yy < height)
-                                minVal = Math.min(minVal, gray[xx][yy]);
-                        }
-                    }
-                    out[x][y] = minVal;
-                }
-            }
-            return createGrayImage(out);
+            return createGrayImage(grayFilter(grayPlane(img), width, height, "min", filterSize), width, height);
         }
         
         // Max Filter: replace each pixel with the maximum value in its neighborhood.
         private BufferedImage applyMaxFilter(BufferedImage img, int filterSize) {
-            int[][] gray = getGrayMatrix(img);
             int width = img.getWidth(), height = img.getHeight();
-            int offset = filterSize / 2;
-            int[][] out = new int[width][height];
-            for (int y = 0; y < height; y++){
-                for (int x = 0; x < width; x++){
-                    int maxVal = 0;
-                    for (int j = -offset; j <= offset; j++){
-                        for (int i = -offset; i <= offset; i++){
-                            int xx = x + i, yy = y + j;
-                            if (xx >= 0 && xx < width && yy >= 0 && yy < height)
-                                maxVal = Math.max(maxVal, gray[xx][yy]);
-                        }
-                    }
-                    out[x][y] = maxVal;
-                }
-            }
-            return createGrayImage(out);
+            return createGrayImage(grayFilter(grayPlane(img), width, height, "max", filterSize), width, height);
         }
         
         // Midpoint Filter: replace each pixel with (min + max)/2 from its neighborhood.
         private BufferedImage applyMidpointFilter(BufferedImage img, int filterSize) {
-            int[][] gray = getGrayMatrix(img);
             int width = img.getWidth(), height = img.getHeight();
-            int offset = filterSize / 2;
-            int[][] out = new int[width][height];
-            for (int y = 0; y < height; y++){
-                for (int x = 0; x < width; x++){
-                    int minVal = 255, maxVal = 0;
-                    for (int j = -offset; j <= offset; j++){
-                        for (int i = -offset; i <= offset; i++){
-                            int xx = x + i, yy = y + j;
-                            if (xx >= 0 && xx < width && yy >= 0 && yy < height) {
-                                int v = gray[xx][yy];
-                                minVal = Math.min(minVal, v);
-                                maxVal = Math.max(maxVal, v);
-                            }
-                        }
-                    }
-                    out[x][y] = (minVal + maxVal) / 2;
-                }
-            }
-            return createGrayImage(out);
+            return createGrayImage(grayFilter(grayPlane(img), width, height, "midpoint", filterSize), width, height);
         }
         
         // Median Filter: replace each pixel with the median of its neighborhood.
         private BufferedImage applyMedianFilter(BufferedImage img, int filterSize) {
-            int[][] gray = getGrayMatrix(img);
             int width = img.getWidth(), height = img.getHeight();
-            int offset = filterSize / 2;
-            int[][] out = new int[width][height];
-            for (int y = 0; y < height; y++){
-                for (int x = 0; x < width; x++){
-                    int n = filterSize * filterSize;
-                    int[] vals = new int[n];
-                    int count = 0;
-                    for (int j = -offset; j <= offset; j++){
-                        for (int i = -offset; i <= offset; i++){
-                            int xx = x + i, yy = y + j;
-                            if (xx >= 0 && xx < width && yy >= 0 && yy < height)
-                                vals[count++] = gray[xx][yy];
-                        }
+            return createGrayImage(grayFilter(grayPlane(img), width, height, "median", filterSize), width, height);
+        }
+        
+        // Colour Median Filter: the median filter applied to each of R, G and B independently.
+        private BufferedImage applyColorMedianFilter(BufferedImage img, int filterSize) {
+            PixelBuffer src = PixelBuffer.wrap(img);
+            int width = src.width, height = src.height;
+            int[][] chan = channelPlanes(src);
+            int[][] out = new int[3][width * height];
+            RowBands.forEach(height, (band, y0, y1) -> {
+                for (int c = 0; c < 3; c++) {
+                    OrderStatistics.median(chan[c], out[c], width, height, filterSize, y0, y1);
+                }
+            });
+            PixelBuffer dst = PixelBuffer.create(width, height);
+            RowBands.forEach(height, (band, y0, y1) -> {
+                for (int y = y0; y < y1; y++){
+                    int di = dst.row(y);
+                    for (int x = 0; x < width; x++){
+                        int i = y * width + x;
+                        dst.data[di + x] = PixelBuffer.pack(out[0][i], out[1][i], out[2][i]);
                     }
-                    java.util.Arrays.sort(vals, 0, count);
-                    out[x][y] = vals[count / 2];
                 }
-            }
-            return createGrayImage(out);
+            });
+            return dst.image();
         }
-        // ------------------- Lab 5: Histogram & Histogram Equalisation -------------------
-        private int[] computeHistogram(BufferedImage img) {
+        
+        /**
+         * Morphological operation of the gray plane with a structuring element: "erode",
+         * "dilate", "open", "close", "tophat", "blackhat" or "gradient" (see Morphology.apply).
+         * Black and white images are processed bit-packed.
+         */
+        private BufferedImage applyMorphology(BufferedImage img, String op, Morphology.Element element) {
             int width = img.getWidth(), height = img.getHeight();
+            return createGrayImage(Morphology.apply(op, grayPlane(img), width, height, element), width, height);
+        }
+        
+        // Operation name of a morphology menu command, or null.
+        private static String morphologyOp(String cmd) {
+            switch(cmd) {
+                case "Erosion": return "erode";
+                case "Dilation": return "dilate";
+                case "Opening": return "open";
+                case "Closing": return "close";
+                case "Top-hat": return "tophat";
+                case "Black Top-hat": return "blackhat";
+                case "Morphological Gradient": return "gradient";
+            }
+            return null;
+        }
+        // ------------------- Lab 5: Histogram & Histogram Equalisation -------------------
+        // Gray-level histogram (from the cached single-pass ImageStats).
+        int[] computeHistogram(BufferedImage img) {
+            return ImageStats.of(img).histogram(ImageStats.GRAY);
+        }
+        
+        // Histogram of a flat gray plane, accumulated per band and merged.
+        int[] grayHistogram(int[] gray, int width, int height) {
+            int bands = RowBands.count(height);
+            int[][] partial = new int[bands][256];
+            RowBands.forBands(bands, height, (band, y0, y1) -> {
+                int[] h = partial[band];
+                for (int i = y0 * width; i < y1 * width; i++){
+                    h[gray[i]]++;
+                }
+            });
             int[] hist = new int[256];
-            for (int y = 0; y < height; y++){
-                for (int x = 0; x < width; x++){
-                    int rgb = img.getRGB(x, y);
-                    int r = (rgb >> 16) & 0xff;
-                    int g = (rgb >> 8) & 0xff;
-                    int b = rgb & 0xff;
-                    int gray = (r + g + b) / 3;
-                    hist[gray]++;
+            for (int[] h : partial){
+                for (int i = 0; i < 256; i++){
+                    hist[i] += h[i];
                 }
             }
             return hist;
@@ -774,8 +992,23 @@ public class Demo extends JPanel implements ActionListener {
         
         private BufferedImage histogramEqualisation(BufferedImage img) {
             int width = img.getWidth(), height = img.getHeight();
-            int total = width * height;
-            int[] hist = computeHistogram(img);
+            int[] transform = equalisationTable(computeHistogram(img), width * height);
+            PixelBuffer src = PixelBuffer.wrap(img);
+            PixelBuffer dst = PixelBuffer.create(width, height);
+            RowBands.forEach(height, (band, y0, y1) -> {
+                for (int y = y0; y < y1; y++){
+                    int si = src.row(y), di = dst.row(y);
+                    for (int x = 0; x < width; x++){
+                        int newVal = transform[PixelBuffer.gray(src.data[si + x])];
+                        dst.data[di + x] = PixelBuffer.packGray(newVal);
+                    }
+                }
+            });
+            return dst.image();
+        }
+        
+        // Gray-level mapping of histogram equalisation, from the cumulative histogram.
+        static int[] equalisationTable(int[] hist, int total) {
             int[] cdf = new int[256];
             cdf[0] = hist[0];
             for (int i = 1; i < 256; i++){
@@ -788,27 +1021,13 @@ public class Demo extends JPanel implements ActionListener {
             int[] transform = new int[256];
             for (int i = 0; i < 256; i++){
                 transform[i] = Math.round((cdf[i] - cdf_min) * 255f / (total - cdf_min));
-                transform[i] = clamp(transform[i]);
-            }
-            BufferedImage out = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-            for (int y = 0; y < height; y++){
-                for (int x = 0; x < width; x++){
-                    int rgb = img.getRGB(x, y);
-                    int r = (rgb >> 16) & 0xff;
-                    int g = (rgb >> 8) & 0xff;
-                    int b = rgb & 0xff;
-                    int gray = (r + g + b) / 3;
-                    int newVal = transform[gray];
-                    int newRgb = (255 << 24) | (newVal << 16) | (newVal << 8) | newVal;
-                    out.setRGB(x, y, newRgb);
-                }
+                transform[i] = Math.max(0, Math.min(255, transform[i]));
             }
-            return out;
+            return transform;
         }
         
         // Display the histogram as a 256x256 image.
-        private BufferedImage displayHistogram(BufferedImage img) {
-            int[] hist = computeHistogram(img);
+        private BufferedImage displayHistogram(int[] hist) {
             int max = 0;
             for (int i = 0; i < 256; i++){
                 if (hist[i] > max) max = hist[i];
@@ -827,122 +1046,708 @@ public class Demo extends JPanel implements ActionListener {
         }
         
         // ------------------- Lab 8: Thresholding -------------------
-        private double[] computeMeanStd(BufferedImage img) {
-            int[] hist = computeHistogram(img);
-            int total = img.getWidth() * img.getHeight();
-            double mean = 0;
-            for (int i = 0; i < 256; i++){
-                mean += i * hist[i];
-            }
-            mean /= total;
-            double variance = 0;
-            for (int i = 0; i < 256; i++){
-                variance += hist[i] * Math.pow(i - mean, 2);
-            }
-            variance /= total;
-            double std = Math.sqrt(variance);
-            return new double[]{mean, std};
-        }
-        
         private BufferedImage simpleThreshold(BufferedImage img, int thresh) {
-            int width = img.getWidth(), height = img.getHeight();
-            BufferedImage out = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-            for (int y = 0; y < height; y++){
-                for (int x = 0; x < width; x++){
-                    int rgb = img.getRGB(x, y);
-                    int r = (rgb >> 16) & 0xff;
-                    int g = (rgb >> 8) & 0xff;
-                    int b = rgb & 0xff;
-                    int gray = (r + g + b) / 3;
-                    int val = (gray >= thresh) ? 255 : 0;
-                    int newRgb = (255 << 24) | (val << 16) | (val << 8) | val;
-                    out.setRGB(x, y, newRgb);
+            PixelBuffer src = PixelBuffer.wrap(img);
+            PixelBuffer dst = PixelBuffer.create(src.width, src.height);
+            RowBands.forEach(src.height, (band, y0, y1) -> {
+                for (int y = y0; y < y1; y++){
+                    KERNELS.threshold(src.data, src.row(y), dst.data, dst.row(y), src.width, thresh);
                 }
-            }
-            return out;
+            });
+            return dst.image();
         }
         
-        private int automatedThreshold(BufferedImage img) {
-            int width = img.getWidth(), height = img.getHeight();
-            int[][] gray = new int[width][height];
-            int sum = 0;
-            for (int y = 0; y < height; y++){
-                for (int x = 0; x < width; x++){
-                    int rgb = img.getRGB(x, y);
-                    int r = (rgb >> 16) & 0xff;
-                    int g = (rgb >> 8) & 0xff;
-                    int b = rgb & 0xff;
-                    int gVal = (r + g + b) / 3;
-                    gray[x][y] = gVal;
-                    sum += gVal;
+        // Iterative threshold, run on the 256-bin gray histogram.
+        int automatedThreshold(BufferedImage img) {
+            return ImageStats.of(img).isodataThreshold();
+        }
+        
+        // Otsu threshold, run on the 256-bin gray histogram.
+        int otsuThreshold(BufferedImage img) {
+            return ImageStats.of(img).otsuThreshold();
+        }
+        
+        // Multi-level Otsu: the classes - 1 thresholds of the image's gray histogram.
+        int[] multiOtsuThresholds(BufferedImage img, int classes) {
+            return ImageStats.of(img).multiOtsuThresholds(classes);
+        }
+        
+        // Map each pixel to the gray level of its class between the thresholds, from black for
+        // the darkest class to white for the brightest, with evenly spaced levels in between.
+        private BufferedImage applyLevels(BufferedImage img, int[] thresholds) {
+            return new LutChain().thenGray(LutChain.levels(thresholds)).apply(img);
+        }
+        
+        // Sauvola's dynamic range of the standard deviation.
+        static final double SAUVOLA_R = 128;
+        
+        // Default weight k of an adaptive threshold method ("niblack", "sauvola" or "bradley").
+        static double defaultK(String method) {
+            switch(method) {
+                case "niblack": return -0.2;
+                case "sauvola": return 0.5;
+                case "bradley": return 0.15;
+            }
+            throw new IllegalArgumentException("Unknown adaptive threshold: " + method);
+        }
+        
+        /**
+         * Adaptive threshold for unevenly lit documents: every pixel is compared with a
+         * threshold computed from the mean m (and standard deviation s) of the gray levels in
+         * the size x size window around it, with only pixels inside the image counted at the
+         * borders:
+         * <ul>
+         * <li>niblack: T = m + k * s</li>
+         * <li>sauvola: T = m * (1 + k * (s / R - 1)) with R = 128</li>
+         * <li>bradley: T = m * (1 - k), i.e. pixels at least k (a fraction) darker than their
+         *     surroundings are black</li>
+         * </ul>
+         * Pixels brighter than T become white, the others black. The window sums come from
+         * integral images of the gray levels (and their squares), so the cost per pixel does
+         * not depend on the window size, and the row bands run in parallel.
+         *
+         * @param img    the input image
+         * @param method "niblack", "sauvola" or "bradley"
+         * @param size   the window size (rounded up to an odd number)
+         * @param k      the weight of the method
+         * @return a new black and white image
+         */
+        private BufferedImage adaptiveThreshold(BufferedImage img, String method, int size, double k) {
+            defaultK(method);
+            PixelBuffer src = PixelBuffer.wrap(img);
+            int width = src.width;
+            int height = src.height;
+            boolean bradley = method.equals("bradley");
+            boolean sauvola = method.equals("sauvola");
+            int[] gray = grayPlane(img);
+            float[] mean = new float[width * height];
+            float[] variance = bradley ? null : new float[width * height];
+            IntegralImage table = new IntegralImage(gray, width, height, !bradley);
+            PixelBuffer dst = PixelBuffer.create(width, height);
+            RowBands.forEach(height, (band, y0, y1) -> {
+                if (bradley) {
+                    table.box(size / 2, true, 0, mean, y0, y1);
+                } else {
+                    table.meanVariance(size / 2, mean, variance, y0, y1);
                 }
-            }
-            int T = sum / (width * height);
-            boolean converged = false;
-            while (!converged) {
-                long sum1 = 0, sum2 = 0;
-                int count1 = 0, count2 = 0;
-                for (int y = 0; y < height; y++){
-                    for (int x = 0; x < width; x++){
-                        if (gray[x][y] < T) {
-                            sum1 += gray[x][y];
-                            count1++;
+                for (int y = y0; y < y1; y++) {
+                    int di = dst.row(y);
+                    for (int x = 0; x < width; x++) {
+                        int i = y * width + x;
+                        double t;
+                        if (bradley) {
+                            t = mean[i] * (1 - k);
                         } else {
-                            sum2 += gray[x][y];
-                            count2++;
+                            double s = Math.sqrt(variance[i]);
+                            t = sauvola ? mean[i] * (1 + k * (s / SAUVOLA_R - 1)) : mean[i] + k * s;
                         }
+                        dst.data[di + x] = PixelBuffer.packGray((gray[i] > t) ? 255 : 0);
                     }
                 }
-                int T_new = T;
-                if (count1 > 0 && count2 > 0) {
-                    T_new = (int)Math.round((sum1 / (double)count1 + sum2 / (double)count2) / 2.0);
+            });
+            return dst.image();
+        }
+        
+        // Components of the foreground (gray >= 128) of a thresholded image.
+        ConnectedComponents labelComponents(BufferedImage img, boolean eight) {
+            return ConnectedComponents.label(grayPlane(img), img.getWidth(), img.getHeight(), eight);
+        }
+        
+        // Number of components, with their mean and largest area, for the log.
+        static String componentSummary(ConnectedComponents cc) {
+            long total = 0;
+            for (int c = 1; c <= cc.count; c++) {
+                total += cc.area(c);
+            }
+            return cc.count + " component(s), mean area " + ((cc.count > 0) ? String.format("%.1f", (double) total / cc.count) : "0")
+                    + ", largest " + cc.largestArea() + " pixels";
+        }
+        
+        // Map of the local standard deviation of the gray levels over size x size windows
+        // (rounded and clamped to [0,255]), which shows edges and texture.
+        private BufferedImage localStdDev(BufferedImage img, int size) {
+            PixelBuffer src = PixelBuffer.wrap(img);
+            int width = src.width;
+            int height = src.height;
+            float[] mean = new float[width * height];
+            float[] variance = new float[width * height];
+            IntegralImage table = new IntegralImage(grayPlane(img), width, height, true);
+            int[] out = new int[width * height];
+            RowBands.forEach(height, (band, y0, y1) -> {
+                table.meanVariance(size / 2, mean, variance, y0, y1);
+                for (int i = y0 * width; i < y1 * width; i++) {
+                    out[i] = clamp((int) Math.round(Math.sqrt(variance[i])));
                 }
-                if (Math.abs(T_new - T) < 1)
-                    converged = true;
-                T = T_new;
-            }
-            return T;
+            });
+            return createGrayImage(out, width, height);
         }
 
     
+    // ------------------- Named Operations (headless) -------------------
+    // Operation names understood by applyNamed, as written on the batch command line.
+    static final String[] NAMED_OPS = {
+        "negative", "rescale", "shift", "shift-rescale", "bitwise-not", "log", "power",
+        "random-lut", "bitplane", "conv", "blur", "noise", "min", "max", "midpoint",
+        "median", "median-rgb", "equalise", "threshold", "multi-otsu", "box", "local-std",
+        "niblack", "sauvola", "bradley", "erode", "dilate", "open", "close", "tophat", "blackhat",
+        "gradient", "label"
+    };
+    
+    /**
+     * Applies one single-image operation, selected by name, to the whole image. The parameter
+     * is the text after the first ':' of a batch step (null if there is none), e.g. "5" for
+     * "median:5", "auto" for "threshold:auto" or "sobelx:norm" for "conv:sobelx:norm". The
+     * mask of conv is a preset name or a custom kernel (see convKernel).
+     * Parameters are checked against the same ranges as the menu dialogs.
+     *
+     * @throws IllegalArgumentException if the name or the parameter is not valid
+     */
+    BufferedImage applyNamed(BufferedImage img, String name, String arg) {
+        LutChain chain = new LutChain();
+        if (appendPoint(chain, name, arg)) {
+            // The point operations with their own kernel skip the table look-ups.
+            switch(name) {
+                case "negative":
+                case "bitwise-not":
+                    return applyNegative(img);
+                case "rescale":
+                    return applyRescale(img, Float.parseFloat(arg));
+                case "shift":
+                    return applyShift(img, Integer.parseInt(arg));
+                case "threshold":
+                    return simpleThreshold(img, Integer.parseInt(arg));
+            }
+            return chain.apply(img);
+        }
+        switch(name) {
+            case "shift-rescale":
+                return applyShiftAndRescale(img);
+            case "conv": {
+                String[] parts = required(name, arg).split(":");
+                boolean normalize = parts.length > 1 && parts[1].equals("norm");
+                check(parts.length == 1 || normalize, "Expected conv:<mask> or conv:<mask>:norm");
+                boolean custom = isCustomKernel(parts[0]);
+                return applyConvolution(img, convKernel(parts[0]), !custom && presetUsesAbs(convPreset(parts[0])), normalize);
+            }
+            case "blur": {
+                double sigma = Double.parseDouble(required(name, arg));
+                check(sigma > 0, "Sigma must be greater than 0.");
+                return applyGaussianBlur(img, sigma);
+            }
+            case "noise":
+                return addSaltAndPepperNoise(img, Double.parseDouble(required(name, arg)));
+            case "min":
+                return applyMinFilter(img, filterSize(name, arg));
+            case "max":
+                return applyMaxFilter(img, filterSize(name, arg));
+            case "midpoint":
+                return applyMidpointFilter(img, filterSize(name, arg));
+            case "median":
+                return applyMedianFilter(img, filterSize(name, arg));
+            case "median-rgb":
+                return applyColorMedianFilter(img, filterSize(name, arg));
+            case "equalise":
+                return histogramEqualisation(img);
+            case "threshold":
+                // A fixed threshold is a point operation; only "auto" (iterative) and "otsu" need
+                // the whole image first.
+                check("auto".equals(arg) || "otsu".equals(arg), "Expected threshold:<0-255>, threshold:auto or threshold:otsu");
+                return simpleThreshold(img, "otsu".equals(arg) ? otsuThreshold(img) : automatedThreshold(img));
+            case "multi-otsu":
+                return applyLevels(img, multiOtsuThresholds(img, otsuClasses(name, arg)));
+            case "box":
+                return applyBoxBlur(img, filterSize(name, arg));
+            case "local-std":
+                return localStdDev(img, filterSize(name, arg));
+            case "erode":
+            case "dilate":
+            case "open":
+            case "close":
+            case "tophat":
+            case "blackhat":
+            case "gradient":
+                return applyMorphology(img, name, Morphology.Element.parse(required(name, arg)));
+            case "label":
+                return labelComponents(img, connectivity(arg) == 8).toImage();
+            case "niblack":
+            case "sauvola":
+            case "bradley": {
+                String[] parts = adaptiveParams(name, arg);
+                double k = (parts.length > 1) ? Double.parseDouble(parts[1]) : defaultK(name);
+                return adaptiveThreshold(img, name, filterSize(name, parts[0]), k);
+            }
+        }
+        throw new IllegalArgumentException("Unknown operation: " + name);
+    }
+    
+    /**
+     * If name is a point operation, append its table to the chain and return true; return
+     * false for any other operation. The names and parameters are those of applyNamed.
+     *
+     * @throws IllegalArgumentException if the parameter of a point operation is not valid
+     */
+    boolean appendPoint(LutChain chain, String name, String arg) {
+        switch(name) {
+            case "negative":
+            case "bitwise-not":
+                chain.then(LutChain.negative());
+                return true;
+            case "rescale": {
+                float factor = Float.parseFloat(required(name, arg));
+                check(factor >= 0 && factor <= 2, "Scaling factor must be between 0 and 2.");
+                chain.then(LutChain.rescale(factor));
+                return true;
+            }
+            case "shift":
+                chain.then(LutChain.shift(Integer.parseInt(required(name, arg))));
+                return true;
+            case "log":
+                chain.then(LutChain.log((arg != null) ? Float.parseFloat(arg) : 255f / (float)Math.log(256)));
+                return true;
+            case "power": {
+                float p = Float.parseFloat(required(name, arg));
+                check(p >= 0.01f && p <= 25f, "Power must be between 0.01 and 25.");
+                chain.then(LutChain.power(p));
+                return true;
+            }
+            case "random-lut":
+                chain.then(LutChain.random(new Random()));
+                return true;
+            case "bitplane": {
+                int bit = Integer.parseInt(required(name, arg));
+                check(bit >= 0 && bit <= 7, "Bit must be between 0 and 7.");
+                chain.thenGray(LutChain.bitPlane(bit));
+                return true;
+            }
+            case "threshold":
+                if ("auto".equals(arg) || "otsu".equals(arg)) {
+                    return false;
+                }
+                chain.thenGray(LutChain.threshold(Integer.parseInt(required(name, arg))));
+                return true;
+        }
+        return false;
+    }
+    
+    // Two-image operations by name: add, subtract, multiply, divide, and, or, xor.
+    BufferedImage combineNamed(BufferedImage img1, BufferedImage img2, String op) {
+        switch(op) {
+            case "add":
+            case "subtract":
+            case "multiply":
+            case "divide":
+                return applyArithmeticOperation(img1, img2, op);
+            case "and":
+            case "or":
+            case "xor":
+                return applyBitwiseOperation(img1, img2, op);
+        }
+        throw new IllegalArgumentException("Unknown operation: " + op);
+    }
+    
+    // Preset names are matched ignoring case, spaces and punctuation ("sobelx" = "Sobel X").
+    private static String convPreset(String mask) {
+        String preset = null;
+        for (String p : KERNEL_PRESETS) {
+            if (p.replaceAll("[^A-Za-z0-9]", "").equalsIgnoreCase(mask.replaceAll("[^A-Za-z0-9]", ""))) {
+                preset = p;
+            }
+        }
+        check(preset != null, "Unknown convolution mask: " + mask);
+        return preset;
+    }
+    
+    // True if a conv mask is a custom kernel rather than a preset name.
+    static boolean isCustomKernel(String mask) {
+        return mask.startsWith("@") || mask.matches("[-+0-9.eE;/\\s]+");
+    }
+    
+    /**
+     * Kernel of a conv mask: a preset name, an inline matrix with rows separated by '/' and
+     * values by ';' or spaces ("0;-1;0/-1;5;-1/0;-1;0"), or @file for a text file with one row
+     * per line and values separated by spaces, tabs or commas (blank lines and lines starting
+     * with '#' are skipped). Custom kernels may have any size; rows must all be as long.
+     *
+     * @throws IllegalArgumentException if the mask is unknown, the file cannot be read or the
+     *                                  matrix is malformed
+     */
+    static float[][] convKernel(String mask) {
+        if (!isCustomKernel(mask)) {
+            return presetKernel(convPreset(mask));
+        }
+        java.util.List<String> rows = new java.util.ArrayList<>();
+        String separator;
+        if (mask.startsWith("@")) {
+            try {
+                for (String line : java.nio.file.Files.readAllLines(java.nio.file.Paths.get(mask.substring(1)))) {
+                    if (!line.trim().isEmpty() && !line.trim().startsWith("#")) {
+                        rows.add(line);
+                    }
+                }
+            } catch (IOException | java.nio.file.InvalidPathException e) {
+                throw new IllegalArgumentException("Cannot read kernel file " + mask.substring(1) + ": " + e.getMessage());
+            }
+            separator = "[\\s,]+";
+        } else {
+            rows.addAll(Arrays.asList(mask.split("/")));
+            separator = "[\\s;]+";
+        }
+        check(!rows.isEmpty(), "Empty convolution kernel.");
+        float[][] kernel = new float[rows.size()][];
+        for (int m = 0; m < kernel.length; m++) {
+            String[] values = rows.get(m).trim().split(separator);
+            check(!values[0].isEmpty(), "Empty row " + (m + 1) + " in convolution kernel.");
+            check(m == 0 || values.length == kernel[0].length, "Rows of a convolution kernel must all have the same length.");
+            kernel[m] = new float[values.length];
+            for (int n = 0; n < values.length; n++) {
+                kernel[m][n] = Float.parseFloat(values[n]);
+                check(Float.isFinite(kernel[m][n]), "Kernel values must be finite.");
+            }
+        }
+        return kernel;
+    }
+    
+    /**
+     * Radius of the neighbourhood a named operation reads around each output pixel, so that
+     * applying it to a part of an image extended by this many pixels on every side gives the
+     * exact result for that part (used by TiledImage). Returns -1 for operations whose result
+     * cannot be computed part by part: those that need statistics of the whole image
+     * (shift-rescale, equalise, threshold:auto, threshold:otsu, multi-otsu, conv:<mask>:norm)
+     * and random-lut, which would draw a different table for every part.
+     *
+     * @throws IllegalArgumentException if the name or the parameter is not valid
+     */
+    static int haloOf(String name, String arg) {
+        switch(name) {
+            case "negative":
+            case "bitwise-not":
+            case "rescale":
+            case "shift":
+            case "log":
+            case "power":
+            case "bitplane":
+            case "noise":
+                return 0;
+            case "threshold":
+                return ("auto".equals(arg) || "otsu".equals(arg)) ? -1 : 0;
+            case "multi-otsu":
+                otsuClasses(name, arg);
+                return -1;
+            case "random-lut":
+            case "shift-rescale":
+            case "equalise":
+                return -1;
+            case "label":
+                // Components can span the whole image.
+                connectivity(arg);
+                return -1;
+            case "conv": {
+                String[] parts = required(name, arg).split(":");
+                if (parts.length > 1) {
+                    return -1;
+                }
+                float[][] kernel = convKernel(parts[0]);
+                return Math.max(kernel.length, kernel[0].length) / 2;
+            }
+            case "blur": {
+                double sigma = Double.parseDouble(required(name, arg));
+                check(sigma > 0, "Sigma must be greater than 0.");
+                if (sigma <= BOX_BLUR_SIGMA) {
+                    return Convolution.gaussianKernel(sigma).length / 2;
+                }
+                // The three box passes each widen the neighbourhood by their radius.
+                int halo = 0;
+                for (int size : Convolution.boxSizes(sigma, 3)) {
+                    halo += size / 2;
+                }
+                return halo;
+            }
+            case "min":
+            case "max":
+            case "midpoint":
+            case "median":
+            case "median-rgb":
+            case "box":
+            case "local-std":
+                return filterSize(name, arg) / 2;
+            case "niblack":
+            case "sauvola":
+            case "bradley":
+                return filterSize(name, adaptiveParams(name, arg)[0]) / 2;
+            case "erode":
+            case "dilate":
+            case "gradient":
+                return Morphology.Element.parse(required(name, arg)).radius();
+            case "open":
+            case "close":
+            case "tophat":
+            case "blackhat":
+                // An erosion and a dilation in sequence.
+                return 2 * Morphology.Element.parse(required(name, arg)).radius();
+        }
+        throw new IllegalArgumentException("Unknown operation: " + name);
+    }
+    
+    private static String required(String name, String arg) {
+        check(arg != null, "Operation " + name + " needs a parameter (" + name + ":<value>)");
+        return arg;
+    }
+    
+    // Connectivity of "label[:4|8]" (8 if omitted).
+    static int connectivity(String arg) {
+        int n = (arg != null) ? Integer.parseInt(arg) : 8;
+        check(n == 4 || n == 8, "Connectivity must be 4 or 8.");
+        return n;
+    }
+    
+    // Number of classes of "multi-otsu:<classes>" (3 if omitted).
+    static int otsuClasses(String name, String arg) {
+        int classes = (arg != null) ? Integer.parseInt(arg) : 3;
+        check(classes >= 2 && classes <= 16, "Number of classes must be between 2 and 16.");
+        return classes;
+    }
+    
+    // {size} or {size, k} of "niblack:<size>[:k]", "sauvola:<size>[:k]" and "bradley:<size>[:k]".
+    private static String[] adaptiveParams(String name, String arg) {
+        String[] parts = required(name, arg).split(":");
+        check(parts.length <= 2, "Expected " + name + ":<size> or " + name + ":<size>:<k>");
+        return parts;
+    }
+    
+    static int filterSize(String name, String arg) {
+        int size = Integer.parseInt(required(name, arg));
+        check(size >= 1, "Filter size must be at least 1.");
+        return size;
+    }
+    
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalArgumentException(message);
+        }
+    }
+    
+    // Expression for the statistics commands: the processed image, or its ROI if one is set.
+    // Asking again for the same image and ROI reuses the gray plane and histogram.
+    private ImageExpr statsTarget() {
+        if (processedExpr == null || processedExpr.sourceImage() != processedImage) {
+            processedExpr = ImageExpr.source(this, processedImage);
+        }
+        Rectangle region = currentROI();
+        return (region != null) ? processedExpr.crop(region) : processedExpr;
+    }
+    
     // ------------------- ROI Wrapper -------------------
-    // Applies a function to the ROI subimage if ROI is defined; otherwise, applies to full image.
-    private BufferedImage applyOnROI(BufferedImage img, Function<BufferedImage, BufferedImage> func) {
-        if (roi == null) {
+    // Snapshot of the current ROI clipped to the processed image, or null if there is none.
+    // Jobs capture this when they are submitted so a later ROI change cannot affect them.
+    private Rectangle currentROI() {
+        if (roi == null || processedImage == null) {
+            return null;
+        }
+        Rectangle r = roi.intersection(new Rectangle(0, 0, processedImage.getWidth(), processedImage.getHeight()));
+        return r.isEmpty() ? null : r;
+    }
+    
+    // Applies a function to the region subimage if a region is given; otherwise, applies to full image.
+    private BufferedImage applyOnROI(BufferedImage img, Rectangle region, Function<BufferedImage, BufferedImage> func) {
+        if (region == null) {
             return func.apply(img);
         } else {
-            // Extract ROI subimage (note: roi is relative to the processed image).
-            BufferedImage sub = img.getSubimage(roi.x, roi.y, roi.width, roi.height);
+            // Extract ROI subimage (note: the region is relative to the processed image).
+            BufferedImage sub = img.getSubimage(region.x, region.y, region.width, region.height);
             BufferedImage processedSub = func.apply(sub);
             // Create a copy of the full image.
             BufferedImage result = copyImage(img);
             Graphics g = result.getGraphics();
-            g.drawImage(processedSub, roi.x, roi.y, null);
+            g.drawImage(processedSub, region.x, region.y, null);
             g.dispose();
             return result;
         }
     }
     // A helper that applies a two–image operation only on the ROI region of the first image.
-    private BufferedImage applyOnROI2(BufferedImage img1, BufferedImage img2, java.util.function.BiFunction<BufferedImage, BufferedImage, BufferedImage> func) {
-        if (roi == null) {
+    private BufferedImage applyOnROI2(BufferedImage img1, BufferedImage img2, Rectangle region, java.util.function.BiFunction<BufferedImage, BufferedImage, BufferedImage> func) {
+        if (region == null) {
             return func.apply(img1, img2);
         } else {
             // Extract ROI from both images (assuming both are the same size)
-            BufferedImage roi1 = img1.getSubimage(roi.x, roi.y, roi.width, roi.height);
-            BufferedImage roi2 = img2.getSubimage(roi.x, roi.y, roi.width, roi.height);
+            BufferedImage roi1 = img1.getSubimage(region.x, region.y, region.width, region.height);
+            BufferedImage roi2 = img2.getSubimage(region.x, region.y, region.width, region.height);
             BufferedImage roiResult = func.apply(roi1, roi2);
             // Paste the ROI result back into a copy of img1.
             BufferedImage result = copyImage(img1);
             Graphics g = result.getGraphics();
-            g.drawImage(roiResult, roi.x, roi.y, null);
+            g.drawImage(roiResult, region.x, region.y, null);
             g.dispose();
             return result;
         }
     }
 
+    // ------------------- Background Jobs -------------------
+    // Runs an operation on processedImage off the EDT. Only one job runs at a time; when it
+    // completes, the undo step is recorded and the result swapped in on the EDT. region is the
+    // only area the operation changes, or null if it may change the whole image.
+    private void runJob(String name, Rectangle region, Function<BufferedImage, BufferedImage> op, Supplier<String> doneMessage) {
+        runJob(name, null, region, op, doneMessage);
+    }
+    
+    // As above; if params is not null, the result is looked up in resultCache first and added
+    // to it afterwards. params must then describe everything the result depends on besides
+    // the pixels of processedImage and the region.
+    private void runJob(String name, String params, Rectangle region, Function<BufferedImage, BufferedImage> op, Supplier<String> doneMessage) {
+        if (currentJob != null) {
+            JOptionPane.showMessageDialog(this, currentJob.name + " is still running. Wait for it or use Edit > Cancel Operation.");
+            return;
+        }
+        currentJob = new ImageJob(name, params, processedImage, region, op, doneMessage);
+        log(name + " started.");
+        currentJob.execute();
+    }
+    
+    // Run a single-image operation on the current ROI (or the whole image).
+    private void runOnROI(String name, Function<BufferedImage, BufferedImage> op, String doneMessage) {
+        final Rectangle region = currentROI();
+        runJob(name, region, (img) -> applyOnROI(img, region, op), () -> doneMessage);
+    }
+    
+    // Run a deterministic single-image operation through the result cache. Used for the
+    // neighbourhood filters; point operations take a single pass, about as long as hashing
+    // the image, so they are not worth caching.
+    private void runOnROI(String name, String params, Function<BufferedImage, BufferedImage> op, String doneMessage) {
+        final Rectangle region = currentROI();
+        runJob(name, params, region, (img) -> applyOnROI(img, region, op), () -> doneMessage);
+    }
+    
+    // Run a two-image operation with secondImage on the current ROI (or the whole image).
+    // A second image of another size is first resampled to the size of processedImage.
+    private void runOnROI2(String name, BufferedImage other, java.util.function.BiFunction<BufferedImage, BufferedImage, BufferedImage> op, String doneMessage) {
+        final Rectangle region = currentROI();
+        runJob(name, region, (img) -> {
+            BufferedImage b = other;
+            if (b.getWidth() != img.getWidth() || b.getHeight() != img.getHeight()) {
+                b = DisplayImage.resample(b, img.getWidth(), img.getHeight());
+            }
+            return applyOnROI2(img, b, region, op);
+        }, () -> doneMessage);
+    }
+    
+    // A cancellable operation on a snapshot of processedImage. Band progress from RowBands is
+    // reported to the log in 10% steps. The undo step is computed here too, off the EDT.
+    private class ImageJob extends SwingWorker<BufferedImage, String> implements RowBands.Monitor {
+        private final String name;
+        private final String params;       // null if the result is not cached
+        private final BufferedImage input;
+        private final Rectangle region;
+        private final Function<BufferedImage, BufferedImage> op;
+        private final Supplier<String> doneMessage;
+        private UndoHistory.Entry undoStep;
+        private boolean cached;
+        // 0: not started, 1: running, 2: cancelled before it started, 3: finished. After a
+        // cancel, done() comes while doInBackground may still be running until its next band
+        // check, so currentJob is only released once done() was called and the worker stopped.
+        private final java.util.concurrent.atomic.AtomicInteger state = new java.util.concurrent.atomic.AtomicInteger();
+        private boolean doneCalled;   // EDT only
+        
+        ImageJob(String name, String params, BufferedImage input, Rectangle region, Function<BufferedImage, BufferedImage> op, Supplier<String> doneMessage) {
+            this.name = name;
+            this.params = params;
+            this.input = input;
+            this.region = region;
+            this.op = op;
+            this.doneMessage = doneMessage;
+        }
+        
+        @Override
+        protected BufferedImage doInBackground() {
+            if (!state.compareAndSet(0, 1)) {
+                return null;
+            }
+            RowBands.setMonitor(this);
+            try {
+                ResultCache.Key key = (params != null) ? ResultCache.key(input, name, params, region) : null;
+                BufferedImage result = (key != null) ? resultCache.get(key, input) : null;
+                cached = result != null;
+                if (!cached) {
+                    result = op.apply(input);
+                    if (key != null) {
+                        resultCache.put(key, result);
+                    }
+                }
+                if (key != null) {
+                    // Only the tiles in the region need hashing again for the next operation.
+                    ResultCache.inherit(input, result, region);
+                }
+                undoStep = UndoHistory.delta(input, result, region);
+                return result;
+            } finally {
+                RowBands.setMonitor(null);
+                state.set(3);
+                SwingUtilities.invokeLater(this::release);
+            }
+        }
+        
+        // Let the next job start, once this one has both completed and stopped running.
+        private void release() {
+            if (doneCalled && state.get() >= 2 && currentJob == this) {
+                currentJob = null;
+            }
+        }
+        
+        @Override
+        public void bandDone(int done, int total) {
+            // Publish only when a 10% boundary is crossed; each count is seen exactly once.
+            int step = done * 10 / total;
+            if (step != (done - 1) * 10 / total) {
+                publish(name + ": " + (step * 10) + "%");
+            }
+        }
+        
+        @Override
+        protected void process(java.util.List<String> chunks) {
+            for (String message : chunks) {
+                log(message);
+            }
+        }
+        
+        @Override
+        protected void done() {
+            doneCalled = true;
+            state.compareAndSet(0, 2);
+            release();
+            if (isCancelled()) {
+                log(name + " cancelled.");
+                return;
+            }
+            BufferedImage result;
+            try {
+                result = get();
+            } catch (InterruptedException | java.util.concurrent.CancellationException ex) {
+                log(name + " cancelled.");
+                return;
+            } catch (java.util.concurrent.ExecutionException ex) {
+                Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                log(name + " failed: " + cause);
+                JOptionPane.showMessageDialog(Demo.this, name + " failed: " + cause.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            if (processedImage != input) {
+                // The image was replaced (e.g. undo or a new file) while the job was running.
+                log(name + " discarded: the image changed while it was running.");
+                return;
+            }
+            undoHistory.push(undoStep);
+            processedImage = result;
+            repaint();
+            log(doneMessage.get() + (cached ? " (cached result)" : ""));
+        }
+    }
+
 
     // ------------------- Logging -------------------
+    // Safe to call from any thread; messages from background jobs are appended on the EDT.
     private void log(String message) {
+        if (logArea != null && !SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> log(message));
+            return;
+        }
         if (logArea != null) {
             logArea.append(message + "\n");
             logArea.setCaretPosition(logArea.getDocument().getLength());
@@ -950,15 +1755,25 @@ public class Demo extends JPanel implements ActionListener {
     }
     
     // ------------------- Undo & Reset -------------------
-    private void backupForUndo() {
-        if (processedImage != null)
-            undoStack.push(copyImage(processedImage));
-    }
-    
-    // Undo the last operation.
+    // Undo the last operation. ROI steps are patched back into processedImage in place, so
+    // undo waits for a running job (which reads processedImage) to finish.
     private void undo() {
-        if (!undoStack.isEmpty()) {
-            processedImage = undoStack.pop();
+        if (currentJob != null) {
+            JOptionPane.showMessageDialog(this, currentJob.name + " is still running. Wait for it or use Edit > Cancel Operation.");
+        } else if (!undoHistory.isEmpty()) {
+            try {
+                processedImage = undoHistory.undo(processedImage);
+            } catch (IOException ex) {
+                undoHistory.clear();
+                JOptionPane.showMessageDialog(this, "Undo failed: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            // The pixels may have changed without the image changing identity.
+            processedExpr = null;
+            roiStats = null;
+            ImageStats.invalidate(processedImage);
+            ResultCache.invalidate(processedImage);
+            processedDisplay.invalidate();
             repaint();
             log("Undo performed.");
         } else {
@@ -966,10 +1781,10 @@ public class Demo extends JPanel implements ActionListener {
         }
     }
     
-    // Reset processed image to the original and clear the undo stack.
+    // Reset processed image to the original and clear the undo history.
     private void resetToOriginal() {
         processedImage = copyImage(originalImage);
-        undoStack.clear();
+        undoHistory.clear();
         roi = null;  // also clear ROI
         repaint();
         log("Reset to original image.");
@@ -981,7 +1796,6 @@ public class Demo extends JPanel implements ActionListener {
     @Override
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
-        int labelHeight = 20; // vertical space reserved for labels
         int x = 0;
         
         // Draw left image (originalImage) with label "Original"
@@ -990,19 +1804,20 @@ public class Demo extends JPanel implements ActionListener {
             g.setColor(Color.BLACK);
             g.drawString("Original Image", x + 10, 15);
             // Draw image below the label
-            g.drawImage(originalImage, x, labelHeight, this);
-            x += originalImage.getWidth() + gap;
+            g.drawImage(originalDisplay.get(originalImage), x, labelHeight, this);
+            x += getLeftImageWidth() + gap;
         }
         
         // Draw middle image (secondImage) with label "Second"
         if (secondImage != null) {
             g.setColor(Color.BLACK);
             g.drawString("Second Image", x + 10, 15);
-            g.drawImage(secondImage, x, labelHeight, this);
+            g.drawImage(secondDisplay.get(secondImage), x, labelHeight, this);
         } else {
             // Draw placeholder border and label if second image not loaded
             g.setColor(Color.GRAY);
-            g.drawRect(x, labelHeight, originalImage.getWidth(), originalImage.getHeight());
+            Dimension d = originalDisplay.size(originalImage);
+            g.drawRect(x, labelHeight, d.width, d.height);
             g.drawString("Load second image", x + 10, labelHeight + 20);
             g.setColor(Color.BLACK);
             g.drawString("Second", x + 10, 15);
@@ -1013,16 +1828,17 @@ public class Demo extends JPanel implements ActionListener {
         if (processedImage != null) {
             g.setColor(Color.BLACK);
             g.drawString("Processed Image", x + 10, 15);
-            g.drawImage(processedImage, x, labelHeight, this);
+            g.drawImage(processedDisplay.get(processedImage), x, labelHeight, this);
         }
         
         // Draw ROI rectangle (relative to processed image area)
-        if (roi != null) {
+        if (roi != null && processedImage != null) {
             Graphics2D g2d = (Graphics2D) g;
             g2d.setColor(Color.RED);
             // Calculate offset based on the positions of the first two images and the gap
             int offsetX = getLeftImageWidth() + getMiddleImageWidth() + 2 * gap;
-            g2d.drawRect(offsetX + roi.x, roi.y + labelHeight, roi.width, roi.height);
+            Rectangle r = processedDisplay.toDisplay(processedImage, roi);
+            g2d.drawRect(offsetX + r.x, r.y + labelHeight, r.width, r.height);
         }
     }
     
@@ -1035,35 +1851,7 @@ public class Demo extends JPanel implements ActionListener {
             if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
                 File file = chooser.getSelectedFile();
                 try {
-                    BufferedImage img = null;
-                    // Check if the file is RAW (by extension)
-                    if (file.getName().toLowerCase().endsWith(".raw")) {
-                        String wStr = JOptionPane.showInputDialog(this, "Enter width for RAW image (leave blank to guess):", "");
-                        String hStr = JOptionPane.showInputDialog(this, "Enter height for RAW image (leave blank to guess):", "");
-                        int w, h;
-                        if (wStr.trim().isEmpty() || hStr.trim().isEmpty()) {
-                            Dimension d = guessDimensions(file);
-                            w = d.width;
-                            h = d.height;
-                            log("Guessed RAW dimensions: " + w + " x " + h);
-                        } else {
-                            w = Integer.parseInt(wStr);
-                            h = Integer.parseInt(hStr);
-                        }
-                        img = readRawImage(file, w, h);
-                    }else {
-                        img = ImageIO.read(file);
-                        if (img.getType() != BufferedImage.TYPE_INT_RGB) {
-                            BufferedImage temp = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
-                            Graphics g = temp.getGraphics();
-                            g.drawImage(img, 0, 0, null);
-                            g.dispose();
-                            img = temp;
-                        }
-                    }
-                    // Force resize to 512 x 512
-                    img = resizeImage(img);
-                    originalImage = img;
+                    originalImage = readImageFile(file);
                     resetToOriginal();
                     revalidate();
                     repaint();
@@ -1083,22 +1871,50 @@ public class Demo extends JPanel implements ActionListener {
             selectingROI = true;
             roi = null;  // Clear any previous ROI.
             JOptionPane.showMessageDialog(this, "Click and drag on the processed image to select ROI.");
+            showRoiStats();
             log("ROI selection mode entered.");
         } else if (cmd.equals("Clear ROI")) {
             roi = null;
+            if (roiStatsDialog != null) {
+                roiStatsDialog.setVisible(false);
+            }
             repaint();
             log("ROI cleared.");
         }
+        else if (cmd.equals("Cancel Operation")) {
+            if (currentJob != null) {
+                currentJob.cancel(true);
+            } else {
+                log("No operation is running.");
+            }
+        }
+        else if (cmd.equals("Parallelism")) {
+            String input = JOptionPane.showInputDialog(this, "Enter number of worker threads:", String.valueOf(RowBands.getParallelism()));
+            if (input != null) {
+                try {
+                    int threads = Integer.parseInt(input.trim());
+                    RowBands.setParallelism(threads);
+                    log("Parallelism set to " + threads + " thread(s).");
+                } catch (IllegalArgumentException ex) {
+                    JOptionPane.showMessageDialog(this, "Invalid number of threads.");
+                }
+            }
+        }
+        else if (cmd.equals("Result Cache")) {
+            String summary = resultCache.summary();
+            log("Result cache: " + summary);
+            Object[] options = {"Clear", "Close"};
+            int choice = JOptionPane.showOptionDialog(this, summary, "Result Cache", JOptionPane.DEFAULT_OPTION,
+                    JOptionPane.INFORMATION_MESSAGE, null, options, options[1]);
+            if (choice == 0) {
+                resultCache.clear();
+                log("Result cache cleared.");
+            }
+        }
         else if (cmd.equals("Original")) {
-            backupForUndo();
             resetToOriginal();
         } else if (cmd.equals("Negative")) {
-            backupForUndo();
-            processedImage = (roi != null)
-            ? applyOnROI(processedImage, (img) -> applyNegative(img))
-            : applyNegative(processedImage);
-            repaint();
-            log("Applied negative operation.");
+            runOnROI(cmd, (img) -> applyNegative(img), "Applied negative operation.");
         } else if (cmd.equals("Rescale")) {
             String input = JOptionPane.showInputDialog(this, "Enter scaling factor (0 to 2):", "1.0");
             if (input != null) {
@@ -1107,12 +1923,7 @@ public class Demo extends JPanel implements ActionListener {
                     if (factor < 0 || factor > 2)
                         JOptionPane.showMessageDialog(this, "Scaling factor must be between 0 and 2.");
                     else {
-                        backupForUndo();
-                        processedImage = (roi != null)
-                        ? applyOnROI(processedImage, (img) -> applyRescale(img, factor))
-                        : applyRescale(processedImage, factor);
-                        repaint();
-                        log("Applied rescale operation with factor " + factor);
+                        runOnROI(cmd, (img) -> applyRescale(img, factor), "Applied rescale operation with factor " + factor);
                     }
                 } catch (NumberFormatException ex) {
                     JOptionPane.showMessageDialog(this, "Invalid input for scaling factor.");
@@ -1123,23 +1934,13 @@ public class Demo extends JPanel implements ActionListener {
             if (input != null) {
                 try {
                     int shiftVal = Integer.parseInt(input);
-                    backupForUndo();
-                    processedImage = (roi != null)
-                    ? applyOnROI(processedImage, (img) -> applyShift(img, shiftVal))
-                    : applyShift(processedImage, shiftVal);
-                    repaint();
-                    log("Applied shift operation with value " + shiftVal);
+                    runOnROI(cmd, (img) -> applyShift(img, shiftVal), "Applied shift operation with value " + shiftVal);
                 } catch (NumberFormatException ex) {
                     JOptionPane.showMessageDialog(this, "Invalid input for shift value.");
                 }
             }
         } else if (cmd.equals("Shift+Rescale")) {
-            backupForUndo();
-            processedImage = (roi != null)
-            ? applyOnROI(processedImage, (img) -> applyShiftAndRescale(img))
-            : applyShiftAndRescale(processedImage);
-            repaint();
-            log("Applied shift and rescale operation.");
+            runOnROI(cmd, (img) -> applyShiftAndRescale(img), "Applied shift and rescale operation.");
         }
         // ----- Lab3 Operations -----
         else if (cmd.equals("Arithmetic Add") ||
@@ -1149,50 +1950,36 @@ public class Demo extends JPanel implements ActionListener {
                 if (secondImage == null) {
                     JOptionPane.showMessageDialog(this, "Please load a second image first.");
                 } else {
-                    backupForUndo();
                     String op = "";
                     if (cmd.equals("Arithmetic Add")) op = "add";
                     else if (cmd.equals("Arithmetic Subtract")) op = "subtract";
                     else if (cmd.equals("Arithmetic Multiply")) op = "multiply";
                     else if (cmd.equals("Arithmetic Divide")) op = "divide";
                     final String opFinal = op;
-                    processedImage = applyOnROI2(processedImage, secondImage,
-                    (imgA, imgB) -> applyArithmeticOperation(imgA, imgB, opFinal));
-          repaint();
-          log("Applied arithmetic operation: " + opFinal);
+                    runOnROI2(cmd, secondImage,
+                    (imgA, imgB) -> applyArithmeticOperation(imgA, imgB, opFinal),
+                    "Applied arithmetic operation: " + opFinal);
             }
         } else if (cmd.equals("Bitwise NOT")) {
-            backupForUndo();
-            processedImage = (roi != null)
-            ? applyOnROI(processedImage, (img) -> applyBitwiseNot(img))
-            : applyBitwiseNot(processedImage);
-            repaint();
-            log("Applied bitwise NOT operation.");
+            runOnROI(cmd, (img) -> applyBitwiseNot(img), "Applied bitwise NOT operation.");
         } else if (cmd.equals("Bitwise AND") ||
             cmd.equals("Bitwise OR") ||
             cmd.equals("Bitwise XOR")) {
         if (secondImage == null) {
             JOptionPane.showMessageDialog(this, "Please load a second image first.");
         } else {
-            backupForUndo();
             String op = "";
             if (cmd.equals("Bitwise AND")) op = "and";
             else if (cmd.equals("Bitwise OR")) op = "or";
             else if (cmd.equals("Bitwise XOR")) op = "xor";
             final String opFinal = op;
-            processedImage = applyOnROI2(processedImage, secondImage,
-            (imgA, imgB) -> applyBitwiseOperation(imgA, imgB, opFinal));
-            repaint();
-            log("Applied bitwise operation: " + opFinal);
+            runOnROI2(cmd, secondImage,
+            (imgA, imgB) -> applyBitwiseOperation(imgA, imgB, opFinal),
+            "Applied bitwise operation: " + opFinal);
                 }
         }        // ----- Lab4 Operations -----
         else if (cmd.equals("Point Negative")) {
-            backupForUndo();
-            processedImage = (roi != null)
-            ? applyOnROI(processedImage, (img) -> applyPointNegative(img))
-            : applyPointNegative(processedImage);
-            repaint();
-            log("Applied point negative operation.");
+            runOnROI(cmd, (img) -> applyPointNegative(img), "Applied point negative operation.");
         } else if (cmd.equals("Logarithmic Transform")) {
             String input = JOptionPane.showInputDialog(this, "Enter constant c (or leave blank for automatic):", "");
             Float cVal = null;
@@ -1203,12 +1990,8 @@ public class Demo extends JPanel implements ActionListener {
                     JOptionPane.showMessageDialog(this, "Invalid input for constant c. Using automatic value.");
                 }
             }
-            backupForUndo();
             final Float cValFinal = cVal;
-            processedImage = (roi != null) 
-            ? applyOnROI(processedImage, (img) -> applyLogTransform(img, cValFinal))
-            : applyLogTransform(processedImage, cVal);
-            repaint();
+            runOnROI(cmd, (img) -> applyLogTransform(img, cValFinal), "Applied logarithmic transform.");
         } else if (cmd.equals("Power-Law Transform")) {
             String input = JOptionPane.showInputDialog(this, "Enter power (p, from 0.01 to 25):", "1.0");
             if (input != null) {
@@ -1217,24 +2000,14 @@ public class Demo extends JPanel implements ActionListener {
                     if (p < 0.01f || p > 25f) {
                         JOptionPane.showMessageDialog(this, "Power must be between 0.01 and 25.");
                     } else {
-                        backupForUndo();
-                        processedImage = (roi != null)
-                        ? applyOnROI(processedImage, (img) -> applyPowerLawTransform(img, p))
-                        : applyPowerLawTransform(processedImage, p);
-                        repaint();
-                        log("Applied power-law transform with p = " + p);
+                        runOnROI(cmd, (img) -> applyPowerLawTransform(img, p), "Applied power-law transform with p = " + p);
                     }
                 } catch (NumberFormatException ex) {
                     JOptionPane.showMessageDialog(this, "Invalid input for power.");
                 }
             }
         } else if (cmd.equals("Random LUT Transform")) {
-            backupForUndo();
-            processedImage = (roi != null)
-            ? applyOnROI(processedImage, (img) -> applyRandomLUT(img))
-            : applyRandomLUT(processedImage);
-            repaint();
-            log("Applied random LUT transform.");
+            runOnROI(cmd, (img) -> applyRandomLUT(img), "Applied random LUT transform.");
         } else if (cmd.equals("Bit-Plane Slicing")) {
             String input = JOptionPane.showInputDialog(this, "Enter bit plane (0-7):", "0");
             if (input != null) {
@@ -1243,33 +2016,38 @@ public class Demo extends JPanel implements ActionListener {
                     if (bit < 0 || bit > 7) {
                         JOptionPane.showMessageDialog(this, "Bit must be between 0 and 7.");
                     } else {
-                        backupForUndo();
-                        processedImage = (roi != null)
-                        ? applyOnROI(processedImage, (img) -> applyBitPlaneSlicing(img, bit))
-                        : applyBitPlaneSlicing(processedImage, bit);
-                        repaint();
-                        log("Applied bit-plane slicing for bit " + bit);
+                        runOnROI(cmd, (img) -> applyBitPlaneSlicing(img, bit), "Applied bit-plane slicing for bit " + bit);
                     }
                 } catch (NumberFormatException ex) {
                     JOptionPane.showMessageDialog(this, "Invalid input for bit.");
                 }
             }
+        } else if (cmd.equals("Tone Chain")) {
+            // Several point operations composed into one table: one pass and one undo step.
+            String input = JOptionPane.showInputDialog(this,
+                "Enter point operations, applied left to right\n(negative, rescale:f, shift:n, log[:c], power:p, random-lut, bitplane:b, threshold:t):",
+                "log,power:0.8,rescale:1.2,shift:-10");
+            if (input != null) {
+                try {
+                    LutChain chain = new LutChain();
+                    for (String step : input.split(",")) {
+                        step = step.trim();
+                        int colon = step.indexOf(':');
+                        String name = (colon < 0) ? step : step.substring(0, colon);
+                        String arg = (colon < 0) ? null : step.substring(colon + 1);
+                        if (!appendPoint(chain, name, arg)) {
+                            throw new IllegalArgumentException("Not a point operation: " + step);
+                        }
+                    }
+                    runOnROI(cmd, (img) -> chain.apply(img), "Applied tone chain: " + input);
+                } catch (IllegalArgumentException ex) {
+                    JOptionPane.showMessageDialog(this, "Invalid tone chain: " + ex.getMessage());
+                }
+            }
         }else if (cmd.equals("Convolution")) {
-            // Present a list of sample masks for selection.
-            String[] options = { 
-                "Averaging 3x3", 
-                "Weighted Averaging 3x3", 
-                "4-Neighbour Laplacian", 
-                "8-Neighbour Laplacian", 
-                "4-Neighbour Laplacian Enhancement", 
-                "8-Neighbour Laplacian Enhancement", 
-                "Roberts", 
-                "Roberts2",
-                "Sobel X", 
-                "Sobel Y", 
-                "Gaussian 5x5", 
-                "Laplacian of Gaussian 5x5" 
-            };
+            // Present a list of sample masks for selection, or a custom kernel of any size.
+            String[] options = Arrays.copyOf(KERNEL_PRESETS, KERNEL_PRESETS.length + 1);
+            options[KERNEL_PRESETS.length] = CUSTOM_KERNEL;
             String selection = (String) JOptionPane.showInputDialog(
                 this, 
                 "Select a convolution mask:", 
@@ -1279,105 +2057,28 @@ public class Demo extends JPanel implements ActionListener {
                 options, 
                 options[0]
             );
-            if (selection != null) {
-                float[][] kernel = null;
-                boolean useAbs = false;
-                switch(selection) {
-                    case "Averaging 3x3":
-                        kernel = new float[][] {
-                            {1/9f, 1/9f, 1/9f},
-                            {1/9f, 1/9f, 1/9f},
-                            {1/9f, 1/9f, 1/9f}
-                        };
-                        break;
-                    case "Weighted Averaging 3x3":
-                        kernel = new float[][] {
-                            {1/16f, 2/16f, 1/16f},
-                            {2/16f, 4/16f, 2/16f},
-                            {1/16f, 2/16f, 1/16f}
-                        };
-                        break;
-                    case "4-Neighbour Laplacian":
-                        kernel = new float[][] {
-                            {0, -1, 0},
-                            {-1, 4, -1},
-                            {0, -1, 0}
-                        };
-                        break;
-                    case "8-Neighbour Laplacian":
-                        kernel = new float[][] {
-                            {-1, -1, -1},
-                            {-1, 8, -1},
-                            {-1, -1, -1}
-                        };
-                        useAbs = true;
-                        break;
-                    case "4-Neighbour Laplacian Enhancement":
-                        kernel = new float[][] {
-                            {0, -1, 0},
-                            {-1, 5, -1},
-                            {0, -1, 0}
-                        };
-                        break;
-                    case "8-Neighbour Laplacian Enhancement":
-                        kernel = new float[][] {
-                            {-1, -1, -1},
-                            {-1, 9, -1},
-                            {-1, -1, -1}
-                        };
-                        break;
-                    case "Roberts":
-                        kernel = new float[][] {
-                            {0, 0, 0},
-                            {0, 0, -1},
-                            {0, 1, 0}
-                        };
-                        useAbs = true;
-                        break;
-                    case "Roberts2":
-                        kernel = new float[][] {
-                            {0, 0, 0},
-                            {0, -1, 0},
-                            {0, 0, 1}
-                        };
-                        useAbs = true;
-                        break;
-                    case "Sobel X":
-                        kernel = new float[][] {
-                            {-1, 0, 1},
-                            {-2, 0, 2},
-                            {-1, 0, 1}
-                        };
-                        useAbs = true;
-                        break;
-                    case "Sobel Y":
-                        kernel = new float[][] {
-                            {-1, -2, -1},
-                            {0, 0, 0},
-                            {1, 2, 1}
-                        };
-                        useAbs = true;
-                        break;
-                    case "Gaussian 5x5":
-                        kernel = new float[][] {
-                            {1/273f, 4/273f, 7/273f, 4/273f, 1/273f},
-                            {4/273f, 16/273f,26/273f,16/273f,4/273f},
-                            {7/273f,26/273f,41/273f,26/273f,7/273f},
-                            {4/273f,16/273f,26/273f,16/273f,4/273f},
-                            {1/273f, 4/273f, 7/273f, 4/273f, 1/273f}
-                        };
-                        break;
-                    case "Laplacian of Gaussian 5x5":
-                        kernel = new float[][] {
-                            {0, 0, -1, 0, 0},
-                            {0, -1, -2, -1, 0},
-                            {-1, -2, 16, -2, -1},
-                            {0, -1, -2, -1, 0},
-                            {0, 0, -1, 0, 0}
-                        };
-                        useAbs = true;
-                        break;
+            float[][] kernel = null;
+            boolean useAbs = false;
+            if (CUSTOM_KERNEL.equals(selection)) {
+                String input = JOptionPane.showInputDialog(this,
+                    "Enter the kernel: rows separated by '/' and values by ';' or spaces,\n"
+                    + "or @file for a text file with one row per line:", "0;-1;0/-1;5;-1/0;-1;0");
+                if (input == null) {
+                    selection = null;
+                } else {
+                    try {
+                        kernel = convKernel(input.trim());
+                        selection = " custom " + kernel.length + "x" + kernel[0].length;
+                    } catch (IllegalArgumentException ex) {
+                        JOptionPane.showMessageDialog(this, "Invalid kernel: " + ex.getMessage());
+                        selection = null;
+                    }
                 }
+            } else if (selection != null) {
+                kernel = presetKernel(selection);
+                useAbs = presetUsesAbs(selection);
+            }
+            if (selection != null) {
                 if (kernel != null) {
                     // Prompt user: Do you want to normalize (rescale) the output or just clamp?
                     int rescaleChoice = JOptionPane.showConfirmDialog(
@@ -1388,14 +2089,36 @@ public class Demo extends JPanel implements ActionListener {
                     );
                     boolean normalize = (rescaleChoice == JOptionPane.YES_OPTION);
                     
-                    backupForUndo();
                     final float[][] kernelFinal = kernel;
                     final boolean useAbsFinal = useAbs;
-                    processedImage = (roi != null)
-                        ? applyOnROI(processedImage, (img) -> applyConvolution(img, kernelFinal, useAbsFinal, normalize))
-                        : applyConvolution(processedImage, kernel, useAbs, normalize);
-                    repaint();
-                    log("Applied convolution with" + selection + " kernel." + (normalize ? " Rescaled output." : " Clamped output."));
+                    runOnROI(cmd, Arrays.deepToString(kernel) + (useAbs ? ":abs" : "") + (normalize ? ":norm" : ""), (img) -> applyConvolution(img, kernelFinal, useAbsFinal, normalize),
+                        "Applied convolution with" + selection + " kernel." + (normalize ? " Rescaled output." : " Clamped output."));
+                }
+            }
+        }
+        else if (cmd.equals("Gaussian Blur")) {
+            String input = JOptionPane.showInputDialog(this, "Enter sigma (pixels, > 0):", "2.0");
+            if (input != null) {
+                try {
+                    double sigma = Double.parseDouble(input);
+                    if (sigma <= 0) {
+                        JOptionPane.showMessageDialog(this, "Sigma must be greater than 0.");
+                    } else {
+                        runOnROI(cmd, String.valueOf(sigma), (img) -> applyGaussianBlur(img, sigma), "Applied Gaussian blur with sigma " + sigma);
+                    }
+                } catch (NumberFormatException ex) {
+                    JOptionPane.showMessageDialog(this, "Invalid input for sigma.");
+                }
+            }
+        }
+        else if (cmd.equals("Box Blur")) {
+            String input = JOptionPane.showInputDialog(this, "Enter box size (odd integer):", "5");
+            if (input != null) {
+                try {
+                    int size = filterSize(cmd, input.trim());
+                    runOnROI(cmd, String.valueOf(size), (img) -> applyBoxBlur(img, size), "Applied box blur with size " + size);
+                } catch (IllegalArgumentException ex) {
+                    JOptionPane.showMessageDialog(this, "Invalid box size.");
                 }
             }
         }
@@ -1405,12 +2128,7 @@ public class Demo extends JPanel implements ActionListener {
             if (input != null) {
                 try {
                     double noiseProb = Double.parseDouble(input);
-                    backupForUndo();
-                    processedImage = (roi != null)
-                    ? applyOnROI(processedImage, (img) -> addSaltAndPepperNoise(img, noiseProb))
-                    : addSaltAndPepperNoise(processedImage, noiseProb);
-                    repaint();
-                    log("Applied salt-and-pepper noise with probability " + noiseProb);
+                    runOnROI(cmd, (img) -> addSaltAndPepperNoise(img, noiseProb), "Applied salt-and-pepper noise with probability " + noiseProb);
                 } catch (NumberFormatException ex) {
                     JOptionPane.showMessageDialog(this, "Invalid noise probability.");
                 }
@@ -1419,14 +2137,9 @@ public class Demo extends JPanel implements ActionListener {
             String input = JOptionPane.showInputDialog(this, "Enter filter size (odd integer):", "3");
             if (input != null) {
                 try {
-                    int size = Integer.parseInt(input);
-                    backupForUndo();
-                    processedImage = (roi != null)
-                    ? applyOnROI(processedImage, (img) -> applyMinFilter(img, size))
-                    : applyMinFilter(processedImage, size);
-                    repaint();
-                    log("Applied min filter with size " + size);
-                } catch (NumberFormatException ex) {
+                    int size = filterSize(cmd, input.trim());
+                    runOnROI(cmd, String.valueOf(size), (img) -> applyMinFilter(img, size), "Applied min filter with size " + size);
+                } catch (IllegalArgumentException ex) {
                     JOptionPane.showMessageDialog(this, "Invalid filter size.");
                 }
             }
@@ -1434,14 +2147,9 @@ public class Demo extends JPanel implements ActionListener {
             String input = JOptionPane.showInputDialog(this, "Enter filter size (odd integer):", "3");
             if (input != null) {
                 try {
-                    int size = Integer.parseInt(input);
-                    backupForUndo();
-                    processedImage = (roi != null)
-                    ? applyOnROI(processedImage, (img) -> applyMaxFilter(img, size))
-                    : applyMaxFilter(processedImage, size);
-                    repaint();
-                    log("Applied max filter with size " + size);
-                } catch (NumberFormatException ex) {
+                    int size = filterSize(cmd, input.trim());
+                    runOnROI(cmd, String.valueOf(size), (img) -> applyMaxFilter(img, size), "Applied max filter with size " + size);
+                } catch (IllegalArgumentException ex) {
                     JOptionPane.showMessageDialog(this, "Invalid filter size.");
                 }
             }
@@ -1449,14 +2157,9 @@ public class Demo extends JPanel implements ActionListener {
             String input = JOptionPane.showInputDialog(this, "Enter filter size (odd integer):", "3");
             if (input != null) {
                 try {
-                    int size = Integer.parseInt(input);
-                    backupForUndo();
-                    processedImage = (roi != null)
-                    ? applyOnROI(processedImage, (img) -> applyMidpointFilter(img, size))
-                    : applyMidpointFilter(processedImage, size);
-                    repaint();
-                    log("Applied midpoint filter with size " + size);
-                } catch (NumberFormatException ex) {
+                    int size = filterSize(cmd, input.trim());
+                    runOnROI(cmd, String.valueOf(size), (img) -> applyMidpointFilter(img, size), "Applied midpoint filter with size " + size);
+                } catch (IllegalArgumentException ex) {
                     JOptionPane.showMessageDialog(this, "Invalid filter size.");
                 }
             }
@@ -1464,24 +2167,40 @@ public class Demo extends JPanel implements ActionListener {
             String input = JOptionPane.showInputDialog(this, "Enter filter size (odd integer):", "3");
             if (input != null) {
                 try {
-                    int size = Integer.parseInt(input);
-                    backupForUndo();
-                    processedImage = (roi != null)
-                    ? applyOnROI(processedImage, (img) -> applyMedianFilter(img, size))
-                    : applyMedianFilter(processedImage, size);
-                    repaint();
-                    log("Applied median filter with size " + size);
-                } catch (NumberFormatException ex) {
+                    int size = filterSize(cmd, input.trim());
+                    runOnROI(cmd, String.valueOf(size), (img) -> applyMedianFilter(img, size), "Applied median filter with size " + size);
+                } catch (IllegalArgumentException ex) {
+                    JOptionPane.showMessageDialog(this, "Invalid filter size.");
+                }
+            }
+        } else if (cmd.equals("Median Filter (RGB)")) {
+            String input = JOptionPane.showInputDialog(this, "Enter filter size (odd integer):", "3");
+            if (input != null) {
+                try {
+                    int size = filterSize(cmd, input.trim());
+                    runOnROI(cmd, String.valueOf(size), (img) -> applyColorMedianFilter(img, size), "Applied RGB median filter with size " + size);
+                } catch (IllegalArgumentException ex) {
                     JOptionPane.showMessageDialog(this, "Invalid filter size.");
                 }
             }
         }
+        else if (morphologyOp(cmd) != null) {
+            String op = morphologyOp(cmd);
+            String input = JOptionPane.showInputDialog(this,
+                    "Structuring element: N (square), square:N, rect:WxH, cross:N, diamond:N, disk:N,\n"
+                    + "hline:N, vline:N or mask:<rows of 0/1 separated by />, e.g. mask:010/111/010", "disk:5");
+            if (input != null) {
+                try {
+                    Morphology.Element element = Morphology.Element.parse(input);
+                    runOnROI(cmd, element.toString(), (img) -> applyMorphology(img, op, element), "Applied " + cmd.toLowerCase() + " with " + element);
+                } catch (IllegalArgumentException ex) {
+                    JOptionPane.showMessageDialog(this, "Invalid structuring element: " + ex.getMessage());
+                }
+            }
+        }
         // Lab8 Operations: Thresholding
         else if (cmd.equals("Mean & Std")) {
-            BufferedImage target = (roi != null) 
-            ? processedImage.getSubimage(roi.x, roi.y, roi.width, roi.height)
-            : processedImage;
-            double[] ms = computeMeanStd(target);
+            double[] ms = statsTarget().meanStd();
             log("Mean: " + ms[0] + ", Std Dev: " + ms[1]);
             JOptionPane.showMessageDialog(this, "Mean: " + ms[0] + "\nStd Dev: " + ms[1]);
         } else if (cmd.equals("Simple Threshold")) {
@@ -1489,83 +2208,106 @@ public class Demo extends JPanel implements ActionListener {
             if (input != null) {
                 try {
                     int thresh = Integer.parseInt(input);
-                    backupForUndo();
-                    processedImage = (roi != null)
-                    ? applyOnROI(processedImage, (img) -> simpleThreshold(img, thresh))
-                    : simpleThreshold(processedImage, thresh);
-                    repaint();
-                    log("Applied simple threshold with value " + thresh);
+                    runOnROI(cmd, (img) -> simpleThreshold(img, thresh), "Applied simple threshold with value " + thresh);
                 } catch (NumberFormatException ex) {
                     JOptionPane.showMessageDialog(this, "Invalid threshold value.");
                 }
             }
         } else if (cmd.equals("Automated Threshold")) {
-            backupForUndo();
-            int T = automatedThreshold(processedImage);
-            JOptionPane.showMessageDialog(this, "Automated threshold: " + T);
-            processedImage = (roi != null)
-            ? applyOnROI(processedImage, (img) -> simpleThreshold(img, T))
-            : simpleThreshold(processedImage, T);
-            repaint();
-            log("Applied automated threshold with value " + T);
+            // The threshold is computed on the whole image, then applied to the ROI (if any).
+            final Rectangle region = currentROI();
+            final int[] T = new int[1];
+            runJob(cmd, region, (img) -> {
+                T[0] = automatedThreshold(img);
+                return applyOnROI(img, region, (sub) -> simpleThreshold(sub, T[0]));
+            }, () -> {
+                // Called on the EDT once the result is shown.
+                JOptionPane.showMessageDialog(this, "Automated threshold: " + T[0]);
+                return "Applied automated threshold with value " + T[0];
+            });
+        }
+        else if (cmd.equals("Local Std Dev")) {
+            String input = JOptionPane.showInputDialog(this, "Enter window size (odd integer):", "15");
+            if (input != null) {
+                try {
+                    int size = filterSize(cmd, input.trim());
+                    runOnROI(cmd, String.valueOf(size), (img) -> localStdDev(img, size), "Computed local standard deviation with window " + size);
+                } catch (IllegalArgumentException ex) {
+                    JOptionPane.showMessageDialog(this, "Invalid window size.");
+                }
+            }
+        } else if (cmd.equals("Otsu Threshold")) {
+            // As for the automated threshold, computed on the whole image and applied to the ROI.
+            final Rectangle region = currentROI();
+            final int[] T = new int[1];
+            runJob(cmd, region, (img) -> {
+                T[0] = otsuThreshold(img);
+                return applyOnROI(img, region, (sub) -> simpleThreshold(sub, T[0]));
+            }, () -> "Applied Otsu threshold with value " + T[0]);
+        } else if (cmd.equals("Multi-level Otsu")) {
+            String input = JOptionPane.showInputDialog(this, "Enter number of classes (2-16):", "3");
+            if (input != null) {
+                try {
+                    int classes = otsuClasses("multi-otsu", input.trim());
+                    final Rectangle region = currentROI();
+                    final int[][] T = new int[1][];
+                    runJob(cmd, region, (img) -> {
+                        T[0] = multiOtsuThresholds(img, classes);
+                        return applyOnROI(img, region, (sub) -> applyLevels(sub, T[0]));
+                    }, () -> "Applied multi-level Otsu with thresholds " + Arrays.toString(T[0]));
+                } catch (IllegalArgumentException ex) {
+                    JOptionPane.showMessageDialog(this, "Invalid number of classes.");
+                }
+            }
+        } else if (cmd.equals("Connected Components")) {
+            Object[] options = {"8-connected", "4-connected"};
+            int choice = JOptionPane.showOptionDialog(this, "Label the white (>= 128) regions of the image. Connectivity:",
+                    "Connected Components", JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, options, options[0]);
+            if (choice >= 0) {
+                boolean eight = choice == 0;
+                final Rectangle region = currentROI();
+                final ConnectedComponents[] cc = new ConnectedComponents[1];
+                runJob(cmd, region, (img) -> applyOnROI(img, region, (sub) -> {
+                    cc[0] = labelComponents(sub, eight);
+                    return cc[0].toImage();
+                }), () -> "Labelled " + (eight ? "8" : "4") + "-connected components: " + componentSummary(cc[0]));
+            }
+        } else if (cmd.equals("Niblack Threshold") || cmd.equals("Sauvola Threshold") || cmd.equals("Bradley Threshold")) {
+            String method = cmd.substring(0, cmd.indexOf(' ')).toLowerCase();
+            String input = JOptionPane.showInputDialog(this, "Enter window size (odd integer) and k:",
+                    "25, " + defaultK(method));
+            if (input != null) {
+                try {
+                    String[] parts = input.split(",");
+                    int size = filterSize(cmd, parts[0].trim());
+                    double k = (parts.length > 1) ? Double.parseDouble(parts[1].trim()) : defaultK(method);
+                    runOnROI(cmd, size + "," + k, (img) -> adaptiveThreshold(img, method, size, k),
+                        "Applied " + cmd + " with window " + size + " and k " + k);
+                } catch (IllegalArgumentException ex) {
+                    JOptionPane.showMessageDialog(this, "Invalid window size or k.");
+                }
+            }
         }
         // Lab5 Operations: Histogram & Histogram Equalisation
         else if (cmd.equals("Histogram Equalisation")) {
-            backupForUndo();
-            processedImage = (roi != null)
-            ? applyOnROI(processedImage, (img) -> histogramEqualisation(img))
-            : histogramEqualisation(processedImage);
-            repaint();
-            log("Applied histogram equalisation.");
+            runOnROI(cmd, (img) -> histogramEqualisation(img), "Applied histogram equalisation.");
         } else if (cmd.equals("Display Histogram")) {
-            BufferedImage target = (roi != null) 
-            ? processedImage.getSubimage(roi.x, roi.y, roi.width, roi.height)
-            : processedImage;
-            BufferedImage histImg = displayHistogram(target);
+            BufferedImage histImg = displayHistogram(statsTarget().histogram());
             JFrame histFrame = new JFrame("Histogram");
             histFrame.getContentPane().add(new JLabel(new ImageIcon(histImg)));
             histFrame.pack();
             histFrame.setVisible(true);
         }
         else if (cmd.equals("Negative")) {
-            backupForUndo();
             // If ROI is selected, apply function only to ROI.
-            processedImage = (roi != null) ? applyOnROI(processedImage, (img) -> applyNegative(img)) : applyNegative(processedImage);
-            repaint();
-            log("Applied negative operation.");
+            runOnROI(cmd, (img) -> applyNegative(img), "Applied negative operation.");
         }else if (cmd.equals("Load Second Image")) {
             JFileChooser chooser = new JFileChooser();
             if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
                 File file = chooser.getSelectedFile();
                 try {
-                    BufferedImage img = null;
-                    if (file.getName().toLowerCase().endsWith(".raw")) {
-                        String wStr = JOptionPane.showInputDialog(this, "Enter width for RAW image (leave blank to guess):", "");
-                        String hStr = JOptionPane.showInputDialog(this, "Enter height for RAW image (leave blank to guess):", "");
-                        int w, h;
-                        if (wStr.trim().isEmpty() || hStr.trim().isEmpty()) {
-                            Dimension d = guessDimensions(file);
-                            w = d.width;
-                            h = d.height;
-                            log("Guessed RAW dimensions: " + w + " x " + h);
-                        } else {
-                            w = Integer.parseInt(wStr);
-                            h = Integer.parseInt(hStr);
-                        }
-                        img = readRawImage(file, w, h);
-                    } else {
-                        img = ImageIO.read(file);
-                        if (img.getType() != BufferedImage.TYPE_INT_RGB) {
-                            BufferedImage temp = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
-                            Graphics g = temp.getGraphics();
-                            g.drawImage(img, 0, 0, null);
-                            g.dispose();
-                            img = temp;
-                        }
-                    }
-                    // Resize second image as well.
-                    img = resizeImage(img);
-                    secondImage = img;
+                    secondImage = readImageFile(file);
+                    revalidate();
                     repaint();
                     log("Loaded second image.");
                 } catch (Exception ex) {
@@ -1576,6 +2318,11 @@ public class Demo extends JPanel implements ActionListener {
     }
     // ------------------- Main Method -------------------
     public static void main(String[] args) {
+        // Headless batch mode: no windows or dialogs.
+        if (args.length > 0 && args[0].equals("--batch")) {
+            System.exit(BatchRunner.run(java.util.Arrays.copyOfRange(args, 1, args.length)));
+        }
+        
         // Create a log area.
         JTextArea logArea = new JTextArea(5, 40);
         logArea.setEditable(false);
@@ -1608,7 +2355,7 @@ public class Demo extends JPanel implements ActionListener {
 
         // Edit menu.
         JMenu editMenu = new JMenu("Edit");
-        String[] editOps = {"Undo", "Select ROI", "Clear ROI"};
+        String[] editOps = {"Undo", "Cancel Operation", "Select ROI", "Clear ROI", "Parallelism", "Result Cache"};
         for (String op : editOps) {
             JMenuItem item = new JMenuItem(op);
             item.setActionCommand(op);
@@ -1642,7 +2389,7 @@ public class Demo extends JPanel implements ActionListener {
         
         // Lab4 Operations.
         JMenu lab4Menu = new JMenu("Lab4 Operations");
-        String[] lab4Ops = {"Point Negative", "Logarithmic Transform", "Power-Law Transform", "Random LUT Transform", "Bit-Plane Slicing"};
+        String[] lab4Ops = {"Point Negative", "Logarithmic Transform", "Power-Law Transform", "Random LUT Transform", "Bit-Plane Slicing", "Tone Chain"};
         for (String op : lab4Ops) {
             JMenuItem item = new JMenuItem(op);
             item.setActionCommand(op);
@@ -1668,11 +2415,20 @@ public class Demo extends JPanel implements ActionListener {
         convItem.setActionCommand("Convolution");
         convItem.addActionListener(demo);
         lab6Menu.add(convItem);
+        JMenuItem blurItem = new JMenuItem("Gaussian Blur");
+        blurItem.setActionCommand("Gaussian Blur");
+        blurItem.addActionListener(demo);
+        lab6Menu.add(blurItem);
+        JMenuItem boxItem = new JMenuItem("Box Blur");
+        boxItem.setActionCommand("Box Blur");
+        boxItem.addActionListener(demo);
+        lab6Menu.add(boxItem);
         menuBar.add(lab6Menu);
         
         // Lab7 Operations.
         JMenu lab7Menu = new JMenu("Lab7 Operations");
-        String[] lab7Ops = {"Salt-and-Pepper Noise", "Min Filter", "Max Filter", "Midpoint Filter", "Median Filter"};
+        String[] lab7Ops = {"Salt-and-Pepper Noise", "Min Filter", "Max Filter", "Midpoint Filter", "Median Filter", "Median Filter (RGB)",
+                           "Erosion", "Dilation", "Opening", "Closing", "Top-hat", "Black Top-hat", "Morphological Gradient"};
         for (String op : lab7Ops) {
             JMenuItem item = new JMenuItem(op);
             item.setActionCommand(op);
@@ -1683,7 +2439,9 @@ public class Demo extends JPanel implements ActionListener {
         
         // Lab8 Operations.
         JMenu lab8Menu = new JMenu("Lab8 Operations");
-        String[] lab8Ops = {"Mean & Std", "Simple Threshold", "Automated Threshold"};
+        String[] lab8Ops = {"Mean & Std", "Simple Threshold", "Automated Threshold", "Otsu Threshold", "Multi-level Otsu",
+                           "Local Std Dev", "Niblack Threshold", "Sauvola Threshold", "Bradley Threshold",
+                           "Connected Components"};
         for (String op : lab8Ops) {
             JMenuItem item = new JMenuItem(op);
             item.setActionCommand(op);
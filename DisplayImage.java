@@ -0,0 +1,105 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * Display-only copy of an image, scaled down to fit a maxSize x maxSize box. Processing always
+ * uses the full-resolution image; this is what paintComponent draws.
+ * <p>
+ * The copy is made by halving the image with 2x2 box averages (a mip chain, each level a
+ * parallel pass over row bands) while it is at least twice the target size, then a bilinear
+ * draw to the exact size. It is cached and rebuilt only when a different image is passed in,
+ * or after invalidate() (for images changed in place, e.g. by undo).
+ */
+final class DisplayImage {
+    private final int maxSize;
+    private BufferedImage source;
+    private BufferedImage scaled;
+
+    DisplayImage(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    // The display copy of img, computed only if img is not the image of the last call.
+    BufferedImage get(BufferedImage img) {
+        if (img != source) {
+            source = img;
+            scaled = null;
+        }
+        if (scaled == null && img != null) {
+            Dimension d = size(img);
+            scaled = (d.width == img.getWidth() && d.height == img.getHeight()) ? img : resample(img, d.width, d.height);
+        }
+        return scaled;
+    }
+
+    // Forget the cached copy, e.g. because the image was modified in place.
+    void invalidate() {
+        scaled = null;
+    }
+
+    // Display pixels per image pixel, at most 1.
+    double scale(BufferedImage img) {
+        return Math.min(1.0, (double) maxSize / Math.max(img.getWidth(), img.getHeight()));
+    }
+
+    // Size of the display copy of img, without computing it.
+    Dimension size(BufferedImage img) {
+        double s = scale(img);
+        return new Dimension(Math.max(1, (int) Math.round(img.getWidth() * s)),
+                             Math.max(1, (int) Math.round(img.getHeight() * s)));
+    }
+
+    // Image coordinates of a point given in display coordinates, clamped to the image.
+    Point toImage(BufferedImage img, int x, int y) {
+        double s = scale(img);
+        return new Point(Math.max(0, Math.min(img.getWidth(), (int) Math.floor(x / s))),
+                         Math.max(0, Math.min(img.getHeight(), (int) Math.floor(y / s))));
+    }
+
+    // Display coordinates of a rectangle given in image coordinates.
+    Rectangle toDisplay(BufferedImage img, Rectangle r) {
+        double s = scale(img);
+        int x0 = (int) Math.floor(r.x * s), y0 = (int) Math.floor(r.y * s);
+        int x1 = (int) Math.ceil((r.x + r.width) * s), y1 = (int) Math.ceil((r.y + r.height) * s);
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    /**
+     * A width x height TYPE_INT_RGB copy of img: 2x2 box-average halvings while img is at
+     * least twice that size, then one bilinear draw.
+     */
+    static BufferedImage resample(BufferedImage img, int width, int height) {
+        PixelBuffer level = PixelBuffer.wrap(img);
+        while (level.width >= 2 * width && level.height >= 2 * height) {
+            level = halve(level);
+        }
+        if (level.width == width && level.height == height) {
+            return level.image();
+        }
+        BufferedImage out = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = out.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(level.image(), 0, 0, width, height, null);
+        g.dispose();
+        return out;
+    }
+
+    // Average of each 2x2 block; an odd last row or column is dropped.
+    private static PixelBuffer halve(PixelBuffer src) {
+        PixelBuffer dst = PixelBuffer.create(src.width / 2, src.height / 2);
+        RowBands.forEach(dst.height, (band, y0, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                int a = src.row(2 * y), b = src.row(2 * y + 1), d = dst.row(y);
+                for (int x = 0; x < dst.width; x++) {
+                    int p = src.data[a + 2 * x], q = src.data[a + 2 * x + 1];
+                    int r = src.data[b + 2 * x], s = src.data[b + 2 * x + 1];
+                    dst.data[d + x] = PixelBuffer.pack(
+                            (PixelBuffer.red(p) + PixelBuffer.red(q) + PixelBuffer.red(r) + PixelBuffer.red(s) + 2) >> 2,
+                            (PixelBuffer.green(p) + PixelBuffer.green(q) + PixelBuffer.green(r) + PixelBuffer.green(s) + 2) >> 2,
+                            (PixelBuffer.blue(p) + PixelBuffer.blue(q) + PixelBuffer.blue(r) + PixelBuffer.blue(s) + 2) >> 2);
+                }
+            }
+        });
+        return dst;
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Frequency-domain backend for Demo.applyConvolution, used for large non-separable kernels.
+ * Every preset mask is 5x5 or smaller, so only custom kernels (Demo.convKernel: the
+ * Convolution dialog's "Custom..." choice or a batch step conv:<matrix> / conv:@file) use it.
+ * <p>
+ * The image is processed in overlap-save tiles: each N x N tile (N a power of two) is
+ * transformed with a radix-2 FFT, multiplied by the conjugate spectrum of the kernel and
+ * transformed back. Only the (N - kRows + 1) x (N - kCols + 1) block that did not wrap
+ * around is kept. Pixels outside the image are read as zero, which reproduces the zero
+ * padding and correlation orientation of the spatial path. Two real channels are packed
+ * into the real and imaginary parts of one transform.
+ */
+final class FFTConvolution {
+    // Kernels with at least this many taps go through the FFT. Measured single-threaded on
+    // 1024x1024 RGB: 5x5 direct 174ms vs FFT 262ms, 7x7 direct 327ms vs FFT 283ms, and from
+    // there the direct cost grows with k^2 (31x31: 7.2s) while the FFT stays under 0.5s.
+    static final int MIN_TAPS = 7 * 7;
+
+    private final int kRows, kCols;
+    private final int n, log2n;
+    private final double[] cos, sin;
+    // Conjugated kernel spectrum, N x N, row-major.
+    private final double[] kRe, kIm;
+
+    FFTConvolution(float[][] kernel) {
+        this.kRows = kernel.length;
+        this.kCols = kernel[0].length;
+        int size = Integer.highestOneBit(Math.max(64, 4 * Math.max(kRows, kCols)) - 1) << 1;
+        this.n = size;
+        this.log2n = Integer.numberOfTrailingZeros(size);
+        this.cos = new double[size / 2];
+        this.sin = new double[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            cos[i] = Math.cos(2 * Math.PI * i / size);
+            sin[i] = Math.sin(2 * Math.PI * i / size);
+        }
+        kRe = new double[size * size];
+        kIm = new double[size * size];
+        for (int m = 0; m < kRows; m++) {
+            for (int k = 0; k < kCols; k++) {
+                kRe[m * size + k] = kernel[m][k];
+            }
+        }
+        fft2D(kRe, kIm, false, new double[size], new double[size]);
+        for (int i = 0; i < kIm.length; i++) {
+            kIm[i] = -kIm[i];
+        }
+    }
+
+    // Output rows per tile; callers should align their bands to this.
+    int tileRows() {
+        return n - kRows + 1;
+    }
+
+    /**
+     * Correlate the three planar channels with the kernel for output rows [y0, y1).
+     */
+    void convolve(int[][] chan, float[][] conv, int width, int height, int y0, int y1) {
+        int bw = n - kCols + 1, bh = n - kRows + 1;
+        int cx = kCols / 2, cy = kRows / 2;
+        double[] re = new double[n * n], im = new double[n * n];
+        double[] re2 = new double[n * n], im2 = new double[n * n];
+        double[] tRe = new double[n], tIm = new double[n];
+        for (int ty = y0; ty < y1; ty += bh) {
+            int rows = Math.min(bh, y1 - ty);
+            for (int tx = 0; tx < width; tx += bw) {
+                int cols = Math.min(bw, width - tx);
+                // r + i*g in the first transform, b in the second.
+                load(chan[0], chan[1], re, im, width, height, tx - cx, ty - cy);
+                load(chan[2], null, re2, im2, width, height, tx - cx, ty - cy);
+                multiply(re, im, tRe, tIm);
+                multiply(re2, im2, tRe, tIm);
+                for (int v = 0; v < rows; v++) {
+                    int o = (ty + v) * width + tx;
+                    for (int u = 0; u < cols; u++) {
+                        conv[0][o + u] = (float) re[v * n + u];
+                        conv[1][o + u] = (float) im[v * n + u];
+                        conv[2][o + u] = (float) re2[v * n + u];
+                    }
+                }
+            }
+        }
+    }
+
+    // Copy an N x N window starting at (x0, y0) into re (and im), reading zero outside the image.
+    private void load(int[] a, int[] b, double[] re, double[] im, int width, int height, int x0, int y0) {
+        for (int v = 0; v < n; v++) {
+            int y = y0 + v;
+            int r = v * n;
+            for (int u = 0; u < n; u++) {
+                int x = x0 + u;
+                boolean inside = y >= 0 && y < height && x >= 0 && x < width;
+                re[r + u] = inside ? a[y * width + x] : 0;
+                im[r + u] = (inside && b != null) ? b[y * width + x] : 0;
+            }
+        }
+    }
+
+    // Forward transform, multiply by the conjugated kernel spectrum, inverse transform.
+    private void multiply(double[] re, double[] im, double[] tRe, double[] tIm) {
+        fft2D(re, im, false, tRe, tIm);
+        for (int i = 0; i < re.length; i++) {
+            double r = re[i] * kRe[i] - im[i] * kIm[i];
+            double j = re[i] * kIm[i] + im[i] * kRe[i];
+            re[i] = r;
+            im[i] = j;
+        }
+        fft2D(re, im, true, tRe, tIm);
+        double scale = 1.0 / ((double) n * n);
+        for (int i = 0; i < re.length; i++) {
+            re[i] *= scale;
+            im[i] *= scale;
+        }
+    }
+
+    // In-place 2D transform (rows, then columns through the scratch arrays). Not normalised.
+    private void fft2D(double[] re, double[] im, boolean inverse, double[] tRe, double[] tIm) {
+        for (int v = 0; v < n; v++) {
+            System.arraycopy(re, v * n, tRe, 0, n);
+            System.arraycopy(im, v * n, tIm, 0, n);
+            fft(tRe, tIm, inverse);
+            System.arraycopy(tRe, 0, re, v * n, n);
+            System.arraycopy(tIm, 0, im, v * n, n);
+        }
+        for (int u = 0; u < n; u++) {
+            for (int v = 0; v < n; v++) {
+                tRe[v] = re[v * n + u];
+                tIm[v] = im[v * n + u];
+            }
+            fft(tRe, tIm, inverse);
+            for (int v = 0; v < n; v++) {
+                re[v * n + u] = tRe[v];
+                im[v * n + u] = tIm[v];
+            }
+        }
+    }
+
+    // Iterative radix-2 Cooley-Tukey transform of length N. Not normalised.
+    private void fft(double[] re, double[] im, boolean inverse) {
+        for (int i = 0; i < n; i++) {
+            int j = Integer.reverse(i) >>> (32 - log2n);
+            if (j > i) {
+                double t = re[i]; re[i] = re[j]; re[j] = t;
+                t = im[i]; im[i] = im[j]; im[j] = t;
+            }
+        }
+        double sign = inverse ? 1 : -1;
+        for (int len = 2; len <= n; len <<= 1) {
+            int half = len >> 1, step = n / len;
+            for (int i = 0; i < n; i += len) {
+                for (int j = 0; j < half; j++) {
+                    double wr = cos[j * step], wi = sign * sin[j * step];
+                    int a = i + j, b = a + half;
+                    double xr = re[b] * wr - im[b] * wi;
+                    double xi = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - xr;
+                    im[b] = im[a] - xi;
+                    re[a] += xr;
+                    im[a] += xi;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.*;
+
+/**
+ * A lazily evaluated image expression: a source image followed by named Demo operations.
+ * <p>
+ * then(name, arg) only records a node; pixels are computed when a sink asks for them:
+ * image() for painting or saving, grayPlane(), histogram() or meanStd() for statistics.
+ * While building the graph:
+ * <ul>
+ * <li>consecutive point operations are fused into one LutChain node, evaluated in one pass;</li>
+ * <li>the gray filters (min, max, midpoint, median) and equalisation read the gray plane of
+ *     their input, so after a point node that plane is computed straight from the point
+ *     node's input without building the intermediate RGB image;</li>
+ * <li>nodes are hash-consed: asking a node twice for the same deterministic operation returns
+ *     the same child, so an identical subgraph is evaluated once.</li>
+ * </ul>
+ * Sinks are memoised per node. A node keeps its intermediate image only if more than one node
+ * is evaluated from it: its own children, the point nodes fused onto a child point node (which
+ * read this node directly) and the unshared random operations all count. All methods are
+ * thread-safe; evaluation of one node is serialised.
+ */
+final class ImageExpr {
+    private enum Kind { SOURCE, CROP, POINT, GRAY, EQUALISE, OP }
+
+    // Operations whose result differs on every evaluation; never shared.
+    private static final Set<String> RANDOM_OPS =
+            new HashSet<>(Arrays.asList("random-lut", "noise", "shift-rescale"));
+
+    private final Demo demo;
+    private final Kind kind;
+    private final ImageExpr parent;
+    private final List<String[]> steps;   // {name, arg} pairs; several only for fused POINT nodes
+    private final Rectangle region;       // CROP only
+    private final int width, height;
+    private final Map<String, ImageExpr> children = new HashMap<>();
+    // Nodes whose evaluation reads this one (guarded by this node's lock).
+    private int consumers;
+
+    private BufferedImage image;
+    private int[] gray;
+    private int[] histogram;
+
+    private ImageExpr(Demo demo, Kind kind, ImageExpr parent, List<String[]> steps, Rectangle region,
+                      BufferedImage image, int width, int height) {
+        this.demo = demo;
+        this.kind = kind;
+        this.parent = parent;
+        this.steps = steps;
+        this.region = region;
+        this.image = image;
+        this.width = width;
+        this.height = height;
+    }
+
+    // Leaf node over an existing image. The image is not copied and must not change afterwards.
+    static ImageExpr source(Demo demo, BufferedImage img) {
+        return new ImageExpr(demo, Kind.SOURCE, null, Collections.emptyList(), null, img, img.getWidth(), img.getHeight());
+    }
+
+    int width() {
+        return width;
+    }
+
+    int height() {
+        return height;
+    }
+
+    // The image this node was built from, if it is a source node.
+    BufferedImage sourceImage() {
+        return (kind == Kind.SOURCE) ? image : null;
+    }
+
+    /**
+     * Node for applying a named operation (see Demo.applyNamed) to this one. Nothing is
+     * evaluated. Bad parameters of point operations are reported here, anything else when
+     * the node is evaluated.
+     */
+    ImageExpr then(String name, String arg) {
+        String[] step = {name, arg};
+        if (demo.appendPoint(new LutChain(), name, arg)) {
+            // Fuse with a preceding point node: one table, one pass.
+            if (kind == Kind.POINT) {
+                List<String[]> fused = new ArrayList<>(steps);
+                fused.add(step);
+                return child(key(name, arg), Kind.POINT, parent, fused, null);
+            }
+            return child(key(name, arg), Kind.POINT, this, Collections.singletonList(step), null);
+        }
+        Kind k = Demo.isGrayFilter(name) ? Kind.GRAY : name.equals("equalise") ? Kind.EQUALISE : Kind.OP;
+        return child(key(name, arg), k, this, Collections.singletonList(step), null);
+    }
+
+    // Node for the given region (clipped to this image), sharing the pixels of this node.
+    ImageExpr crop(Rectangle r) {
+        Rectangle clip = r.intersection(new Rectangle(0, 0, width, height));
+        String key = "crop:" + clip.x + "," + clip.y + "," + clip.width + "," + clip.height;
+        return child(key, Kind.CROP, this, Collections.emptyList(), clip);
+    }
+
+    private synchronized ImageExpr child(String key, Kind k, ImageExpr base, List<String[]> s, Rectangle r) {
+        ImageExpr c = children.get(key);
+        if (c == null) {
+            int w = (r != null) ? r.width : width, h = (r != null) ? r.height : height;
+            c = new ImageExpr(demo, k, base, s, r, null, w, h);
+            // Counted on the node that is read, which for a fused point node is our parent.
+            synchronized (base) {
+                base.consumers++;
+            }
+            boolean random = false;
+            for (String[] step : s) {
+                random |= RANDOM_OPS.contains(step[0]);
+            }
+            if (!random) {
+                children.put(key, c);
+            }
+        }
+        return c;
+    }
+
+    private static String key(String name, String arg) {
+        return (arg == null) ? name : name + ":" + arg;
+    }
+
+    // ------------------- Sinks -------------------
+
+    // The pixels of this node (a TYPE_INT_RGB image), computed once.
+    synchronized BufferedImage image() {
+        if (image == null) {
+            image = compute();
+        }
+        return image;
+    }
+
+    // Gray plane (average of R, G, B), flat and row-major, computed once.
+    synchronized int[] grayPlane() {
+        if (gray == null) {
+            switch (kind) {
+                case POINT:
+                    gray = chain().grayPlane(parent.value());
+                    break;
+                case GRAY:
+                    // The filter output is already the gray plane.
+                    gray = grayFilter();
+                    break;
+                case EQUALISE:
+                    gray = equalise();
+                    break;
+                default:
+                    gray = demo.grayPlane(value());
+            }
+        }
+        return gray;
+    }
+
+    // 256-bin histogram of the gray plane, computed once. Nodes whose gray plane would only be
+    // derived from their image count it straight from the image (ImageStats, cached per image).
+    synchronized int[] histogram() {
+        if (histogram == null) {
+            boolean planeNode = kind == Kind.POINT || kind == Kind.GRAY || kind == Kind.EQUALISE;
+            histogram = (planeNode || gray != null) ? demo.grayHistogram(grayPlane(), width, height)
+                                                    : ImageStats.of(value()).histogram(ImageStats.GRAY);
+        }
+        return histogram;
+    }
+
+    // {mean, standard deviation} of the gray levels.
+    double[] meanStd() {
+        return ImageStats.meanStd(histogram());
+    }
+
+    // ------------------- Evaluation -------------------
+
+    // Image for a consumer: kept only if several nodes read this one.
+    private synchronized BufferedImage value() {
+        if (image != null) {
+            return image;
+        }
+        BufferedImage img = compute();
+        if (consumers > 1) {
+            image = img;
+        }
+        return img;
+    }
+
+    private BufferedImage compute() {
+        switch (kind) {
+            case SOURCE:
+                return image;
+            case CROP:
+                return parent.value().getSubimage(region.x, region.y, region.width, region.height);
+            case POINT:
+                return chain().apply(parent.value());
+            case GRAY:
+            case EQUALISE:
+                return demo.createGrayImage(grayPlane(), width, height);
+            default:
+                String[] step = steps.get(0);
+                return demo.applyNamed(parent.value(), step[0], step[1]);
+        }
+    }
+
+    private LutChain chain() {
+        LutChain c = new LutChain();
+        for (String[] step : steps) {
+            if (!demo.appendPoint(c, step[0], step[1])) {
+                throw new IllegalArgumentException("Not a point operation: " + key(step[0], step[1]));
+            }
+        }
+        return c;
+    }
+
+    private int[] grayFilter() {
+        String[] step = steps.get(0);
+        int size = Demo.filterSize(step[0], step[1]);
+        return demo.grayFilter(parent.grayPlane(), width, height, step[0], size);
+    }
+
+    private int[] equalise() {
+        int[] src = parent.grayPlane();
+        int[] table = Demo.equalisationTable(parent.histogram(), width * height);
+        int[] out = new int[src.length];
+        RowBands.forEach(height, (band, y0, y1) -> {
+            for (int i = y0 * width; i < y1 * width; i++) {
+                out[i] = table[src[i]];
+            }
+        });
+        return out;
+    }
+
+    // The fused plan, e.g. "source -> log+power:0.8 -> median:5".
+    @Override
+    public String toString() {
+        if (kind == Kind.SOURCE) {
+            return "source";
+        }
+        StringJoiner j = new StringJoiner("+");
+        for (String[] step : steps) {
+            j.add(key(step[0], step[1]));
+        }
+        return parent + " -> " + ((kind == Kind.CROP) ? "crop" : j.toString());
+    }
+}
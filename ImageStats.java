@@ -0,0 +1,248 @@
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Statistics of an image computed in one parallel pass: 256-bin histograms of red, green,
+ * blue and gray ((R + G + B) / 3). Each row band fills its own histograms, which are merged
+ * at the end; counts, moments, min/max and the threshold searches are then derived from the
+ * 256 bins without touching the pixels again.
+ * <p>
+ * of(img) caches the result per image (weakly, so it goes with the image). Images are not
+ * modified after they are computed, except by undo patching processedImage in place, which
+ * calls invalidate(img).
+ */
+final class ImageStats {
+    static final int RED = 0, GREEN = 1, BLUE = 2, GRAY = 3;
+
+    private static final Map<BufferedImage, ImageStats> cache = new WeakHashMap<>();
+
+    // hist[c][v]: number of pixels with value v in channel c (RED, GREEN, BLUE or GRAY).
+    private final int[][] hist;
+    final long count;
+
+    private ImageStats(int[][] hist, long count) {
+        this.hist = hist;
+        this.count = count;
+    }
+
+    // Statistics of img, computed once per image.
+    static ImageStats of(BufferedImage img) {
+        synchronized (cache) {
+            ImageStats s = cache.get(img);
+            if (s != null) {
+                return s;
+            }
+        }
+        ImageStats s = compute(img);
+        synchronized (cache) {
+            cache.put(img, s);
+        }
+        return s;
+    }
+
+    // Forget the statistics of an image whose pixels were changed in place.
+    static void invalidate(BufferedImage img) {
+        synchronized (cache) {
+            cache.remove(img);
+        }
+    }
+
+    private static ImageStats compute(BufferedImage img) {
+        PixelBuffer src = PixelBuffer.wrap(img);
+        int bands = RowBands.count(src.height);
+        int[][] partial = new int[bands][4 * 256];
+        RowBands.forBands(bands, src.height, (band, y0, y1) -> {
+            int[] h = partial[band];
+            for (int y = y0; y < y1; y++) {
+                int si = src.row(y);
+                for (int x = 0; x < src.width; x++) {
+                    int p = src.data[si + x];
+                    int r = PixelBuffer.red(p), g = PixelBuffer.green(p), b = PixelBuffer.blue(p);
+                    h[r]++;
+                    h[256 + g]++;
+                    h[512 + b]++;
+                    h[768 + (r + g + b) / 3]++;
+                }
+            }
+        });
+        int[][] hist = new int[4][256];
+        for (int[] h : partial) {
+            for (int c = 0; c < 4; c++) {
+                for (int v = 0; v < 256; v++) {
+                    hist[c][v] += h[c * 256 + v];
+                }
+            }
+        }
+        return new ImageStats(hist, (long) src.width * src.height);
+    }
+
+    // Copy of the histogram of a channel.
+    int[] histogram(int channel) {
+        return hist[channel].clone();
+    }
+
+    // Smallest value present in a channel (255 for an empty image).
+    int min(int channel) {
+        int v = 0;
+        while (v < 255 && hist[channel][v] == 0) {
+            v++;
+        }
+        return v;
+    }
+
+    // Largest value present in a channel (0 for an empty image).
+    int max(int channel) {
+        int v = 255;
+        while (v > 0 && hist[channel][v] == 0) {
+            v--;
+        }
+        return v;
+    }
+
+    // {mean, standard deviation} of a channel.
+    double[] meanStd(int channel) {
+        return meanStd(hist[channel]);
+    }
+
+    // {mean, standard deviation} of the values counted in a 256-bin histogram.
+    static double[] meanStd(int[] h) {
+        long n = 0, sum = 0;
+        for (int v = 0; v < 256; v++) {
+            n += h[v];
+            sum += (long) v * h[v];
+        }
+        double mean = (double) sum / n;
+        double variance = 0;
+        for (int v = 0; v < 256; v++) {
+            variance += h[v] * ((v - mean) * (v - mean));
+        }
+        return new double[] {mean, Math.sqrt(variance / n)};
+    }
+
+    /**
+     * Iterative (isodata) threshold of the gray levels: start at the mean, then move to the
+     * midpoint of the means below and at/above the threshold until it stops changing. Each
+     * iteration is O(256).
+     */
+    int isodataThreshold() {
+        return isodataThreshold(hist[GRAY]);
+    }
+
+    static int isodataThreshold(int[] h) {
+        // Prefix counts and sums, so the two class means at any T cost O(1).
+        long[] n = new long[257], s = new long[257];
+        for (int v = 0; v < 256; v++) {
+            n[v + 1] = n[v] + h[v];
+            s[v + 1] = s[v] + (long) v * h[v];
+        }
+        int T = (int) (s[256] / n[256]);
+        while (true) {
+            int t = Math.max(0, Math.min(256, T));
+            long count1 = n[t], count2 = n[256] - n[t];
+            long sum1 = s[t], sum2 = s[256] - s[t];
+            int next = T;
+            if (count1 > 0 && count2 > 0) {
+                next = (int) Math.round((sum1 / (double) count1 + sum2 / (double) count2) / 2.0);
+            }
+            if (next == T) {
+                return T;
+            }
+            T = next;
+        }
+    }
+
+    /**
+     * Otsu threshold of the gray levels: the T maximising the between-class variance of
+     * the levels below T and those at or above T. O(256).
+     */
+    int otsuThreshold() {
+        return otsuThreshold(hist[GRAY]);
+    }
+
+    static int otsuThreshold(int[] h) {
+        long total = 0;
+        double sumAll = 0;
+        for (int v = 0; v < 256; v++) {
+            total += h[v];
+            sumAll += (double) v * h[v];
+        }
+        long n0 = 0;
+        double sum0 = 0, best = -1;
+        int bestT = 0;
+        for (int t = 1; t < 256; t++) {
+            n0 += h[t - 1];
+            sum0 += (double) (t - 1) * h[t - 1];
+            long n1 = total - n0;
+            if (n0 == 0 || n1 == 0) {
+                continue;
+            }
+            double d = sum0 / n0 - (sumAll - sum0) / n1;
+            double between = (double) n0 * n1 * d * d;
+            if (between > best) {
+                best = between;
+                bestT = t;
+            }
+        }
+        return bestT;
+    }
+
+    /**
+     * Multi-level Otsu thresholds of the gray levels: the classes-1 ascending thresholds
+     * that split the levels into the given number of classes with the largest between-class
+     * variance. Each threshold is the first level of the class above it, as for otsuThreshold.
+     */
+    int[] multiOtsuThresholds(int classes) {
+        return multiOtsuThresholds(hist[GRAY], classes);
+    }
+
+    /**
+     * Maximising the between-class variance is the same as maximising the sum over the
+     * classes of (sum of levels)^2 / count, which is found by dynamic programming on the
+     * class boundaries in O(classes * 256^2), whatever the size of the image.
+     */
+    static int[] multiOtsuThresholds(int[] h, int classes) {
+        if (classes < 2 || classes > 256) {
+            throw new IllegalArgumentException("Number of classes must be between 2 and 256.");
+        }
+        // Prefix counts and sums: levels [i, j) hold n[j] - n[i] pixels summing to s[j] - s[i].
+        long[] n = new long[257];
+        double[] s = new double[257];
+        for (int v = 0; v < 256; v++) {
+            n[v + 1] = n[v] + h[v];
+            s[v + 1] = s[v] + (double) v * h[v];
+        }
+        // best[c][j]: largest score of levels [0, j) split into c + 1 ranges of at least one level;
+        // from[c][j]: the start of the last range for it.
+        double[][] best = new double[classes][257];
+        int[][] from = new int[classes][257];
+        for (int j = 1; j <= 256; j++) {
+            best[0][j] = score(n, s, 0, j);
+        }
+        for (int c = 1; c < classes; c++) {
+            for (int j = c + 1; j <= 256; j++) {
+                double max = -1;
+                for (int i = c; i < j; i++) {
+                    double v = best[c - 1][i] + score(n, s, i, j);
+                    if (v > max) {
+                        max = v;
+                        from[c][j] = i;
+                    }
+                }
+                best[c][j] = max;
+            }
+        }
+        int[] thresholds = new int[classes - 1];
+        for (int c = classes - 1, j = 256; c > 0; c--) {
+            j = from[c][j];
+            thresholds[c - 1] = j;
+        }
+        return thresholds;
+    }
+
+    private static double score(long[] n, double[] s, int i, int j) {
+        long count = n[j] - n[i];
+        double sum = s[j] - s[i];
+        return (count == 0) ? 0 : sum * sum / count;
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Summed-area table of a plane of values from 0 to 255, and optionally of their squares, so
+ * that the sum over any rectangle costs four lookups whatever its size.
+ * <p>
+ * The tables are (width + 1) x (height + 1) with a zero first row and column: entry (x, y)
+ * holds the sum of the values in [0, x) x [0, y). They are built in one pass over the values
+ * with parallel prefix sums: every row band first sums its own rows as if it started the
+ * image, the last row of each band is then carried into the next band (one row per band,
+ * sequentially), and finally every band adds its carry row to its rows in parallel.
+ * <p>
+ * The plain sums are ints that are allowed to wrap: differences of wrapped sums are exact
+ * while the true sum fits in 32 bits, i.e. for rectangles of up to 16 million pixels. The
+ * squares are kept as longs.
+ */
+final class IntegralImage {
+    final int width;
+    final int height;
+    private final int stride;
+    private final int[] sums;
+    private final long[] squares;    // null unless requested
+
+    /**
+     * Build the tables of a flat, row-major plane.
+     *
+     * @param values      width * height values from 0 to 255
+     * @param withSquares also build the table of the squared values (for variances)
+     */
+    IntegralImage(int[] values, int width, int height, boolean withSquares) {
+        this.width = width;
+        this.height = height;
+        this.stride = width + 1;
+        this.sums = new int[stride * (height + 1)];
+        this.squares = withSquares ? new long[sums.length] : null;
+
+        // Each band on its own: row prefix sums, accumulated down the band's rows. The band
+        // count is taken once so that the carry pass below sees the same bands.
+        int bands = RowBands.count(height);
+        int[] lastRow = new int[bands];
+        RowBands.forBands(bands, height, (band, y0, y1) -> {
+            lastRow[band] = y1;
+            for (int y = y0; y < y1; y++) {
+                int vi = y * width, ti = (y + 1) * stride + 1, above = ti - stride;
+                boolean first = y == y0;
+                int rowSum = 0;
+                long rowSquares = 0;
+                for (int x = 0; x < width; x++) {
+                    int v = values[vi + x];
+                    rowSum += v;
+                    sums[ti + x] = (first ? 0 : sums[above + x]) + rowSum;
+                    if (squares != null) {
+                        rowSquares += v * v;
+                        squares[ti + x] = (first ? 0 : squares[above + x]) + rowSquares;
+                    }
+                }
+            }
+        });
+        if (bands == 1) {
+            return;
+        }
+        // carry[b]: the table row just above band b, i.e. the last row of all earlier bands.
+        int[][] carry = new int[bands][];
+        long[][] carrySquares = new long[bands][];
+        for (int b = 1; b < bands; b++) {
+            int ti = lastRow[b - 1] * stride;
+            carry[b] = new int[stride];
+            carrySquares[b] = (squares != null) ? new long[stride] : null;
+            for (int x = 0; x < stride; x++) {
+                carry[b][x] = sums[ti + x] + ((carry[b - 1] != null) ? carry[b - 1][x] : 0);
+                if (squares != null) {
+                    carrySquares[b][x] = squares[ti + x] + ((carrySquares[b - 1] != null) ? carrySquares[b - 1][x] : 0);
+                }
+            }
+        }
+        RowBands.forBands(bands, height, (band, y0, y1) -> {
+            if (band == 0) {
+                return;
+            }
+            int[] c = carry[band];
+            long[] cs = carrySquares[band];
+            for (int y = y0; y < y1; y++) {
+                int ti = (y + 1) * stride;
+                for (int x = 0; x < stride; x++) {
+                    sums[ti + x] += c[x];
+                }
+                if (cs != null) {
+                    for (int x = 0; x < stride; x++) {
+                        squares[ti + x] += cs[x];
+                    }
+                }
+            }
+        });
+    }
+
+    // Sum of the values in [x0, x1) x [y0, y1), which must lie inside the plane.
+    long sum(int x0, int y0, int x1, int y1) {
+        int a = y0 * stride, b = y1 * stride;
+        return (sums[b + x1] - sums[b + x0] - sums[a + x1] + sums[a + x0]) & 0xffffffffL;
+    }
+
+    // Sum of the squared values in [x0, x1) x [y0, y1).
+    long sumSquares(int x0, int y0, int x1, int y1) {
+        int a = y0 * stride, b = y1 * stride;
+        return squares[b + x1] - squares[b + x0] - squares[a + x1] + squares[a + x0];
+    }
+
+    /**
+     * Box filter of width 2 * radius + 1 over rows [y0, y1), written to out (width * height,
+     * row-major). With clipped set, each output is the mean of the window's pixels that lie
+     * inside the plane; otherwise it is the window sum times weight, i.e. a convolution with
+     * a uniform mask and zero padding.
+     */
+    void box(int radius, boolean clipped, float weight, float[] out, int y0, int y1) {
+        for (int y = y0; y < y1; y++) {
+            int wy0 = Math.max(0, y - radius), wy1 = Math.min(height, y + radius + 1);
+            for (int x = 0; x < width; x++) {
+                int wx0 = Math.max(0, x - radius), wx1 = Math.min(width, x + radius + 1);
+                long s = sum(wx0, wy0, wx1, wy1);
+                out[y * width + x] = clipped ? (float) s / ((wx1 - wx0) * (wy1 - wy0)) : s * weight;
+            }
+        }
+    }
+
+    /**
+     * Local mean and variance over the (2 * radius + 1)^2 window around each pixel of rows
+     * [y0, y1), counting only the pixels inside the plane. Needs the table of squares.
+     */
+    void meanVariance(int radius, float[] mean, float[] variance, int y0, int y1) {
+        for (int y = y0; y < y1; y++) {
+            int wy0 = Math.max(0, y - radius), wy1 = Math.min(height, y + radius + 1);
+            for (int x = 0; x < width; x++) {
+                int wx0 = Math.max(0, x - radius), wx1 = Math.min(width, x + radius + 1);
+                double n = (wx1 - wx0) * (wy1 - wy0);
+                double m = sum(wx0, wy0, wx1, wy1) / n;
+                double v = sumSquares(wx0, wy0, wx1, wy1) / n - m * m;
+                mean[y * width + x] = (float) m;
+                variance[y * width + x] = (float) Math.max(0, v);
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+import java.util.Random;
+import java.awt.image.BufferedImage;
+
+/**
+ * A chain of point operations composed into look-up tables and applied in one pass.
+ * <p>
+ * Every point operation in Demo is a function of one 8-bit value, so it is described by a
+ * 256-entry table. A chain keeps the composition of the tables appended so far:
+ * <ul>
+ * <li>then(lut) maps each colour channel independently (negative, rescale, shift, log, ...)</li>
+ * <li>thenGray(lut) converts to gray, (R + G + B) / 3, and maps that value (bit-plane
+ *     slicing, thresholding). Channel tables appended after it map the gray value.</li>
+ * </ul>
+ * Appending costs 256 look-ups, so a chain of any length is applied to the image with one
+ * read and one write per pixel.
+ */
+final class LutChain {
+    // Composition of the per-channel tables appended before the first gray conversion.
+    private final int[] channel = new int[256];
+    // Table applied to the gray value once the chain converts to gray, or null.
+    private int[] gray = null;
+    private int length = 0;
+
+    LutChain() {
+        for (int v = 0; v < 256; v++) {
+            channel[v] = v;
+        }
+    }
+
+    // Append a per-channel table.
+    LutChain then(int[] lut) {
+        int[] t = (gray != null) ? gray : channel;
+        for (int v = 0; v < 256; v++) {
+            t[v] = lut[t[v]];
+        }
+        length++;
+        return this;
+    }
+
+    // Append a conversion to gray followed by a table on the gray value.
+    LutChain thenGray(int[] lut) {
+        if (gray == null) {
+            gray = lut.clone();
+        } else {
+            // The image is already gray, so the average of the channels is the gray value itself.
+            for (int v = 0; v < 256; v++) {
+                gray[v] = lut[gray[v]];
+            }
+        }
+        length++;
+        return this;
+    }
+
+    // Number of operations appended.
+    int length() {
+        return length;
+    }
+
+    /**
+     * Apply the whole chain to a new TYPE_INT_RGB image in a single pass over the pixels.
+     */
+    BufferedImage apply(BufferedImage img) {
+        PixelBuffer src = PixelBuffer.wrap(img);
+        PixelBuffer dst = PixelBuffer.create(src.width, src.height);
+        int[] ch = channel.clone(), g = (gray != null) ? gray.clone() : null;
+        RowBands.forEach(src.height, (band, y0, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                int si = src.row(y), di = dst.row(y);
+                if (g == null) {
+                    for (int x = 0; x < src.width; x++) {
+                        int p = src.data[si + x];
+                        dst.data[di + x] = PixelBuffer.pack(ch[PixelBuffer.red(p)], ch[PixelBuffer.green(p)], ch[PixelBuffer.blue(p)]);
+                    }
+                } else {
+                    for (int x = 0; x < src.width; x++) {
+                        int p = src.data[si + x];
+                        int v = (ch[PixelBuffer.red(p)] + ch[PixelBuffer.green(p)] + ch[PixelBuffer.blue(p)]) / 3;
+                        dst.data[di + x] = PixelBuffer.packGray(g[v]);
+                    }
+                }
+            }
+        });
+        return dst.image();
+    }
+
+    /**
+     * Gray plane (average of R, G, B) of the image apply() would return, computed directly
+     * from the input without building that image. Flat and row-major with stride == width.
+     */
+    int[] grayPlane(BufferedImage img) {
+        PixelBuffer src = PixelBuffer.wrap(img);
+        int width = src.width;
+        int[] out = new int[width * src.height];
+        int[] ch = channel.clone(), g = (gray != null) ? gray.clone() : null;
+        RowBands.forEach(src.height, (band, y0, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                int si = src.row(y), o = y * width;
+                for (int x = 0; x < width; x++) {
+                    int p = src.data[si + x];
+                    int v = (ch[PixelBuffer.red(p)] + ch[PixelBuffer.green(p)] + ch[PixelBuffer.blue(p)]) / 3;
+                    out[o + x] = (g != null) ? g[v] : v;
+                }
+            }
+        });
+        return out;
+    }
+
+    // ------------------- Tables of the Demo point operations -------------------
+
+    // s = 255 - r
+    static int[] negative() {
+        int[] lut = new int[256];
+        for (int r = 0; r < 256; r++) {
+            lut[r] = 255 - r;
+        }
+        return lut;
+    }
+
+    // s = round(r * factor), clamped to [0,255].
+    static int[] rescale(float factor) {
+        int[] lut = new int[256];
+        for (int r = 0; r < 256; r++) {
+            lut[r] = clamp(Math.round(r * factor));
+        }
+        return lut;
+    }
+
+    // s = r + shift, clamped to [0,255].
+    static int[] shift(int shift) {
+        int[] lut = new int[256];
+        for (int r = 0; r < 256; r++) {
+            lut[r] = clamp(r + shift);
+        }
+        return lut;
+    }
+
+    // s = c * log(1 + r), clamped to [0,255].
+    static int[] log(float c) {
+        int[] lut = new int[256];
+        for (int r = 0; r < 256; r++) {
+            lut[r] = clamp(Math.round(c * (float) Math.log(1 + r)));
+        }
+        return lut;
+    }
+
+    // s = c * r^p with c = 255 / 255^p, so that 255 maps to 255.
+    static int[] power(float p) {
+        float c = 255f / (float) Math.pow(255, p);
+        int[] lut = new int[256];
+        for (int r = 0; r < 256; r++) {
+            lut[r] = clamp(Math.round(c * (float) Math.pow(r, p)));
+        }
+        return lut;
+    }
+
+    // 256 independent random values.
+    static int[] random(Random rand) {
+        int[] lut = new int[256];
+        for (int i = 0; i < 256; i++) {
+            lut[i] = rand.nextInt(256);
+        }
+        return lut;
+    }
+
+    // 255 where the given bit is set, 0 elsewhere (used with thenGray).
+    static int[] bitPlane(int bit) {
+        int[] lut = new int[256];
+        for (int v = 0; v < 256; v++) {
+            lut[v] = ((v >> bit) & 1) == 1 ? 255 : 0;
+        }
+        return lut;
+    }
+
+    // 255 from the threshold up, 0 below it (used with thenGray).
+    static int[] threshold(int thresh) {
+        int[] lut = new int[256];
+        for (int v = 0; v < 256; v++) {
+            lut[v] = (v >= thresh) ? 255 : 0;
+        }
+        return lut;
+    }
+
+    // Evenly spaced gray levels, one per class between ascending thresholds: values below
+    // thresholds[0] map to 0, from the last threshold up to 255 (used with thenGray).
+    static int[] levels(int[] thresholds) {
+        int[] lut = new int[256];
+        int classes = thresholds.length + 1;
+        for (int v = 0, c = 0; v < 256; v++) {
+            while (c < thresholds.length && v >= thresholds[c]) {
+                c++;
+            }
+            lut[v] = Math.round(c * 255f / (classes - 1));
+        }
+        return lut;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
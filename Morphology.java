@@ -0,0 +1,350 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Gray-level and binary morphology with arbitrary structuring elements, on flat, row-major
+ * 8-bit planes as in OrderStatistics.
+ * <p>
+ * Erosion is the minimum of f(x + b) over the offsets b of the element and dilation the
+ * maximum of f(x - b). Pixels outside the image are ignored, as in the min and max filters,
+ * so eroding or dilating by a size x size square gives the Lab 7 min or max filter. Opening,
+ * closing, the top-hats and the gradient are built from the two.
+ * <p>
+ * An element is decomposed into horizontal segments, one or more per row of its mask. Each
+ * distinct segment is a running min/max along the image rows (OrderStatistics.Line, about
+ * three comparisons per pixel whatever its length), and the rows of the element are then
+ * combined with one comparison each. Rectangles reduce to a horizontal and a vertical running
+ * pass, whose cost does not depend on the size at all.
+ * <p>
+ * Planes that only hold 0 and 255 are processed as BitImages instead, 64 pixels per long.
+ */
+final class Morphology {
+    // Operations understood by apply().
+    static final String[] OPERATIONS = {"erode", "dilate", "open", "close", "tophat", "blackhat", "gradient"};
+
+    private Morphology() {
+    }
+
+    /**
+     * A structuring element: a mask of h rows and w columns whose origin is the centre cell
+     * (w / 2, h / 2), kept as horizontal segments: segment i covers the offsets
+     * [lo[i], hi[i]] x {dy[i]} relative to the origin.
+     */
+    static final class Element {
+        final int[] dy, lo, hi;
+        private final String name;
+
+        Element(boolean[][] mask, String name) {
+            int h = mask.length, w = (h > 0) ? mask[0].length : 0;
+            List<int[]> segments = new ArrayList<>();
+            for (int row = 0; row < h; row++) {
+                if (mask[row].length != w) {
+                    throw new IllegalArgumentException("Structuring element rows must have the same length.");
+                }
+                for (int col = 0; col < w; col++) {
+                    if (mask[row][col] && (col == 0 || !mask[row][col - 1])) {
+                        int end = col;
+                        while (end + 1 < w && mask[row][end + 1]) {
+                            end++;
+                        }
+                        segments.add(new int[] {row - h / 2, col - w / 2, end - w / 2});
+                    }
+                }
+            }
+            if (segments.isEmpty()) {
+                throw new IllegalArgumentException("Structuring element is empty.");
+            }
+            this.dy = new int[segments.size()];
+            this.lo = new int[segments.size()];
+            this.hi = new int[segments.size()];
+            for (int i = 0; i < dy.length; i++) {
+                dy[i] = segments.get(i)[0];
+                lo[i] = segments.get(i)[1];
+                hi[i] = segments.get(i)[2];
+            }
+            this.name = name;
+        }
+
+        private Element(int[] dy, int[] lo, int[] hi, String name) {
+            this.dy = dy;
+            this.lo = lo;
+            this.hi = hi;
+            this.name = name;
+        }
+
+        /**
+         * Parse "N" or "square:N", "rect:WxH", "cross:N", "diamond:N", "disk:N", "hline:N",
+         * "vline:N", or "mask:rows" with rows of 0/1 separated by '/', e.g. "mask:010/111/010".
+         * Sizes are rounded up to odd numbers, like the filter sizes (5 and 4 both give a
+         * radius of 2).
+         *
+         * @throws IllegalArgumentException if the text is not a valid element
+         */
+        static Element parse(String spec) {
+            String[] parts = spec.trim().toLowerCase().split(":", 2);
+            if (parts.length == 1) {
+                return parse("square:" + parts[0]);
+            }
+            String shape = parts[0], size = parts[1].trim();
+            if (shape.equals("mask")) {
+                String[] rows = size.split("/");
+                boolean[][] mask = new boolean[rows.length][];
+                for (int row = 0; row < rows.length; row++) {
+                    if (!rows[row].matches("[01]+")) {
+                        throw new IllegalArgumentException("Mask rows must be 0s and 1s: " + rows[row]);
+                    }
+                    mask[row] = new boolean[rows[row].length()];
+                    for (int col = 0; col < mask[row].length; col++) {
+                        mask[row][col] = rows[row].charAt(col) == '1';
+                    }
+                }
+                return new Element(mask, spec);
+            }
+            int rx, ry;
+            if (shape.equals("rect")) {
+                String[] wh = size.split("x");
+                if (wh.length != 2) {
+                    throw new IllegalArgumentException("Expected rect:<width>x<height>, e.g. rect:9x3");
+                }
+                rx = radius(wh[0]);
+                ry = radius(wh[1]);
+            } else {
+                rx = ry = radius(size);
+            }
+            boolean[][] mask = new boolean[2 * ry + 1][2 * rx + 1];
+            for (int y = -ry; y <= ry; y++) {
+                for (int x = -rx; x <= rx; x++) {
+                    boolean in;
+                    switch(shape) {
+                        case "square":
+                        case "rect": in = true; break;
+                        case "cross": in = x == 0 || y == 0; break;
+                        case "diamond": in = Math.abs(x) + Math.abs(y) <= rx; break;
+                        case "disk": in = x * x + y * y <= rx * rx; break;
+                        case "hline": in = y == 0; break;
+                        case "vline": in = x == 0; break;
+                        default:
+                            throw new IllegalArgumentException("Unknown structuring element: " + shape);
+                    }
+                    mask[y + ry][x + rx] = in;
+                }
+            }
+            return new Element(mask, spec);
+        }
+
+        private static int radius(String size) {
+            int n = Integer.parseInt(size.trim());
+            if (n < 1) {
+                throw new IllegalArgumentException("Structuring element size must be at least 1.");
+            }
+            return n / 2;
+        }
+
+        // The element mirrored through its origin, for dilation.
+        Element reflect() {
+            int n = dy.length;
+            int[] rdy = new int[n], rlo = new int[n], rhi = new int[n];
+            // Reversed, so the segments stay sorted by row.
+            for (int i = 0; i < n; i++) {
+                rdy[n - 1 - i] = -dy[i];
+                rlo[n - 1 - i] = -hi[i];
+                rhi[n - 1 - i] = -lo[i];
+            }
+            return new Element(rdy, rlo, rhi, name + " (reflected)");
+        }
+
+        // Largest horizontal or vertical distance from the origin to a cell of the element.
+        int radius() {
+            int r = 0;
+            for (int i = 0; i < dy.length; i++) {
+                r = Math.max(r, Math.max(Math.abs(dy[i]), Math.max(Math.abs(lo[i]), Math.abs(hi[i]))));
+            }
+            return r;
+        }
+
+        // True if the segments are the same on every one of a run of consecutive rows.
+        boolean isRectangle() {
+            for (int i = 1; i < dy.length; i++) {
+                if (dy[i] != dy[i - 1] + 1 || lo[i] != lo[0] || hi[i] != hi[0]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int minDy() {
+            return dy[0];
+        }
+
+        int maxDy() {
+            return dy[dy.length - 1];
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * One of the OPERATIONS on a plane, as a new plane:
+     * <ul>
+     * <li>erode, dilate;</li>
+     * <li>open: dilation of the erosion (removes bright details smaller than the element);</li>
+     * <li>close: erosion of the dilation (fills dark details smaller than the element);</li>
+     * <li>tophat: f - open(f), the bright details; blackhat: close(f) - f, the dark ones;</li>
+     * <li>gradient: dilate(f) - erode(f), the outlines.</li>
+     * </ul>
+     */
+    static int[] apply(String op, int[] src, int width, int height, Element e) {
+        if (isBinary(src, width, height)) {
+            return applyBinary(op, BitImage.of(src, width, height), e).toGray();
+        }
+        switch(op) {
+            case "erode":
+                return erode(src, width, height, e);
+            case "dilate":
+                return dilate(src, width, height, e);
+            case "open":
+                return dilate(erode(src, width, height, e), width, height, e);
+            case "close":
+                return erode(dilate(src, width, height, e), width, height, e);
+            case "tophat":
+                return difference(src, dilate(erode(src, width, height, e), width, height, e), width, height);
+            case "blackhat":
+                return difference(erode(dilate(src, width, height, e), width, height, e), src, width, height);
+            case "gradient":
+                return difference(dilate(src, width, height, e), erode(src, width, height, e), width, height);
+        }
+        throw new IllegalArgumentException("Unknown morphological operation: " + op);
+    }
+
+    // The same operations on a binary image: differences become AND NOT.
+    static BitImage applyBinary(String op, BitImage b, Element e) {
+        switch(op) {
+            case "erode":
+                return b.erode(e);
+            case "dilate":
+                return b.dilate(e);
+            case "open":
+                return b.erode(e).dilate(e);
+            case "close":
+                return b.dilate(e).erode(e);
+            case "tophat":
+                return b.andNot(b.erode(e).dilate(e));
+            case "blackhat":
+                return b.dilate(e).erode(e).andNot(b);
+            case "gradient":
+                return b.dilate(e).andNot(b.erode(e));
+        }
+        throw new IllegalArgumentException("Unknown morphological operation: " + op);
+    }
+
+    // True if every value is 0 or 255.
+    static boolean isBinary(int[] src, int width, int height) {
+        int bands = RowBands.count(height);
+        boolean[] gray = new boolean[bands];
+        RowBands.forBands(bands, height, (band, y0, y1) -> {
+            for (int i = y0 * width; i < y1 * width && !gray[band]; i++) {
+                gray[band] = src[i] != 0 && src[i] != 255;
+            }
+        });
+        for (boolean g : gray) {
+            if (g) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int[] erode(int[] src, int width, int height, Element e) {
+        return extrema(src, width, height, e, false);
+    }
+
+    static int[] dilate(int[] src, int width, int height, Element e) {
+        return extrema(src, width, height, e.reflect(), true);
+    }
+
+    // a - b, clamped at 0 like the binary AND NOT. Opening and closing only break their order
+    // with f near the border, with elements that do not contain their origin.
+    private static int[] difference(int[] a, int[] b, int width, int height) {
+        int[] out = new int[a.length];
+        RowBands.forEach(height, (band, y0, y1) -> {
+            for (int i = y0 * width; i < y1 * width; i++) {
+                out[i] = Math.max(0, a[i] - b[i]);
+            }
+        });
+        return out;
+    }
+
+    // Min (or max) of src over the offsets of e.
+    private static int[] extrema(int[] src, int width, int height, Element e, boolean max) {
+        int[] out = new int[width * height];
+        if (e.isRectangle()) {
+            int[] rows = new int[width * height];
+            RowBands.forEach(height, (band, y0, y1) ->
+                OrderStatistics.rowMinMax(src, max ? null : rows, max ? rows : null, width, e.lo[0], e.hi[0], y0, y1));
+            RowBands.forEach(height, (band, y0, y1) ->
+                OrderStatistics.columnMinMax(max ? null : rows, max ? rows : null, max ? null : out, max ? out : null,
+                                             width, height, e.minDy(), e.maxDy(), y0, y1));
+        } else {
+            RowBands.forEach(height, (band, y0, y1) -> segments(src, out, width, height, e, max, y0, y1));
+        }
+        return out;
+    }
+
+    /**
+     * Rows [y0, y1) of the min (or max) over the segments of e. The running extrema of each
+     * distinct segment are kept for the last few source rows (as many as the element is high),
+     * so every source row is scanned once per distinct segment.
+     */
+    private static void segments(int[] src, int[] dst, int width, int height, Element e, boolean max, int y0, int y1) {
+        // Distinct segments, and the one each segment of e uses.
+        List<OrderStatistics.Line> lines = new ArrayList<>();
+        List<int[]> ranges = new ArrayList<>();
+        int[] distinct = new int[e.dy.length];
+        for (int i = 0; i < e.dy.length; i++) {
+            int d = 0;
+            while (d < ranges.size() && (ranges.get(d)[0] != e.lo[i] || ranges.get(d)[1] != e.hi[i])) {
+                d++;
+            }
+            if (d == ranges.size()) {
+                ranges.add(new int[] {e.lo[i], e.hi[i]});
+                lines.add(new OrderStatistics.Line(width, e.lo[i], e.hi[i]));
+            }
+            distinct[i] = d;
+        }
+        int span = e.maxDy() - e.minDy() + 1;
+        int[][] cache = new int[lines.size()][span * width];
+        int[][] cachedRow = new int[lines.size()][span];
+        for (int[] c : cachedRow) {
+            java.util.Arrays.fill(c, -1);
+        }
+        int fill = max ? 0 : 255;
+        for (int y = y0; y < y1; y++) {
+            int o = y * width;
+            java.util.Arrays.fill(dst, o, o + width, fill);
+            for (int i = 0; i < e.dy.length; i++) {
+                int sy = y + e.dy[i];
+                if (sy < 0 || sy >= height) {
+                    continue;
+                }
+                int d = distinct[i], slot = Math.floorMod(sy, span), c = slot * width;
+                if (cachedRow[d][slot] != sy) {
+                    lines.get(d).extrema(src, sy * width, max, cache[d], c);
+                    cachedRow[d][slot] = sy;
+                }
+                int[] row = cache[d];
+                if (max) {
+                    for (int x = 0; x < width; x++) {
+                        dst[o + x] = Math.max(dst[o + x], row[c + x]);
+                    }
+                } else {
+                    for (int x = 0; x < width; x++) {
+                        dst[o + x] = Math.min(dst[o + x], row[c + x]);
+                    }
+                }
+            }
+        }
+    }
+}
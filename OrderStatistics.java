@@ -0,0 +1,216 @@
+/**
+ * Order-statistics filters on flat, row-major 8-bit planes, used by the Lab 7 operations.
+ * <p>
+ * Windows are size x size squares centred on the pixel and truncated at the image border
+ * (pixels outside the image are ignored, not padded). Every method writes only the output
+ * rows [y0, y1), so callers can run disjoint row bands in parallel.
+ */
+final class OrderStatistics {
+    private OrderStatistics() {
+    }
+
+    /**
+     * Median filter using Huang's sliding histogram. Each row starts from a fresh 256-bin
+     * histogram; moving one pixel to the right adds the entering column and removes the
+     * leaving one, and the median is tracked incrementally from its previous position, so
+     * the cost is O(size) per pixel and nothing is allocated per pixel. The result equals
+     * element count / 2 of the sorted window.
+     */
+    static void median(int[] src, int[] dst, int width, int height, int size, int y0, int y1) {
+        int r = size / 2;
+        int[] hist = new int[256];
+        for (int y = y0; y < y1; y++) {
+            int ya = Math.max(0, y - r), yb = Math.min(height - 1, y + r);
+            int rows = yb - ya + 1;
+            java.util.Arrays.fill(hist, 0);
+            int cols = 0;
+            for (int x = 0; x <= Math.min(width - 1, r); x++) {
+                addColumn(src, hist, width, x, ya, yb);
+                cols++;
+            }
+            int med = 0, below = 0; // below = number of values < med
+            for (int x = 0; x < width; x++) {
+                if (x > 0) {
+                    int enter = x + r, leave = x - r - 1;
+                    if (enter < width) {
+                        for (int yy = ya; yy <= yb; yy++) {
+                            int v = src[yy * width + enter];
+                            hist[v]++;
+                            if (v < med) below++;
+                        }
+                        cols++;
+                    }
+                    if (leave >= 0) {
+                        for (int yy = ya; yy <= yb; yy++) {
+                            int v = src[yy * width + leave];
+                            hist[v]--;
+                            if (v < med) below--;
+                        }
+                        cols--;
+                    }
+                }
+                int rank = rows * cols / 2;
+                while (below > rank) {
+                    med--;
+                    below -= hist[med];
+                }
+                while (below + hist[med] <= rank) {
+                    below += hist[med];
+                    med++;
+                }
+                dst[y * width + x] = med;
+            }
+        }
+    }
+
+    // Add rows ya..yb of column x to the histogram.
+    private static void addColumn(int[] src, int[] hist, int width, int x, int ya, int yb) {
+        for (int yy = ya; yy <= yb; yy++) {
+            hist[src[yy * width + x]]++;
+        }
+    }
+
+    // ------------------- Running min / max (van Herk / Gil-Werman) -------------------
+    // A size x size min or max separates into a horizontal and a vertical running min/max.
+    // Each 1D pass pads the line with the identity value (255 for min, 0 for max), which is
+    // the same as truncating the window, splits it into blocks of size k, and keeps prefix
+    // (g) and suffix (h) extrema per block; the window starting at j is then op(h[j], g[j+k-1]).
+    // That is about three comparisons per pixel whatever the window size. The passes also
+    // take windows [x + lo, x + hi] that are not centred, for the segments of Morphology.
+
+    /**
+     * Running min or max along one line of width values, over the window [x + lo, x + hi]
+     * of every x. Holds the padded scratch arrays, so one Line serves every row of a band.
+     */
+    static final class Line {
+        private final int width, lo, k, pad;
+        private final int[] line, g, h;
+
+        Line(int width, int lo, int hi) {
+            this.width = width;
+            this.lo = lo;
+            this.k = hi - lo + 1;
+            // Padded index of x = 0: enough identity values on the left for the first window.
+            this.pad = Math.max(0, -lo);
+            int len = (width + pad + Math.max(0, hi) + k - 1) / k * k;
+            this.line = new int[len];
+            this.g = new int[len];
+            this.h = new int[len];
+        }
+
+        // dst[di + x] = min (or max) of src[si + x + lo .. si + x + hi], for x in [0, width).
+        void extrema(int[] src, int si, boolean max, int[] dst, int di) {
+            int len = line.length;
+            int fill = max ? 0 : 255;
+            java.util.Arrays.fill(line, 0, pad, fill);
+            System.arraycopy(src, si, line, pad, width);
+            java.util.Arrays.fill(line, pad + width, len, fill);
+            for (int s = 0; s < len; s += k) {
+                int e = s + k - 1;
+                g[s] = line[s];
+                h[e] = line[e];
+                for (int j = 1; j < k; j++) {
+                    g[s + j] = max ? Math.max(g[s + j - 1], line[s + j]) : Math.min(g[s + j - 1], line[s + j]);
+                    h[e - j] = max ? Math.max(h[e - j + 1], line[e - j]) : Math.min(h[e - j + 1], line[e - j]);
+                }
+            }
+            int a = lo + pad, b = a + k - 1;
+            if (max) {
+                for (int x = 0; x < width; x++) {
+                    dst[di + x] = Math.max(h[a + x], g[b + x]);
+                }
+            } else {
+                for (int x = 0; x < width; x++) {
+                    dst[di + x] = Math.min(h[a + x], g[b + x]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Horizontal pass: running min and/or max over each of rows [y0, y1).
+     * Either destination may be null if that extremum is not needed.
+     */
+    static void rowMinMax(int[] src, int[] dstMin, int[] dstMax, int width, int size, int y0, int y1) {
+        int r = size / 2;
+        rowMinMax(src, dstMin, dstMax, width, -r, r, y0, y1);
+    }
+
+    // Horizontal pass over the windows [x + lo, x + hi].
+    static void rowMinMax(int[] src, int[] dstMin, int[] dstMax, int width, int lo, int hi, int y0, int y1) {
+        Line line = new Line(width, lo, hi);
+        for (int y = y0; y < y1; y++) {
+            int row = y * width;
+            if (dstMin != null) {
+                line.extrema(src, row, false, dstMin, row);
+            }
+            if (dstMax != null) {
+                line.extrema(src, row, true, dstMax, row);
+            }
+        }
+    }
+
+    /**
+     * Vertical pass: running min and/or max down the columns for output rows [y0, y1),
+     * reading the halo rows y0 - size/2 .. y1 + size/2 of the horizontal results. Whole rows
+     * are processed at a time so the inner loops run along memory.
+     * Either source/destination pair may be null if that extremum is not needed.
+     */
+    static void columnMinMax(int[] srcMin, int[] srcMax, int[] dstMin, int[] dstMax,
+                             int width, int height, int size, int y0, int y1) {
+        int r = size / 2;
+        columnMinMax(srcMin, srcMax, dstMin, dstMax, width, height, -r, r, y0, y1);
+    }
+
+    // Vertical pass over the windows [y + lo, y + hi], reading rows y0 + lo .. y1 - 1 + hi.
+    static void columnMinMax(int[] srcMin, int[] srcMax, int[] dstMin, int[] dstMax,
+                             int width, int height, int lo, int hi, int y0, int y1) {
+        int k = hi - lo + 1, pad = Math.max(0, -lo);
+        // Padded row j holds image row j - pad; output row y needs padded rows y + lo + pad .. y + hi + pad.
+        int jLo = (y0 + lo + pad) / k * k;
+        int jHi = (y1 - 1 + hi + pad) / k * k + k;
+        int[] g = new int[(jHi - jLo) * width], h = new int[(jHi - jLo) * width];
+        if (dstMin != null) {
+            runColumns(srcMin, width, height, pad, k, jLo, jHi, g, h, false);
+            for (int y = y0; y < y1; y++) {
+                int a = (y + lo + pad - jLo) * width, b = (y + hi + pad - jLo) * width, o = y * width;
+                for (int x = 0; x < width; x++) {
+                    dstMin[o + x] = Math.min(h[a + x], g[b + x]);
+                }
+            }
+        }
+        if (dstMax != null) {
+            runColumns(srcMax, width, height, pad, k, jLo, jHi, g, h, true);
+            for (int y = y0; y < y1; y++) {
+                int a = (y + lo + pad - jLo) * width, b = (y + hi + pad - jLo) * width, o = y * width;
+                for (int x = 0; x < width; x++) {
+                    dstMax[o + x] = Math.max(h[a + x], g[b + x]);
+                }
+            }
+        }
+    }
+
+    // Fill the block prefix/suffix extrema for padded rows [jLo, jHi) (block aligned).
+    private static void runColumns(int[] src, int width, int height, int pad, int k, int jLo, int jHi,
+                                   int[] g, int[] h, boolean max) {
+        int fill = max ? 0 : 255;
+        for (int s = jLo; s < jHi; s += k) {
+            for (int j = s; j < s + k; j++) {
+                int y = j - pad, o = (j - jLo) * width, prev = o - width;
+                boolean inside = y >= 0 && y < height;
+                for (int x = 0; x < width; x++) {
+                    int v = inside ? src[y * width + x] : fill;
+                    g[o + x] = (j == s) ? v : (max ? Math.max(g[prev + x], v) : Math.min(g[prev + x], v));
+                }
+            }
+            for (int j = s + k - 1; j >= s; j--) {
+                int y = j - pad, o = (j - jLo) * width, next = o + width;
+                boolean inside = y >= 0 && y < height;
+                for (int x = 0; x < width; x++) {
+                    int v = inside ? src[y * width + x] : fill;
+                    h[o + x] = (j == s + k - 1) ? v : (max ? Math.max(h[next + x], v) : Math.min(h[next + x], v));
+                }
+            }
+        }
+    }
+}
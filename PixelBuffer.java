@@ -0,0 +1,106 @@
+import java.awt.image.*;
+
+/**
+ * A flat, row-major view over the packed 0xRRGGBB pixels of a TYPE_INT_RGB image.
+ * The view wraps the image's DataBufferInt directly, so reads and writes go straight
+ * to the pixel array without any getRGB/setRGB calls or intermediate copies.
+ * Subimages (e.g. an ROI taken with getSubimage) are supported through the offset
+ * and stride of the underlying raster.
+ */
+final class PixelBuffer {
+    final int width;
+    final int height;
+    final int[] data;    // shared with the wrapped image
+    final int offset;    // index of pixel (0, 0)
+    final int stride;    // distance between the starts of two rows
+    private final BufferedImage image;
+
+    private PixelBuffer(BufferedImage image, int[] data, int offset, int stride) {
+        this.image = image;
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.data = data;
+        this.offset = offset;
+        this.stride = stride;
+    }
+
+    // Wrap an image without copying. Images of any other type are first converted to TYPE_INT_RGB,
+    // in which case writes go to the converted copy (available through image()).
+    static PixelBuffer wrap(BufferedImage img) {
+        if (img.getType() != BufferedImage.TYPE_INT_RGB) {
+            BufferedImage temp = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+            java.awt.Graphics g = temp.getGraphics();
+            g.drawImage(img, 0, 0, null);
+            g.dispose();
+            img = temp;
+        }
+        WritableRaster raster = img.getRaster();
+        DataBufferInt db = (DataBufferInt) raster.getDataBuffer();
+        int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+        int offset = db.getOffset()
+                - raster.getSampleModelTranslateY() * stride
+                - raster.getSampleModelTranslateX();
+        return new PixelBuffer(img, db.getData(), offset, stride);
+    }
+
+    // Allocate a new TYPE_INT_RGB image of the given size and wrap it.
+    static PixelBuffer create(int width, int height) {
+        return wrap(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
+    }
+
+    // The image backing this buffer.
+    BufferedImage image() {
+        return image;
+    }
+
+    // Index of the first pixel of row y in data.
+    int row(int y) {
+        return offset + y * stride;
+    }
+
+    int get(int x, int y) {
+        return data[offset + y * stride + x];
+    }
+
+    void set(int x, int y, int rgb) {
+        data[offset + y * stride + x] = rgb;
+    }
+
+    // Grayscale plane (average of R, G, B), flat and row-major with stride == width.
+    int[] gray() {
+        int[] gray = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            int i = row(y);
+            int o = y * width;
+            for (int x = 0; x < width; x++) {
+                gray[o + x] = gray(data[i + x]);
+            }
+        }
+        return gray;
+    }
+
+    // ------------------- Packed pixel helpers -------------------
+    static int red(int p) {
+        return (p >> 16) & 0xff;
+    }
+
+    static int green(int p) {
+        return (p >> 8) & 0xff;
+    }
+
+    static int blue(int p) {
+        return p & 0xff;
+    }
+
+    static int gray(int p) {
+        return (((p >> 16) & 0xff) + ((p >> 8) & 0xff) + (p & 0xff)) / 3;
+    }
+
+    static int pack(int r, int g, int b) {
+        return (255 << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    static int packGray(int v) {
+        return (255 << 24) | (v << 16) | (v << 8) | v;
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Per-row kernels of the point and two-image operations, on packed 0xRRGGBB pixels.
+ * <p>
+ * This class is the scalar implementation. get() returns VectorKernels (simd/, built on the
+ * jdk.incubator.vector module) instead when it was compiled and the module is present at run
+ * time, and this class otherwise, so the same calls run with or without SIMD:
+ * <pre>
+ *   javac -d out *.java
+ *   javac --add-modules jdk.incubator.vector -cp out -d out simd/VectorKernels.java
+ *   java --add-modules jdk.incubator.vector -cp out Demo
+ * </pre>
+ * The system property demo.vector=false forces the scalar kernels. Both implementations give
+ * identical results.
+ * <p>
+ * Every method handles one run of n pixels, so callers keep their own row bands and offsets.
+ * The operation code is tested once per call, outside the pixel loop.
+ */
+class PixelKernels {
+    // Operation codes for arithmetic() and bitwise().
+    static final int ADD = 0, SUBTRACT = 1, MULTIPLY = 2, DIVIDE = 3;
+    static final int AND = 4, OR = 5, XOR = 6;
+
+    private static final PixelKernels INSTANCE = load();
+
+    PixelKernels() {
+    }
+
+    private static PixelKernels load() {
+        if (Boolean.parseBoolean(System.getProperty("demo.vector", "true"))) {
+            try {
+                return (PixelKernels) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // Not compiled, or started without --add-modules jdk.incubator.vector.
+            }
+        }
+        return new PixelKernels();
+    }
+
+    // The kernels to use: vectorised if available, otherwise scalar.
+    static PixelKernels get() {
+        return INSTANCE;
+    }
+
+    // Short description for logs and benchmarks, e.g. "scalar" or "vector (8 x int)".
+    String describe() {
+        return "scalar";
+    }
+
+    // Operation code of "add", "subtract", "multiply", "divide", "and", "or" or "xor".
+    static int op(String name) {
+        switch(name) {
+            case "add": return ADD;
+            case "subtract": return SUBTRACT;
+            case "multiply": return MULTIPLY;
+            case "divide": return DIVIDE;
+            case "and": return AND;
+            case "or": return OR;
+            case "xor": return XOR;
+        }
+        throw new IllegalArgumentException("Unknown operation: " + name);
+    }
+
+    // Raw result of an arithmetic operation on one channel value (divide by 0 gives 0).
+    static int arithmetic(int op, int a, int b) {
+        switch(op) {
+            case ADD: return a + b;
+            case SUBTRACT: return a - b;
+            case MULTIPLY: return a * b;
+            case DIVIDE: return (b == 0) ? 0 : a / b;
+        }
+        throw new IllegalArgumentException("Not an arithmetic operation: " + op);
+    }
+
+    // ------------------- Two-image operations -------------------
+
+    /**
+     * Raw results of ADD, SUBTRACT, MULTIPLY or DIVIDE on the channels of n pixel pairs,
+     * written planar: red to out[0, n), green to out[n, 2n), blue to out[2n, 3n).
+     */
+    void arithmetic(int op, int[] a, int ai, int[] b, int bi, int[] out, int n) {
+        switch(op) {
+            case ADD:
+                for (int x = 0; x < n; x++) {
+                    int p = a[ai + x], q = b[bi + x];
+                    out[x] = PixelBuffer.red(p) + PixelBuffer.red(q);
+                    out[n + x] = PixelBuffer.green(p) + PixelBuffer.green(q);
+                    out[2 * n + x] = PixelBuffer.blue(p) + PixelBuffer.blue(q);
+                }
+                break;
+            case SUBTRACT:
+                for (int x = 0; x < n; x++) {
+                    int p = a[ai + x], q = b[bi + x];
+                    out[x] = PixelBuffer.red(p) - PixelBuffer.red(q);
+                    out[n + x] = PixelBuffer.green(p) - PixelBuffer.green(q);
+                    out[2 * n + x] = PixelBuffer.blue(p) - PixelBuffer.blue(q);
+                }
+                break;
+            case MULTIPLY:
+                for (int x = 0; x < n; x++) {
+                    int p = a[ai + x], q = b[bi + x];
+                    out[x] = PixelBuffer.red(p) * PixelBuffer.red(q);
+                    out[n + x] = PixelBuffer.green(p) * PixelBuffer.green(q);
+                    out[2 * n + x] = PixelBuffer.blue(p) * PixelBuffer.blue(q);
+                }
+                break;
+            case DIVIDE:
+                for (int x = 0; x < n; x++) {
+                    int p = a[ai + x], q = b[bi + x];
+                    out[x] = arithmetic(DIVIDE, PixelBuffer.red(p), PixelBuffer.red(q));
+                    out[n + x] = arithmetic(DIVIDE, PixelBuffer.green(p), PixelBuffer.green(q));
+                    out[2 * n + x] = arithmetic(DIVIDE, PixelBuffer.blue(p), PixelBuffer.blue(q));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Not an arithmetic operation: " + op);
+        }
+    }
+
+    // Widen minMax[0] / minMax[1] to the smallest / largest of v[0, n).
+    void minMax(int[] v, int n, int[] minMax) {
+        int min = minMax[0], max = minMax[1];
+        for (int i = 0; i < n; i++) {
+            min = Math.min(min, v[i]);
+            max = Math.max(max, v[i]);
+        }
+        minMax[0] = min;
+        minMax[1] = max;
+    }
+
+    /**
+     * Pack n pixels from planar raw channel values (as written by arithmetic()), mapping each
+     * value v to (v - min) * 255 / range. v may be overwritten.
+     */
+    void rescaleToRgb(int[] v, int n, int min, int range, int[] dst, int di) {
+        for (int x = 0; x < n; x++) {
+            dst[di + x] = PixelBuffer.pack((v[x] - min) * 255 / range,
+                                           (v[n + x] - min) * 255 / range,
+                                           (v[2 * n + x] - min) * 255 / range);
+        }
+    }
+
+    // AND, OR or XOR of n pixel pairs.
+    void bitwise(int op, int[] a, int ai, int[] b, int bi, int[] dst, int di, int n) {
+        switch(op) {
+            case AND:
+                for (int x = 0; x < n; x++) {
+                    dst[di + x] = (a[ai + x] & b[bi + x]) | 0xff000000;
+                }
+                break;
+            case OR:
+                for (int x = 0; x < n; x++) {
+                    dst[di + x] = (a[ai + x] | b[bi + x]) | 0xff000000;
+                }
+                break;
+            case XOR:
+                for (int x = 0; x < n; x++) {
+                    dst[di + x] = (a[ai + x] ^ b[bi + x]) | 0xff000000;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Not a bitwise operation: " + op);
+        }
+    }
+
+    // ------------------- Point operations -------------------
+
+    // s = 255 - r (the bitwise NOT of each channel).
+    void not(int[] a, int ai, int[] dst, int di, int n) {
+        for (int x = 0; x < n; x++) {
+            dst[di + x] = ~a[ai + x] | 0xff000000;
+        }
+    }
+
+    // s = r + shift, saturated to [0,255]. lut is LutChain.shift(shift), built once per image
+    // by the caller: the scalar version looks the channels up in it, which is cheaper than
+    // computing them, and the vector version computes them and ignores it.
+    void shift(int[] a, int ai, int[] dst, int di, int n, int shift, int[] lut) {
+        lookup(lut, a, ai, dst, di, n);
+    }
+
+    static int shiftPixel(int p, int shift) {
+        return PixelBuffer.pack(clamp(PixelBuffer.red(p) + shift),
+                                clamp(PixelBuffer.green(p) + shift),
+                                clamp(PixelBuffer.blue(p) + shift));
+    }
+
+    // s = round(r * factor), saturated to [0,255]; lut is LutChain.rescale(factor), as for shift().
+    void rescale(int[] a, int ai, int[] dst, int di, int n, float factor, int[] lut) {
+        lookup(lut, a, ai, dst, di, n);
+    }
+
+    private static void lookup(int[] lut, int[] a, int ai, int[] dst, int di, int n) {
+        for (int x = 0; x < n; x++) {
+            int p = a[ai + x];
+            dst[di + x] = PixelBuffer.pack(lut[PixelBuffer.red(p)], lut[PixelBuffer.green(p)], lut[PixelBuffer.blue(p)]);
+        }
+    }
+
+    static int rescalePixel(int p, float factor) {
+        return PixelBuffer.pack(clamp(Math.round(PixelBuffer.red(p) * factor)),
+                                clamp(Math.round(PixelBuffer.green(p) * factor)),
+                                clamp(Math.round(PixelBuffer.blue(p) * factor)));
+    }
+
+    // White where the gray value (R + G + B) / 3 is at least t, black elsewhere.
+    void threshold(int[] a, int ai, int[] dst, int di, int n, int t) {
+        for (int x = 0; x < n; x++) {
+            dst[di + x] = thresholdPixel(a[ai + x], t);
+        }
+    }
+
+    static int thresholdPixel(int p, int t) {
+        return PixelBuffer.packGray((PixelBuffer.gray(p) >= t) ? 255 : 0);
+    }
+
+    private static int clamp(int v) {
+        return Math.max(0, Math.min(255, v));
+    }
+}
@@ -0,0 +1,243 @@
+import java.io.*;
+import java.awt.image.BufferedImage;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * Reader for headerless .raw sensor dumps, decoded to TYPE_INT_RGB.
+ * <p>
+ * The layout is described by a Format: size, 8- or 16-bit samples (with 9-16 significant
+ * bits), byte order, gray or RGB, planar (RRR..GGG..BBB..) or interleaved (RGBRGB..), a
+ * header to skip and an optional row stride. Nothing is read up front: each strip of rows is
+ * decoded straight from a memory mapping of just the bytes it needs, so files larger than the
+ * heap (or than 2 GB) can be processed in strips with readStrip(). read() decodes the whole
+ * image with its row bands in parallel.
+ */
+final class RawImageReader implements StreamingPipeline.Source {
+
+    /**
+     * Layout of a raw file, written "WxH[,bits][,le|be][,gray|rgb][,planar|interleaved]
+     * [,offset=N][,stride=N]", e.g. "4000x3000,12,le,rgb,planar,offset=512".
+     * Defaults: 8 bits, little endian, gray, interleaved, no header, packed rows.
+     */
+    static final class Format {
+        final int width;
+        final int height;
+        final int bits;          // significant bits per sample, 8 to 16
+        final boolean bigEndian;
+        final int channels;      // 1 (gray) or 3 (RGB)
+        final boolean planar;
+        final long offset;       // header bytes before the first row
+        final long stride;       // bytes from one row to the next (within a plane)
+
+        Format(int width, int height, int bits, boolean bigEndian, int channels, boolean planar, long offset, long stride) {
+            if (width < 1 || height < 1) {
+                throw new IllegalArgumentException("Raw image size must be positive.");
+            }
+            if (bits < 8 || bits > 16) {
+                throw new IllegalArgumentException("Raw samples must have 8 to 16 bits.");
+            }
+            if (channels != 1 && channels != 3) {
+                throw new IllegalArgumentException("Raw images must be gray or RGB.");
+            }
+            if (offset < 0) {
+                throw new IllegalArgumentException("Raw header offset must not be negative.");
+            }
+            this.width = width;
+            this.height = height;
+            this.bits = bits;
+            this.bigEndian = bigEndian;
+            this.channels = channels;
+            this.planar = planar;
+            this.offset = offset;
+            long packed = (long) width * bytesPerSample() * (planar ? 1 : channels);
+            if (stride != 0 && stride < packed) {
+                throw new IllegalArgumentException("Raw row stride " + stride + " is shorter than a row (" + packed + " bytes).");
+            }
+            this.stride = (stride != 0) ? stride : packed;
+        }
+
+        static Format parse(String spec) {
+            String[] parts = spec.trim().toLowerCase().split("\\s*,\\s*");
+            String[] size = parts[0].split("\\s*x\\s*");
+            if (size.length != 2) {
+                throw new IllegalArgumentException("Raw format must start with the size, e.g. 512x512: " + spec);
+            }
+            int bits = 8, channels = 1;
+            boolean bigEndian = false, planar = false;
+            long offset = 0, stride = 0;
+            for (int i = 1; i < parts.length; i++) {
+                String p = parts[i];
+                if (p.startsWith("offset=")) {
+                    offset = Long.parseLong(p.substring(7));
+                } else if (p.startsWith("stride=")) {
+                    stride = Long.parseLong(p.substring(7));
+                } else if (p.equals("le") || p.equals("be")) {
+                    bigEndian = p.equals("be");
+                } else if (p.equals("gray") || p.equals("rgb")) {
+                    channels = p.equals("rgb") ? 3 : 1;
+                } else if (p.equals("planar") || p.equals("interleaved")) {
+                    planar = p.equals("planar");
+                } else if (p.matches("\\d+")) {
+                    bits = Integer.parseInt(p);
+                } else {
+                    throw new IllegalArgumentException("Unknown raw format option: " + p);
+                }
+            }
+            return new Format(Integer.parseInt(size[0]), Integer.parseInt(size[1]), bits, bigEndian, channels, planar, offset, stride);
+        }
+
+        // 8-bit gray layout guessed from the file size: square if possible, otherwise
+        // sqrt(size) wide and as many rows as fit.
+        static Format guess(long size) {
+            int dim = (int) Math.round(Math.sqrt(size));
+            if ((long) dim * dim != size && dim > 0 && size % dim == 0) {
+                return new Format(dim, (int) (size / dim), 8, false, 1, false, 0, 0);
+            }
+            return new Format(Math.max(1, dim), Math.max(1, dim), 8, false, 1, false, 0, 0);
+        }
+
+        int bytesPerSample() {
+            return (bits > 8) ? 2 : 1;
+        }
+
+        // Bytes of one plane (all channels when interleaved).
+        long planeBytes() {
+            return stride * (height - 1) + (long) width * bytesPerSample() * (planar ? 1 : channels);
+        }
+
+        // Bytes the file must have.
+        long fileBytes() {
+            return offset + stride * height * (planar ? channels - 1 : 0) + planeBytes();
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + "," + bits + "," + (bigEndian ? "be" : "le") + "," + (channels == 3 ? "rgb" : "gray")
+                    + (channels == 3 ? (planar ? ",planar" : ",interleaved") : "")
+                    + (offset != 0 ? ",offset=" + offset : "") + ",stride=" + stride;
+        }
+    }
+
+    private final FileChannel channel;
+    private final Format format;
+
+    RawImageReader(Path file, Format format) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.format = format;
+        long size = channel.size();
+        if (size < format.fileBytes()) {
+            channel.close();
+            throw new IOException("Raw file is too short for " + format + ": expected " + format.fileBytes()
+                    + " bytes, found " + size + ".");
+        }
+    }
+
+    // Read a whole file.
+    static BufferedImage read(Path file, Format format) throws IOException {
+        try (RawImageReader reader = new RawImageReader(file, format)) {
+            return reader.read();
+        }
+    }
+
+    @Override
+    public int width() {
+        return format.width;
+    }
+
+    @Override
+    public int height() {
+        return format.height;
+    }
+
+    // The whole image.
+    BufferedImage read() throws IOException {
+        return readStrip(0, format.height);
+    }
+
+    /**
+     * Rows y0 to y0 + rows - 1 as a rows-high image. Only the bytes of those rows are mapped;
+     * the strip's row bands are decoded in parallel.
+     */
+    @Override
+    public BufferedImage readStrip(int y0, int rows) throws IOException {
+        if (y0 < 0 || rows < 1 || y0 + rows > format.height) {
+            throw new IllegalArgumentException("Rows " + y0 + " to " + (y0 + rows - 1) + " are outside the image.");
+        }
+        PixelBuffer dst = PixelBuffer.create(format.width, rows);
+        try {
+            RowBands.forEach(rows, (band, b0, b1) -> {
+                try {
+                    decode(y0 + b0, y0 + b1, dst, b0);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            // The pool may rethrow a copy of the band's exception with the original as its cause.
+            Throwable t = e;
+            while (t instanceof UncheckedIOException) {
+                t = t.getCause();
+            }
+            throw (t instanceof IOException) ? (IOException) t : new IOException(t);
+        }
+        return dst.image();
+    }
+
+    // Decode rows y0..y1-1 of the file into dst from row dy.
+    private void decode(int y0, int y1, PixelBuffer dst, int dy) throws IOException {
+        Format f = format;
+        int width = f.width, bytes = f.bytesPerSample();
+        int shift = f.bits - 8;
+        int samples = f.planar ? 1 : f.channels;
+        int rowBytes = width * bytes * samples;
+        int planes = f.planar ? f.channels : 1;
+        ByteBuffer[] maps = new ByteBuffer[planes];
+        for (int p = 0; p < planes; p++) {
+            long start = f.offset + (long) p * f.stride * f.height + (long) y0 * f.stride;
+            long length = f.stride * (y1 - y0 - 1) + rowBytes;
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Row strip is too large to map; use a smaller strip.");
+            }
+            maps[p] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+        // One row of 8-bit values per channel.
+        int[][] values = new int[f.channels][width];
+        byte[] row = new byte[rowBytes];
+        for (int y = y0; y < y1; y++) {
+            for (int p = 0; p < planes; p++) {
+                ByteBuffer m = maps[p];
+                m.position((int) ((long) (y - y0) * f.stride));
+                m.get(row);
+                for (int x = 0, i = 0; x < width; x++) {
+                    for (int c = 0; c < samples; c++, i += bytes) {
+                        int v;
+                        if (bytes == 1) {
+                            v = row[i] & 0xff;
+                        } else {
+                            int lo = row[f.bigEndian ? i + 1 : i] & 0xff, hi = row[f.bigEndian ? i : i + 1] & 0xff;
+                            v = Math.min(255, ((hi << 8) | lo) >>> shift);
+                        }
+                        values[f.planar ? p : c][x] = v;
+                    }
+                }
+            }
+            int di = dst.row(dy + y - y0);
+            if (f.channels == 1) {
+                for (int x = 0; x < width; x++) {
+                    dst.data[di + x] = PixelBuffer.packGray(values[0][x]);
+                }
+            } else {
+                for (int x = 0; x < width; x++) {
+                    dst.data[di + x] = PixelBuffer.pack(values[0][x], values[1][x], values[2][x]);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
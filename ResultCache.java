@@ -0,0 +1,251 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+
+/**
+ * Memo of operation results, so that applying the same operation with the same parameters to
+ * the same pixels again (undo then apply again, going back and forth between two filter
+ * sizes) reuses the earlier result instead of computing it again.
+ * <p>
+ * Results are keyed by the content of the input image, the operation, its parameters and the
+ * ROI it was applied to. The content hash is built from 64-bit hashes of the 64x64 undo
+ * tiles, computed in parallel and remembered per image (weakly, like ImageStats). A result
+ * produced by an ROI operation inherits the tile hashes of its input outside the ROI, so only
+ * the tiles the ROI touches are hashed again. Two images are taken to be equal when their
+ * sizes and hashes are; with 64-bit hashes an accidental collision is not a practical concern.
+ * <p>
+ * The cache keeps its own copy of the pixels each operation changed (the ROI, or the whole
+ * image) and builds a new image on every hit, so the images it hands out can be patched in
+ * place by undo. Entries are evicted least recently used first once they hold more than the
+ * budget (system property demo.cache.budgetMB, default 64 MB).
+ */
+final class ResultCache {
+    static final int TILE = UndoHistory.TILE;
+
+    // Tile hashes of the images seen so far, row-major by tile.
+    private static final Map<BufferedImage, long[]> tileHashes = new WeakHashMap<>();
+
+    /**
+     * What a result depends on. params must describe every parameter of the operation; region
+     * is the area the operation changes, or null for the whole image.
+     */
+    static final class Key {
+        private final long content;
+        private final int width, height;
+        private final String operation;
+        private final String params;
+        private final Rectangle region;
+
+        private Key(long content, int width, int height, String operation, String params, Rectangle region) {
+            this.content = content;
+            this.width = width;
+            this.height = height;
+            this.operation = operation;
+            this.params = params;
+            this.region = region;
+        }
+
+        // Pixels stored for this key.
+        private long pixels() {
+            return (region != null) ? (long) region.width * region.height : (long) width * height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return content == k.content && width == k.width && height == k.height && operation.equals(k.operation)
+                    && params.equals(k.params) && Objects.equals(region, k.region);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(content, width, height, operation, params, region);
+        }
+    }
+
+    private final long budget;
+    // Pixels of each result (the region only, or the whole image), least recently used first.
+    private final LinkedHashMap<Key, int[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long memory = 0;
+    private long hits = 0, misses = 0, evictions = 0;
+
+    ResultCache() {
+        this(Long.getLong("demo.cache.budgetMB", 64) << 20);
+    }
+
+    ResultCache(long budgetBytes) {
+        this.budget = budgetBytes;
+    }
+
+    // The key of an operation on input. Hashes the input unless its tile hashes are known.
+    static Key key(BufferedImage input, String operation, String params, Rectangle region) {
+        return new Key(hash(input), input.getWidth(), input.getHeight(), operation, params, region);
+    }
+
+    /**
+     * The cached result for key, as a new image (input with the cached region written over
+     * it), or null if there is none. input must be the image the key was made from.
+     */
+    BufferedImage get(Key key, BufferedImage input) {
+        int[] pixels;
+        synchronized (this) {
+            pixels = entries.get(key);
+            if (pixels == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+        PixelBuffer dst = PixelBuffer.create(key.width, key.height);
+        Rectangle r = (key.region != null) ? key.region : new Rectangle(0, 0, key.width, key.height);
+        PixelBuffer src = (key.region != null) ? PixelBuffer.wrap(input) : null;
+        RowBands.forEach(key.height, (band, y0, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                if (src != null) {
+                    System.arraycopy(src.data, src.row(y), dst.data, dst.row(y), key.width);
+                }
+                if (y >= r.y && y < r.y + r.height) {
+                    System.arraycopy(pixels, (y - r.y) * r.width, dst.data, dst.row(y) + r.x, r.width);
+                }
+            }
+        });
+        return dst.image();
+    }
+
+    // Remember the result of the operation described by key, evicting old entries if needed.
+    void put(Key key, BufferedImage result) {
+        long bytes = 4 * key.pixels();
+        if (bytes > budget || result.getWidth() != key.width || result.getHeight() != key.height) {
+            return;
+        }
+        Rectangle r = (key.region != null) ? key.region : new Rectangle(0, 0, key.width, key.height);
+        PixelBuffer src = PixelBuffer.wrap(result);
+        int[] pixels = new int[r.width * r.height];
+        RowBands.forEach(r.height, (band, y0, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                System.arraycopy(src.data, src.row(r.y + y) + r.x, pixels, y * r.width, r.width);
+            }
+        });
+        synchronized (this) {
+            int[] old = entries.put(key, pixels);
+            memory += bytes - ((old != null) ? 4L * old.length : 0);
+            Iterator<int[]> it = entries.values().iterator();
+            while (memory > budget && it.hasNext()) {
+                memory -= 4L * it.next().length;
+                it.remove();
+                evictions++;
+            }
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        memory = 0;
+    }
+
+    // One line for the log: hits, misses, evictions and what the cache holds.
+    synchronized String summary() {
+        long lookups = hits + misses;
+        return String.format(java.util.Locale.ROOT, "%d hits, %d misses (%.0f%% hit rate), %d evicted; %d results in %.1f of %d MB",
+                hits, misses, (lookups > 0) ? 100.0 * hits / lookups : 0.0, evictions, entries.size(),
+                memory / 1048576.0, budget >> 20);
+    }
+
+    // ------------------- Content hashes -------------------
+
+    // Hash of the size and pixels of img, from its tile hashes.
+    static long hash(BufferedImage img) {
+        long[] tiles = tileHashes(img);
+        long h = mix(img.getWidth() * 0x9E3779B97F4A7C15L + img.getHeight());
+        for (long t : tiles) {
+            h = mix(h * 31 + t);
+        }
+        return h;
+    }
+
+    /**
+     * Record the tile hashes of result, which was produced from input by an operation that
+     * changed only region: the tiles outside it are the input's, the others are hashed again.
+     * Does nothing if the input's hashes are not known or the sizes differ.
+     */
+    static void inherit(BufferedImage input, BufferedImage result, Rectangle region) {
+        long[] known;
+        synchronized (tileHashes) {
+            known = tileHashes.get(input);
+        }
+        if (region == null || known == null || result.getWidth() != input.getWidth()
+                || result.getHeight() != input.getHeight()) {
+            return;
+        }
+        PixelBuffer src = PixelBuffer.wrap(result);
+        int tilesX = (src.width + TILE - 1) / TILE;
+        long[] tiles = known.clone();
+        for (int ty = region.y / TILE; ty <= (region.y + region.height - 1) / TILE; ty++) {
+            for (int tx = region.x / TILE; tx <= (region.x + region.width - 1) / TILE; tx++) {
+                tiles[ty * tilesX + tx] = tileHash(src, tx, ty);
+            }
+        }
+        synchronized (tileHashes) {
+            tileHashes.put(result, tiles);
+        }
+    }
+
+    // Forget the hashes of an image whose pixels were changed in place.
+    static void invalidate(BufferedImage img) {
+        synchronized (tileHashes) {
+            tileHashes.remove(img);
+        }
+    }
+
+    private static long[] tileHashes(BufferedImage img) {
+        synchronized (tileHashes) {
+            long[] tiles = tileHashes.get(img);
+            if (tiles != null) {
+                return tiles;
+            }
+        }
+        PixelBuffer src = PixelBuffer.wrap(img);
+        int tilesX = (src.width + TILE - 1) / TILE;
+        long[] tiles = new long[tilesX * ((src.height + TILE - 1) / TILE)];
+        RowBands.forEach(src.height, TILE, (band, y0, y1) -> {
+            for (int ty = y0 / TILE; ty * TILE < y1; ty++) {
+                for (int tx = 0; tx < tilesX; tx++) {
+                    tiles[ty * tilesX + tx] = tileHash(src, tx, ty);
+                }
+            }
+        });
+        synchronized (tileHashes) {
+            tileHashes.put(img, tiles);
+        }
+        return tiles;
+    }
+
+    // Hash of the 0xRRGGBB values of one tile, row by row.
+    private static long tileHash(PixelBuffer src, int tx, int ty) {
+        int x0 = tx * TILE, x1 = Math.min(src.width, x0 + TILE);
+        int y0 = ty * TILE, y1 = Math.min(src.height, y0 + TILE);
+        long h = 0;
+        for (int y = y0; y < y1; y++) {
+            int i = src.row(y);
+            for (int x = x0; x < x1; x++) {
+                h = (h + (src.data[i + x] & 0xffffff)) * 0x9E3779B97F4A7C15L;
+            }
+            h = Long.rotateLeft(h, 29);
+        }
+        return mix(h);
+    }
+
+    // Final avalanche of a 64-bit hash (from SplitMix64).
+    private static long mix(long h) {
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+}
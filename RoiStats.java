@@ -0,0 +1,212 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Gray-level histogram of a rectangle of an image that is kept up to date as the rectangle
+ * changes, for live statistics while an ROI is dragged.
+ * <p>
+ * Construction makes one parallel pass that stores the gray plane ((R + G + B) / 3, one byte
+ * per pixel) and an integral histogram over square blocks: for every block corner, the
+ * histogram of all pixels above and to the left of it. The block size is the smallest power
+ * of two from 32 that keeps the table under INTEGRAL_BYTES.
+ * <p>
+ * update(r) then takes the cheaper of two routes to the histogram of r:
+ * <ul>
+ * <li>incremental: subtract the pixels of the previous rectangle that left and add those that
+ * entered, i.e. only the strips swept by the moving edges;</li>
+ * <li>direct: four lookups in the integral histogram for the blocks inside r, plus the strips
+ * (thinner than a block) between those blocks and the edges of r.</li>
+ * </ul>
+ * A drag moves the edges a few pixels per event, so each update touches a few thin strips and
+ * 256 bins however large the image or the rectangle.
+ */
+final class RoiStats {
+    private static final long INTEGRAL_BYTES = 8L << 20;
+
+    final BufferedImage image;
+    private final int width, height;
+    private final byte[] gray;
+    private final int block;
+    private final int cols, rows;
+    // integral[((by * (cols + 1)) + bx) * 256 + v]: pixels with gray value v in the blocks
+    // above row by and left of column bx, i.e. in [0, min(width, bx * block)) x [0, min(height, by * block)).
+    private final int[] integral;
+
+    private final int[] hist = new int[256];
+    private Rectangle current = new Rectangle();
+
+    RoiStats(BufferedImage img) {
+        this.image = img;
+        PixelBuffer src = PixelBuffer.wrap(img);
+        this.width = src.width;
+        this.height = src.height;
+        int b = 32;
+        while (cells(b) * 256 * 4 > INTEGRAL_BYTES) {
+            b *= 2;
+        }
+        this.block = b;
+        this.cols = (width + b - 1) / b;
+        this.rows = (height + b - 1) / b;
+        this.gray = new byte[width * height];
+        this.integral = new int[(int) cells(b) * 256];
+
+        // Gray plane and the histogram of each block, stored at its bottom right corner.
+        RowBands.forEach(rows, (band, by0, by1) -> {
+            for (int by = by0; by < by1; by++) {
+                for (int y = by * block; y < Math.min(height, (by + 1) * block); y++) {
+                    int si = src.row(y);
+                    for (int x = 0; x < width; x++) {
+                        int v = PixelBuffer.gray(src.data[si + x]);
+                        gray[y * width + x] = (byte) v;
+                        integral[corner(by + 1, x / block + 1) + v]++;
+                    }
+                }
+            }
+        });
+        // Prefix sums along each row of corners, then down the columns.
+        RowBands.forEach(rows + 1, (band, c0, c1) -> {
+            for (int by = c0; by < c1; by++) {
+                for (int bx = 1; bx <= cols; bx++) {
+                    int p = corner(by, bx - 1), q = corner(by, bx);
+                    for (int v = 0; v < 256; v++) {
+                        integral[q + v] += integral[p + v];
+                    }
+                }
+            }
+        });
+        int rowLength = (cols + 1) * 256;
+        for (int i = rowLength; i < integral.length; i++) {
+            integral[i] += integral[i - rowLength];
+        }
+    }
+
+    // Number of block corners for a given block size.
+    private long cells(int b) {
+        return (long) ((width + b - 1) / b + 1) * ((height + b - 1) / b + 1);
+    }
+
+    private int corner(int by, int bx) {
+        return (by * (cols + 1) + bx) * 256;
+    }
+
+    /**
+     * Move the rectangle to r (clipped to the image; null or empty for none) and update the
+     * histogram.
+     */
+    void update(Rectangle r) {
+        Rectangle next = (r == null) ? new Rectangle() : r.intersection(new Rectangle(0, 0, width, height));
+        if (next.isEmpty()) {
+            next = new Rectangle();
+        }
+        Rectangle overlap = current.intersection(next);
+        long common = overlap.isEmpty() ? 0 : area(overlap);
+        long incremental = area(current) + area(next) - 2 * common;
+        if (incremental <= directCost(next)) {
+            count(current, next, -1);
+            count(next, current, 1);
+        } else {
+            direct(next);
+        }
+        current = next;
+    }
+
+    // Current rectangle, clipped to the image.
+    Rectangle region() {
+        return new Rectangle(current);
+    }
+
+    // Copy of the histogram of the current rectangle.
+    int[] histogram() {
+        return hist.clone();
+    }
+
+    // Number of pixels in the current rectangle.
+    long count() {
+        return area(current);
+    }
+
+    // {mean, standard deviation} of the gray levels in the current rectangle.
+    double[] meanStd() {
+        return ImageStats.meanStd(hist);
+    }
+
+    private static long area(Rectangle r) {
+        return r.isEmpty() ? 0 : (long) r.width * r.height;
+    }
+
+    // ------------------- Direct route -------------------
+
+    // The blocks that lie inside r, as corner indices [bx0, bx1) x [by0, by1). A partial block
+    // at the right or bottom edge of the image counts as inside once r reaches that edge.
+    private int innerX0(Rectangle r) { return (r.x + block - 1) / block; }
+    private int innerY0(Rectangle r) { return (r.y + block - 1) / block; }
+    private int innerX1(Rectangle r) { return (r.x + r.width == width) ? cols : (r.x + r.width) / block; }
+    private int innerY1(Rectangle r) { return (r.y + r.height == height) ? rows : (r.y + r.height) / block; }
+
+    // Pixels the direct route would visit, plus the table lookups.
+    private long directCost(Rectangle r) {
+        if (r.isEmpty()) {
+            return 0;
+        }
+        int bx0 = innerX0(r), bx1 = innerX1(r), by0 = innerY0(r), by1 = innerY1(r);
+        if (bx0 >= bx1 || by0 >= by1) {
+            return area(r);
+        }
+        long inner = (long) (Math.min(width, bx1 * block) - bx0 * block) * (Math.min(height, by1 * block) - by0 * block);
+        return area(r) - inner + 4 * 256;
+    }
+
+    private void direct(Rectangle r) {
+        Arrays.fill(hist, 0);
+        if (r.isEmpty()) {
+            return;
+        }
+        int bx0 = innerX0(r), bx1 = innerX1(r), by0 = innerY0(r), by1 = innerY1(r);
+        if (bx0 >= bx1 || by0 >= by1) {
+            count(r.x, r.y, r.x + r.width, r.y + r.height, 1);
+            return;
+        }
+        int a = corner(by1, bx1), b = corner(by0, bx1), c = corner(by1, bx0), d = corner(by0, bx0);
+        for (int v = 0; v < 256; v++) {
+            hist[v] = integral[a + v] - integral[b + v] - integral[c + v] + integral[d + v];
+        }
+        int ix0 = bx0 * block, ix1 = Math.min(width, bx1 * block);
+        int iy0 = by0 * block, iy1 = Math.min(height, by1 * block);
+        int x0 = r.x, y0 = r.y, x1 = r.x + r.width, y1 = r.y + r.height;
+        count(x0, y0, x1, iy0, 1);     // above the blocks
+        count(x0, iy1, x1, y1, 1);     // below
+        count(x0, iy0, ix0, iy1, 1);   // left
+        count(ix1, iy0, x1, iy1, 1);   // right
+    }
+
+    // ------------------- Incremental route -------------------
+
+    // Add sign times the histogram of the pixels of a that are not in b.
+    private void count(Rectangle a, Rectangle b, int sign) {
+        if (a.isEmpty()) {
+            return;
+        }
+        Rectangle i = a.intersection(b);
+        int x0 = a.x, y0 = a.y, x1 = a.x + a.width, y1 = a.y + a.height;
+        if (i.isEmpty()) {
+            count(x0, y0, x1, y1, sign);
+            return;
+        }
+        int ix0 = i.x, iy0 = i.y, ix1 = i.x + i.width, iy1 = i.y + i.height;
+        count(x0, y0, x1, iy0, sign);     // above the overlap
+        count(x0, iy1, x1, y1, sign);     // below
+        count(x0, iy0, ix0, iy1, sign);   // left
+        count(ix1, iy0, x1, iy1, sign);   // right
+    }
+
+    // Add sign times the histogram of [x0, x1) x [y0, y1) (nothing if it is empty).
+    private void count(int x0, int y0, int x1, int y1, int sign) {
+        for (int y = y0; y < y1; y++) {
+            int row = y * width;
+            for (int i = row + x0; i < row + x1; i++) {
+                hist[gray[i] & 0xff] += sign;
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+import java.util.concurrent.*;
+
+/**
+ * Runs per-pixel work in parallel over horizontal bands of rows on a shared ForkJoinPool.
+ * <p>
+ * An image of height h is split into count(h) contiguous bands [y0, y1). Each band is handed
+ * to the task together with its index, so reductions (min/max, histograms) can keep one
+ * partial result per band and merge them afterwards in band order. count(h) depends on the
+ * parallelism, which may change at any time, so such reductions take the count once and pass
+ * it to forBands() rather than forEach(). Neighbourhood operations
+ * read their halo rows (y0 - radius .. y1 + radius) from the shared, read-only source and
+ * only write rows inside their own band, so every pixel is computed exactly as it would be
+ * sequentially and the output is bit-identical for any parallelism level.
+ * <p>
+ * The parallelism defaults to the number of available processors and can be changed with
+ * the system property demo.parallelism or setParallelism(int). Work already running keeps the
+ * pool it started on, which is only shut down once that work has finished.
+ * <p>
+ * A Monitor installed on the calling thread is told about every finished band and can cancel
+ * the remaining ones, which then fail with a CancellationException.
+ */
+final class RowBands {
+    // Smallest band worth scheduling on its own.
+    private static final int MIN_ROWS = 8;
+    // Bands per worker, so that uneven bands still balance out.
+    private static final int BANDS_PER_THREAD = 4;
+
+    // Callback for one band of rows.
+    interface Band {
+        void run(int band, int y0, int y1);
+    }
+
+    // Progress and cancellation hook for the bands started from one thread.
+    interface Monitor {
+        void bandDone(int done, int total);
+
+        boolean isCancelled();
+    }
+
+    private static final ThreadLocal<Monitor> monitor = new ThreadLocal<>();
+
+    private static int parallelism = Math.max(1,
+            Integer.getInteger("demo.parallelism", Runtime.getRuntime().availableProcessors()));
+    private static Workers workers = new Workers(parallelism);
+
+    // A pool and the number of run() calls using it; a retired pool is shut down when unused.
+    private static final class Workers {
+        final ForkJoinPool pool;
+        int users = 0;
+        boolean retired = false;
+
+        Workers(int threads) {
+            this.pool = new ForkJoinPool(threads);
+        }
+    }
+
+    private RowBands() {
+    }
+
+    static synchronized int getParallelism() {
+        return parallelism;
+    }
+
+    // Change the number of worker threads. A value of 1 runs every band on the calling thread.
+    static synchronized void setParallelism(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + threads);
+        }
+        if (threads != parallelism) {
+            workers.retired = true;
+            if (workers.users == 0) {
+                workers.pool.shutdown();
+            }
+            workers = new Workers(threads);
+            parallelism = threads;
+        }
+    }
+
+    // Install (or with null, remove) the monitor for work started from the current thread.
+    static void setMonitor(Monitor m) {
+        if (m == null) {
+            monitor.remove();
+        } else {
+            monitor.set(m);
+        }
+    }
+
+    // Number of bands an image of the given height is split into.
+    static int count(int height) {
+        int bands = Math.min(getParallelism() * BANDS_PER_THREAD, (height + MIN_ROWS - 1) / MIN_ROWS);
+        return Math.max(1, bands);
+    }
+
+    // First row of the given band.
+    static int start(int band, int bands, int height) {
+        return (int) ((long) band * height / bands);
+    }
+
+    // Run the task over every band of rows in [0, height) and wait for all of them to finish.
+    static void forEach(int height, Band task) {
+        forBands(count(height), height, task);
+    }
+
+    // Like forEach, over exactly the given number of bands (normally an earlier count(height)),
+    // so arrays with one entry per band stay in step with the band indices.
+    static void forBands(int bands, int height, Band task) {
+        run(bands, (band, lo, hi) -> task.run(band, start(band, bands, height), start(band + 1, bands, height)));
+    }
+
+    // Like forEach, but every band except the last starts and ends on a multiple of alignment
+    // rows. Used by tiled operations whose work units span several rows.
+    static void forEach(int height, int alignment, Band task) {
+        int units = (height + alignment - 1) / alignment;
+        int bands = Math.max(1, Math.min(getParallelism() * BANDS_PER_THREAD, units));
+        run(bands, (band, lo, hi) -> task.run(band,
+                Math.min(height, start(band, bands, units) * alignment),
+                Math.min(height, start(band + 1, bands, units) * alignment)));
+    }
+
+    // Call unit.run(i, i, i + 1) for every band index i in [0, bands), in parallel if enabled.
+    private static void run(int bands, Band unit) {
+        Monitor m = monitor.get();
+        Band b = (m != null) ? monitored(unit, m, bands) : unit;
+        Workers w;
+        synchronized (RowBands.class) {
+            w = (parallelism == 1 || bands == 1) ? null : workers;
+            if (w != null) {
+                w.users++;
+            }
+        }
+        if (w == null) {
+            for (int i = 0; i < bands; i++) {
+                b.run(i, i, i + 1);
+            }
+            return;
+        }
+        try {
+            w.pool.invoke(new BandAction(b, 0, bands));
+        } finally {
+            synchronized (RowBands.class) {
+                if (--w.users == 0 && w.retired) {
+                    w.pool.shutdown();
+                }
+            }
+        }
+    }
+
+    // Wrap a task so that it reports each finished band and stops once the monitor is cancelled.
+    private static Band monitored(Band task, Monitor m, int bands) {
+        java.util.concurrent.atomic.AtomicInteger done = new java.util.concurrent.atomic.AtomicInteger();
+        return (band, y0, y1) -> {
+            if (m.isCancelled()) {
+                throw new CancellationException();
+            }
+            task.run(band, y0, y1);
+            m.bandDone(done.incrementAndGet(), bands);
+        };
+    }
+
+    // Splits the band range in half until a single band remains.
+    private static final class BandAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Band task;
+        private final int lo, hi;
+
+        BandAction(Band task, int lo, int hi) {
+            this.task = task;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo == 1) {
+                task.run(lo, lo, lo + 1);
+            } else {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new BandAction(task, lo, mid),
+                          new BandAction(task, mid, hi));
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.*;
+import java.io.*;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.function.UnaryOperator;
+import javax.imageio.*;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Runs an operation over an image one band of rows at a time, from a row source to an
+ * ImageIO writer, so memory grows with the image width rather than its area.
+ * <p>
+ * Output band [y0, y1) is computed by applying the operation to source rows
+ * [y0 - halo, y1 + halo) (clipped at the image border) and keeping the middle rows; with the
+ * halo at least the operation's neighbourhood radius (Demo.haloOf) the result is the same as
+ * for the whole image. When bands are asked for top to bottom, as PNG and most other writers
+ * do, the source rows shared with the previous band's window are kept (a rolling halo) and
+ * only the new rows are read. asRenderedImage() computes bands only when the writer pulls
+ * their rows; only the current window and output band are held.
+ * <p>
+ * Most ImageIO decoders (PNG, JPEG, GIF, BMP) cannot start at a row: a source region is
+ * decoded from the top of the image each time, so reading an image strip by strip costs
+ * quadratic time (16 strips of a 4096 x 4096 PNG took 11 times as long as one read). Such
+ * files are decoded once, whole, and the strips served from that image; see
+ * Source.decodesWhole(). Only TIFF and .raw sources are read strip by strip.
+ */
+final class StreamingPipeline {
+
+    /** An image that can be read in strips of rows. */
+    interface Source extends Closeable {
+        int width();
+
+        int height();
+
+        // Rows y0 to y0 + rows - 1 as a TYPE_INT_RGB image.
+        BufferedImage readStrip(int y0, int rows) throws IOException;
+
+        // True if the whole decoded image is held, because the format cannot be read by rows.
+        default boolean decodesWhole() {
+            return false;
+        }
+    }
+
+    private final Source source;
+    private final UnaryOperator<BufferedImage> op;
+    private final int halo;
+    private final int bandRows;
+    private final int width, height;
+
+    // Source rows [windowY0, windowY0 + window height) last read.
+    private BufferedImage window;
+    private int windowY0;
+    // Output band last computed.
+    private BufferedImage band;
+    private int bandIndex = -1;
+
+    StreamingPipeline(Source source, UnaryOperator<BufferedImage> op, int halo, int bandRows) {
+        if (bandRows < 1 || halo < 0) {
+            throw new IllegalArgumentException("Bad band height " + bandRows + " or halo " + halo);
+        }
+        this.source = source;
+        this.op = op;
+        this.halo = halo;
+        this.bandRows = bandRows;
+        this.width = source.width();
+        this.height = source.height();
+    }
+
+    // A source for any file: RawImageReader for .raw (raw may be null to guess the size),
+    // otherwise an ImageIO reader (by strips for TIFF, decoded whole for other formats).
+    static Source open(Path file, RawImageReader.Format raw) throws IOException {
+        if (file.getFileName().toString().toLowerCase().endsWith(".raw")) {
+            return new RawImageReader(file, (raw != null) ? raw : RawImageReader.Format.guess(file.toFile().length()));
+        }
+        return new ImageIOSource(file.toFile());
+    }
+
+    // Rows of an ImageIO-readable file. TIFF readers decode only the strips or tiles that
+    // overlap a source region, so TIFF is read one region per strip; every other format is
+    // decoded in one pass on the first read and the strips are copied from the result.
+    private static final class ImageIOSource implements Source {
+        private final ImageInputStream in;
+        private final ImageReader reader;
+        private final boolean byRegion;
+        private BufferedImage whole;
+
+        ImageIOSource(File file) throws IOException {
+            in = ImageIO.createImageInputStream(file);
+            if (in == null) {
+                throw new IOException("Cannot open " + file);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                in.close();
+                throw new IOException("Unsupported image format");
+            }
+            reader = readers.next();
+            reader.setInput(in);
+            String format = reader.getFormatName().toLowerCase();
+            byRegion = format.equals("tif") || format.equals("tiff");
+        }
+
+        @Override
+        public boolean decodesWhole() {
+            return !byRegion;
+        }
+
+        @Override
+        public int width() {
+            try {
+                return reader.getWidth(0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public int height() {
+            try {
+                return reader.getHeight(0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public BufferedImage readStrip(int y0, int rows) throws IOException {
+            if (byRegion) {
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(0, y0, width(), rows));
+                return PixelBuffer.wrap(reader.read(0, param)).image();
+            }
+            if (whole == null) {
+                whole = PixelBuffer.wrap(reader.read(0)).image();
+            }
+            PixelBuffer src = PixelBuffer.wrap(whole);
+            PixelBuffer dst = PixelBuffer.create(src.width, rows);
+            for (int y = 0; y < rows; y++) {
+                System.arraycopy(src.data, src.row(y0 + y), dst.data, dst.row(y), src.width);
+            }
+            return dst.image();
+        }
+
+        @Override
+        public void close() throws IOException {
+            whole = null;
+            reader.dispose();
+            in.close();
+        }
+    }
+
+    // ------------------- Bands -------------------
+
+    // Output rows [k * bandRows, min(height, (k + 1) * bandRows)).
+    synchronized BufferedImage band(int k) throws IOException {
+        if (k != bandIndex) {
+            int y0 = k * bandRows, y1 = Math.min(height, y0 + bandRows);
+            int a = Math.max(0, y0 - halo), b = Math.min(height, y1 + halo);
+            BufferedImage in = sourceRows(a, b);
+            BufferedImage out = op.apply(in);
+            if (out.getWidth() != width || out.getHeight() != b - a) {
+                throw new IllegalStateException("Streamed operations must keep the image size.");
+            }
+            band = out.getSubimage(0, y0 - a, width, y1 - y0);
+            bandIndex = k;
+        }
+        return band;
+    }
+
+    // Source rows [a, b), reusing the rows of the previous window that overlap them.
+    private BufferedImage sourceRows(int a, int b) throws IOException {
+        int w0 = windowY0, w1 = (window != null) ? windowY0 + window.getHeight() : windowY0;
+        if (window == null || a < w0 || a >= w1 || b <= w1) {
+            window = source.readStrip(a, b - a);
+        } else {
+            PixelBuffer old = PixelBuffer.wrap(window);
+            PixelBuffer next = PixelBuffer.create(width, b - a);
+            for (int y = a; y < w1; y++) {
+                System.arraycopy(old.data, old.row(y - w0), next.data, next.row(y - a), width);
+            }
+            PixelBuffer fresh = PixelBuffer.wrap(source.readStrip(w1, b - w1));
+            for (int y = w1; y < b; y++) {
+                System.arraycopy(fresh.data, fresh.row(y - w1), next.data, next.row(y - a), width);
+            }
+            window = next.image();
+        }
+        windowY0 = a;
+        return window;
+    }
+
+    // Copy of output rows [r.y, r.y + r.height), columns [r.x, r.x + r.width).
+    private synchronized BufferedImage rows(Rectangle r) throws IOException {
+        PixelBuffer dst = PixelBuffer.create(r.width, r.height);
+        for (int y = r.y; y < r.y + r.height; ) {
+            int k = y / bandRows;
+            PixelBuffer src = PixelBuffer.wrap(band(k));
+            int end = Math.min(r.y + r.height, (k + 1) * bandRows);
+            for (; y < end; y++) {
+                System.arraycopy(src.data, src.row(y - k * bandRows) + r.x, dst.data, dst.row(y - r.y), r.width);
+            }
+        }
+        return dst.image();
+    }
+
+    // ------------------- ImageIO adapter -------------------
+
+    // A read-only view for ImageIO.write whose tiles are the output bands, computed on demand.
+    RenderedImage asRenderedImage() {
+        ColorModel cm = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).getColorModel();
+        return new RenderedImage() {
+            @Override public Vector<RenderedImage> getSources() { return null; }
+            @Override public Object getProperty(String name) { return Image.UndefinedProperty; }
+            @Override public String[] getPropertyNames() { return null; }
+            @Override public ColorModel getColorModel() { return cm; }
+            @Override public SampleModel getSampleModel() { return cm.createCompatibleSampleModel(width, bandRows); }
+            @Override public int getWidth() { return width; }
+            @Override public int getHeight() { return height; }
+            @Override public int getMinX() { return 0; }
+            @Override public int getMinY() { return 0; }
+            @Override public int getNumXTiles() { return 1; }
+            @Override public int getNumYTiles() { return (height + bandRows - 1) / bandRows; }
+            @Override public int getMinTileX() { return 0; }
+            @Override public int getMinTileY() { return 0; }
+            @Override public int getTileWidth() { return width; }
+            @Override public int getTileHeight() { return bandRows; }
+            @Override public int getTileGridXOffset() { return 0; }
+            @Override public int getTileGridYOffset() { return 0; }
+
+            @Override
+            public Raster getTile(int tx, int ty) {
+                return getData(new Rectangle(0, ty * bandRows, width, bandRows));
+            }
+
+            @Override
+            public Raster getData() {
+                return getData(new Rectangle(0, 0, width, height));
+            }
+
+            @Override
+            public Raster getData(Rectangle rect) {
+                Rectangle r = rect.intersection(new Rectangle(0, 0, width, height));
+                try {
+                    return rows(r).getRaster().createTranslatedChild(r.x, r.y);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public WritableRaster copyData(WritableRaster raster) {
+                if (raster == null) {
+                    raster = cm.createCompatibleWritableRaster(width, height);
+                }
+                Rectangle r = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+                try {
+                    raster.setDataElements(r.x, r.y, rows(r).getRaster());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return raster;
+            }
+        };
+    }
+}
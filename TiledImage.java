@@ -0,0 +1,270 @@
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.UnaryOperator;
+
+/**
+ * A TYPE_INT_RGB image stored out of core, for images too large for one BufferedImage.
+ * <p>
+ * The pixels live in square tiles (demo.tileSize pixels on a side, default 1024) in a
+ * temporary scratch file, which is memory-mapped in chunks of up to 1 GB. Only the tiles in
+ * an LRU cache (demo.tileCacheMB, default 256 MB) are held on the heap as int arrays; a tile
+ * that was written is copied back to the mapping when it is evicted. Peak heap therefore
+ * depends on the tile and cache sizes, not on the image size.
+ * <p>
+ * map(op, halo) applies an image operation tile by tile: each tile is read together with a
+ * halo of neighbouring pixels (clipped at the image border), the operation runs on that
+ * region with its own row-band parallelism, and the tile's part of the result is stored.
+ * With the halo at least the operation's neighbourhood radius (Demo.haloOf) the result is
+ * the same as applying the operation to the whole image.
+ * <p>
+ * asRenderedImage() exposes the tiles to ImageIO writers without assembling the image.
+ */
+final class TiledImage implements Closeable {
+    private static final long CHUNK_BYTES = 1L << 30;
+
+    final int width;
+    final int height;
+    final int tileSize;
+    private final int tilesX, tilesY;
+    private final int tilesPerChunk;
+    private final File file;
+    private final FileChannel channel;
+    private final IntBuffer[] chunks;
+    private final int maxResident;
+
+    // One resident tile; always tileSize x tileSize, edge tiles are padded.
+    private static final class Tile {
+        final int[] data;
+        boolean dirty;
+
+        Tile(int[] data) {
+            this.data = data;
+        }
+    }
+
+    private final LinkedHashMap<Integer, Tile> cache = new LinkedHashMap<Integer, Tile>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Tile> eldest) {
+            if (size() <= maxResident) {
+                return false;
+            }
+            if (eldest.getValue().dirty) {
+                store(eldest.getKey(), eldest.getValue().data);
+            }
+            return true;
+        }
+    };
+
+    TiledImage(int width, int height) throws IOException {
+        this(width, height, Integer.getInteger("demo.tileSize", 1024),
+             Long.getLong("demo.tileCacheMB", 256) << 20);
+    }
+
+    TiledImage(int width, int height, int tileSize, long cacheBytes) throws IOException {
+        if (width < 1 || height < 1 || tileSize < 16) {
+            throw new IllegalArgumentException("Bad tiled image size " + width + "x" + height + ", tile " + tileSize);
+        }
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.tilesX = (width + tileSize - 1) / tileSize;
+        this.tilesY = (height + tileSize - 1) / tileSize;
+        long tileBytes = 4L * tileSize * tileSize;
+        this.tilesPerChunk = (int) Math.max(1, CHUNK_BYTES / tileBytes);
+        this.maxResident = (int) Math.max(9, cacheBytes / tileBytes);
+        int tiles = tilesX * tilesY;
+        this.file = File.createTempFile("demo-tiles", ".bin");
+        file.deleteOnExit();
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.chunks = new IntBuffer[(tiles + tilesPerChunk - 1) / tilesPerChunk];
+        try {
+            for (int c = 0; c < chunks.length; c++) {
+                long count = Math.min(tilesPerChunk, tiles - (long) c * tilesPerChunk);
+                chunks[c] = channel.map(FileChannel.MapMode.READ_WRITE, c * tilesPerChunk * tileBytes, count * tileBytes)
+                        .order(ByteOrder.nativeOrder()).asIntBuffer();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // Tiled copy of an image.
+    static TiledImage of(BufferedImage img) throws IOException {
+        TiledImage t = new TiledImage(img.getWidth(), img.getHeight());
+        t.setRegion(0, 0, img);
+        return t;
+    }
+
+    // Tiled copy of a raw file, read one strip of tile rows at a time.
+    static TiledImage of(RawImageReader reader) throws IOException {
+        TiledImage t = new TiledImage(reader.width(), reader.height());
+        for (int y = 0; y < t.height; y += t.tileSize) {
+            t.setRegion(0, y, reader.readStrip(y, Math.min(t.tileSize, t.height - y)));
+        }
+        return t;
+    }
+
+    // ------------------- Pixel access -------------------
+
+    // A copy of the pixels of r (which must lie inside the image) as a new image.
+    synchronized BufferedImage getRegion(Rectangle r) {
+        PixelBuffer dst = PixelBuffer.create(r.width, r.height);
+        forTiles(r, (tile, tx, ty, x0, y0, x1, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                System.arraycopy(tile.data, (y - ty) * tileSize + (x0 - tx), dst.data, dst.row(y - r.y) + x0 - r.x, x1 - x0);
+            }
+        });
+        return dst.image();
+    }
+
+    // Copy an image into this one with its top left corner at (x, y); it must fit.
+    synchronized void setRegion(int x, int y, BufferedImage img) {
+        PixelBuffer src = PixelBuffer.wrap(img);
+        Rectangle r = new Rectangle(x, y, src.width, src.height);
+        forTiles(r, (tile, tx, ty, x0, y0, x1, y1) -> {
+            for (int yy = y0; yy < y1; yy++) {
+                System.arraycopy(src.data, src.row(yy - y) + x0 - x, tile.data, (yy - ty) * tileSize + (x0 - tx), x1 - x0);
+            }
+            tile.dirty = true;
+        });
+    }
+
+    // The part of a tile covered by a rectangle: image coordinates [x0, x1) x [y0, y1), with
+    // the tile's origin at (tx, ty).
+    private interface TilePart {
+        void run(Tile tile, int tx, int ty, int x0, int y0, int x1, int y1);
+    }
+
+    private void forTiles(Rectangle r, TilePart part) {
+        if (r.x < 0 || r.y < 0 || r.x + r.width > width || r.y + r.height > height) {
+            throw new IllegalArgumentException("Region " + r + " is outside the " + width + "x" + height + " image.");
+        }
+        for (int ty = r.y / tileSize; ty <= (r.y + r.height - 1) / tileSize; ty++) {
+            for (int tx = r.x / tileSize; tx <= (r.x + r.width - 1) / tileSize; tx++) {
+                int ox = tx * tileSize, oy = ty * tileSize;
+                part.run(tile(ty * tilesX + tx), ox, oy,
+                        Math.max(r.x, ox), Math.max(r.y, oy),
+                        Math.min(r.x + r.width, ox + tileSize), Math.min(r.y + r.height, oy + tileSize));
+            }
+        }
+    }
+
+    private Tile tile(int index) {
+        Tile t = cache.get(index);
+        if (t == null) {
+            int[] data = new int[tileSize * tileSize];
+            IntBuffer b = chunks[index / tilesPerChunk].duplicate();
+            b.position((index % tilesPerChunk) * data.length);
+            b.get(data);
+            t = new Tile(data);
+            cache.put(index, t);
+        }
+        return t;
+    }
+
+    private void store(int index, int[] data) {
+        IntBuffer b = chunks[index / tilesPerChunk].duplicate();
+        b.position((index % tilesPerChunk) * data.length);
+        b.put(data);
+    }
+
+    // ------------------- Processing -------------------
+
+    /**
+     * A new tiled image holding op applied to this one, computed one tile at a time with a
+     * halo of the given width. op must return an image of the size it was given.
+     */
+    TiledImage map(UnaryOperator<BufferedImage> op, int halo) throws IOException {
+        TiledImage out = new TiledImage(width, height, tileSize, (long) maxResident * 4 * tileSize * tileSize);
+        Rectangle bounds = new Rectangle(0, 0, width, height);
+        try {
+            for (int ty = 0; ty < tilesY; ty++) {
+                for (int tx = 0; tx < tilesX; tx++) {
+                    Rectangle core = new Rectangle(tx * tileSize, ty * tileSize, tileSize, tileSize).intersection(bounds);
+                    Rectangle ext = new Rectangle(core.x - halo, core.y - halo, core.width + 2 * halo, core.height + 2 * halo)
+                            .intersection(bounds);
+                    BufferedImage result = op.apply(getRegion(ext));
+                    if (result.getWidth() != ext.width || result.getHeight() != ext.height) {
+                        throw new IllegalStateException("Tiled operations must keep the image size.");
+                    }
+                    out.setRegion(core.x, core.y,
+                            result.getSubimage(core.x - ext.x, core.y - ext.y, core.width, core.height));
+                }
+            }
+        } catch (RuntimeException e) {
+            out.close();
+            throw e;
+        }
+        return out;
+    }
+
+    // ------------------- ImageIO adapter -------------------
+
+    // A read-only view for ImageIO.write; writers pull the tiles or rows they need.
+    RenderedImage asRenderedImage() {
+        ColorModel cm = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).getColorModel();
+        return new RenderedImage() {
+            @Override public Vector<RenderedImage> getSources() { return null; }
+            @Override public Object getProperty(String name) { return Image.UndefinedProperty; }
+            @Override public String[] getPropertyNames() { return null; }
+            @Override public ColorModel getColorModel() { return cm; }
+            @Override public SampleModel getSampleModel() { return cm.createCompatibleSampleModel(tileSize, tileSize); }
+            @Override public int getWidth() { return width; }
+            @Override public int getHeight() { return height; }
+            @Override public int getMinX() { return 0; }
+            @Override public int getMinY() { return 0; }
+            @Override public int getNumXTiles() { return tilesX; }
+            @Override public int getNumYTiles() { return tilesY; }
+            @Override public int getMinTileX() { return 0; }
+            @Override public int getMinTileY() { return 0; }
+            @Override public int getTileWidth() { return tileSize; }
+            @Override public int getTileHeight() { return tileSize; }
+            @Override public int getTileGridXOffset() { return 0; }
+            @Override public int getTileGridYOffset() { return 0; }
+
+            @Override
+            public Raster getTile(int tx, int ty) {
+                return getData(new Rectangle(tx * tileSize, ty * tileSize, tileSize, tileSize));
+            }
+
+            @Override
+            public Raster getData() {
+                return getData(new Rectangle(0, 0, width, height));
+            }
+
+            @Override
+            public Raster getData(Rectangle rect) {
+                Rectangle r = rect.intersection(new Rectangle(0, 0, width, height));
+                return getRegion(r).getRaster().createTranslatedChild(r.x, r.y);
+            }
+
+            @Override
+            public WritableRaster copyData(WritableRaster raster) {
+                if (raster == null) {
+                    raster = cm.createCompatibleWritableRaster(width, height);
+                }
+                Rectangle r = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+                raster.setDataElements(r.x, r.y, getRegion(r).getRaster());
+                return raster;
+            }
+        };
+    }
+
+    // Close the scratch file and delete it.
+    @Override
+    public synchronized void close() {
+        cache.clear();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,381 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Memory-bounded undo history for the processed image.
+ * <p>
+ * Each step stores what is needed to get the previous image back from the next one:
+ * <ul>
+ * <li>if only some 64x64 tiles changed (typically an ROI operation), the XOR of the old and
+ *     new pixels of those tiles; undo XORs them back into the current image in place;</li>
+ * <li>otherwise a reference to the previous image itself, which is never modified once it
+ *     has been replaced, so recording and undoing cost nothing.</li>
+ * </ul>
+ * The newest HOT_ENTRIES steps stay as they are so undoing them stays cheap. Older steps are
+ * deflated by a background thread (XOR deltas are mostly zeros and compress well). When the
+ * history holds more than the budget (system property demo.undo.budgetMB, default 256 MB),
+ * the oldest compressed steps are moved to a temporary file, which is emptied by clear().
+ * <p>
+ * The history assumes it sees every change: undo(current) must be given the image produced
+ * by the newest step, and that image must not be changed by anything else meanwhile.
+ */
+final class UndoHistory {
+    static final int TILE = 64;
+    // Newest steps that are never compressed.
+    private static final int HOT_ENTRIES = 4;
+    // If more than this fraction of the tiles changed, keep the whole previous image instead.
+    private static final double FULL_FRACTION = 0.5;
+    // Ints converted per deflate/inflate call.
+    private static final int CHUNK = 1 << 16;
+
+    /**
+     * One step. Created off the EDT by delta(); the pixel data moves from raw (or before) to
+     * packed to spilled as the entry ages.
+     */
+    static final class Entry {
+        private final int width, height;   // size of the previous image
+        private final boolean xor;         // XOR tiles against the next image, or the whole previous image
+        private final int[] tiles;         // changed tile indices (ty * tilesX + tx), XOR entries only
+        private final int length;          // number of ints in the pixel data
+        private BufferedImage before;      // the previous image itself (not yet compressed)
+        private int[] raw;                 // pixel data, uncompressed
+        private byte[] packed;             // pixel data, deflated
+        private long spillOffset = -1;     // pixel data, deflated in the spill file
+        private int spillLength;
+
+        private Entry(int width, int height, boolean xor, int[] tiles, int length) {
+            this.width = width;
+            this.height = height;
+            this.xor = xor;
+            this.tiles = tiles;
+            this.length = length;
+        }
+
+        // Heap held by this entry.
+        private long bytes() {
+            if (before != null) {
+                return 4L * width * height;
+            }
+            return (raw != null) ? 4L * raw.length : (packed != null) ? packed.length : 0;
+        }
+    }
+
+    private final long budget;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();   // oldest first
+    private long memory = 0;
+    private File spillFile;
+    private RandomAccessFile spill;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "undo-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    UndoHistory() {
+        this(Long.getLong("demo.undo.budgetMB", 256) << 20);
+    }
+
+    UndoHistory(long budgetBytes) {
+        this.budget = budgetBytes;
+    }
+
+    /**
+     * The step that turns before into after. region, if not null, is the only area the
+     * operation may have changed; only the tiles overlapping it are compared.
+     */
+    static Entry delta(BufferedImage before, BufferedImage after, Rectangle region) {
+        int width = before.getWidth(), height = before.getHeight();
+        if (before.getType() != BufferedImage.TYPE_INT_RGB || after.getType() != BufferedImage.TYPE_INT_RGB
+                || after.getWidth() != width || after.getHeight() != height) {
+            return reference(before);
+        }
+        PixelBuffer a = PixelBuffer.wrap(before), b = PixelBuffer.wrap(after);
+        int tilesX = (width + TILE - 1) / TILE, tilesY = (height + TILE - 1) / TILE;
+        Rectangle r = (region != null) ? region.intersection(new Rectangle(0, 0, width, height))
+                                       : new Rectangle(0, 0, width, height);
+        int[] changed = new int[tilesX * tilesY];
+        int count = 0, length = 0;
+        if (!r.isEmpty()) {
+            for (int ty = r.y / TILE; ty <= (r.y + r.height - 1) / TILE; ty++) {
+                for (int tx = r.x / TILE; tx <= (r.x + r.width - 1) / TILE; tx++) {
+                    if (tileDiffers(a, b, tx, ty)) {
+                        changed[count++] = ty * tilesX + tx;
+                        length += tileWidth(width, tx) * tileWidth(height, ty);
+                    }
+                }
+            }
+        }
+        if (count > FULL_FRACTION * tilesX * tilesY) {
+            return reference(before);
+        }
+        Entry e = new Entry(width, height, true, Arrays.copyOf(changed, count), length);
+        e.raw = new int[length];
+        int o = 0;
+        for (int i = 0; i < count; i++) {
+            int tx = changed[i] % tilesX, ty = changed[i] / tilesX;
+            int tw = tileWidth(width, tx), th = tileWidth(height, ty);
+            for (int y = ty * TILE; y < ty * TILE + th; y++) {
+                int ia = a.row(y) + tx * TILE, ib = b.row(y) + tx * TILE;
+                for (int x = 0; x < tw; x++) {
+                    e.raw[o++] = a.data[ia + x] ^ b.data[ib + x];
+                }
+            }
+        }
+        return e;
+    }
+
+    private static Entry reference(BufferedImage before) {
+        Entry e = new Entry(before.getWidth(), before.getHeight(), false, null, before.getWidth() * before.getHeight());
+        e.before = before;
+        return e;
+    }
+
+    synchronized void push(Entry e) {
+        entries.addLast(e);
+        memory += e.bytes();
+        compactor.execute(this::compact);
+    }
+
+    synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    // Heap held by the history (spilled steps are not counted).
+    synchronized long memoryBytes() {
+        return memory;
+    }
+
+    /**
+     * Undo the newest step. XOR steps patch current in place and return it; other steps
+     * return the previous image.
+     */
+    BufferedImage undo(BufferedImage current) throws IOException {
+        Entry e;
+        int[] data;
+        synchronized (this) {
+            e = entries.removeLast();
+            memory -= e.bytes();
+            if (e.before != null) {
+                return e.before;
+            }
+            data = (e.raw != null) ? e.raw : inflate(e.packed != null ? e.packed : readSpill(e), e.length);
+        }
+        if (!e.xor) {
+            PixelBuffer dst = PixelBuffer.create(e.width, e.height);
+            for (int y = 0; y < e.height; y++) {
+                System.arraycopy(data, y * e.width, dst.data, dst.row(y), e.width);
+            }
+            return dst.image();
+        }
+        if (current.getType() != BufferedImage.TYPE_INT_RGB
+                || current.getWidth() != e.width || current.getHeight() != e.height) {
+            throw new IllegalStateException("Undo history does not match the current image");
+        }
+        PixelBuffer dst = PixelBuffer.wrap(current);
+        int tilesX = (e.width + TILE - 1) / TILE;
+        int o = 0;
+        for (int t : e.tiles) {
+            int tx = t % tilesX, ty = t / tilesX;
+            int tw = tileWidth(e.width, tx), th = tileWidth(e.height, ty);
+            for (int y = ty * TILE; y < ty * TILE + th; y++) {
+                int d = dst.row(y) + tx * TILE;
+                for (int x = 0; x < tw; x++) {
+                    dst.data[d + x] ^= data[o++];
+                }
+            }
+        }
+        return current;
+    }
+
+    // Drop every step and empty the spill file.
+    synchronized void clear() {
+        entries.clear();
+        memory = 0;
+        if (spill != null) {
+            try {
+                spill.setLength(0);
+            } catch (IOException ex) {
+                closeSpill();
+            }
+        }
+    }
+
+    // ------------------- Compaction (background thread) -------------------
+
+    // Deflate the steps outside the hot window, and also the hot ones but the newest while over
+    // budget; then spill the oldest deflated steps until the heap use is within the budget.
+    private void compact() {
+        while (true) {
+            Entry target = null;
+            synchronized (this) {
+                int i = 0, n = entries.size();
+                for (Entry e : entries) {
+                    boolean cold = n - i > HOT_ENTRIES || (memory > budget && i < n - 1);
+                    if (cold && (e.raw != null || e.before != null)) {
+                        target = e;
+                        break;
+                    }
+                    i++;
+                }
+            }
+            if (target == null) {
+                break;
+            }
+            byte[] packed = deflate((target.raw != null) ? target.raw : pixels(target.before));
+            synchronized (this) {
+                if (entries.contains(target)) {
+                    memory -= target.bytes();
+                    target.packed = packed;
+                    target.raw = null;
+                    target.before = null;
+                    memory += target.bytes();
+                }
+            }
+            spillOverBudget();
+        }
+        spillOverBudget();
+    }
+
+    private synchronized void spillOverBudget() {
+        try {
+            for (Entry e : entries) {
+                if (memory <= budget) {
+                    break;
+                }
+                if (e.packed != null) {
+                    long bytes = e.bytes();
+                    writeSpill(e);
+                    memory -= bytes;
+                }
+            }
+        } catch (IOException ex) {
+            // Keep the remaining steps in memory; the budget is a target, not a hard limit.
+        }
+    }
+
+    private void writeSpill(Entry e) throws IOException {
+        if (spill == null) {
+            spillFile = File.createTempFile("demo-undo", ".bin");
+            spillFile.deleteOnExit();
+            spill = new RandomAccessFile(spillFile, "rw");
+        }
+        long offset = spill.length();
+        spill.seek(offset);
+        spill.write(e.packed);
+        e.spillOffset = offset;
+        e.spillLength = e.packed.length;
+        e.packed = null;
+    }
+
+    private byte[] readSpill(Entry e) throws IOException {
+        byte[] b = new byte[e.spillLength];
+        spill.seek(e.spillOffset);
+        spill.readFully(b);
+        return b;
+    }
+
+    private void closeSpill() {
+        try {
+            if (spill != null) {
+                spill.close();
+            }
+        } catch (IOException ignored) {
+        }
+        if (spillFile != null) {
+            spillFile.delete();
+        }
+        spill = null;
+        spillFile = null;
+    }
+
+    // ------------------- Helpers -------------------
+
+    private static int tileWidth(int size, int t) {
+        return Math.min(TILE, size - t * TILE);
+    }
+
+    private static boolean tileDiffers(PixelBuffer a, PixelBuffer b, int tx, int ty) {
+        int tw = tileWidth(a.width, tx), th = tileWidth(a.height, ty);
+        for (int y = ty * TILE; y < ty * TILE + th; y++) {
+            int ia = a.row(y) + tx * TILE, ib = b.row(y) + tx * TILE;
+            for (int x = 0; x < tw; x++) {
+                if (a.data[ia + x] != b.data[ib + x]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // The pixels of an image, row-major with stride == width.
+    private static int[] pixels(BufferedImage img) {
+        PixelBuffer src = PixelBuffer.wrap(img);
+        int[] out = new int[src.width * src.height];
+        for (int y = 0; y < src.height; y++) {
+            System.arraycopy(src.data, src.row(y), out, y * src.width, src.width);
+        }
+        return out;
+    }
+
+    private static byte[] deflate(int[] data) {
+        Deflater d = new Deflater(Deflater.BEST_SPEED);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] in = new byte[CHUNK * 4], buf = new byte[CHUNK * 4];
+        for (int start = 0; start < data.length; start += CHUNK) {
+            int n = Math.min(CHUNK, data.length - start);
+            for (int i = 0; i < n; i++) {
+                int v = data[start + i];
+                in[4 * i] = (byte) (v >>> 24);
+                in[4 * i + 1] = (byte) (v >>> 16);
+                in[4 * i + 2] = (byte) (v >>> 8);
+                in[4 * i + 3] = (byte) v;
+            }
+            d.setInput(in, 0, 4 * n);
+            while (!d.needsInput()) {
+                out.write(buf, 0, d.deflate(buf));
+            }
+        }
+        d.finish();
+        while (!d.finished()) {
+            out.write(buf, 0, d.deflate(buf));
+        }
+        d.end();
+        return out.toByteArray();
+    }
+
+    private static int[] inflate(byte[] packed, int length) throws IOException {
+        Inflater inf = new Inflater();
+        inf.setInput(packed);
+        int[] out = new int[length];
+        byte[] buf = new byte[CHUNK * 4];
+        int o = 0, carry = 0;   // bytes of buf not yet converted
+        try {
+            while (o < length) {
+                int n = inf.inflate(buf, carry, buf.length - carry);
+                if (n == 0 && (inf.finished() || inf.needsInput())) {
+                    throw new IOException("Undo data is truncated");
+                }
+                int avail = carry + n, i = 0;
+                for (; i + 4 <= avail && o < length; i += 4) {
+                    out[o++] = ((buf[i] & 0xff) << 24) | ((buf[i + 1] & 0xff) << 16)
+                             | ((buf[i + 2] & 0xff) << 8) | (buf[i + 3] & 0xff);
+                }
+                carry = avail - i;
+                System.arraycopy(buf, i, buf, 0, carry);
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Undo data is corrupt", ex);
+        } finally {
+            inf.end();
+        }
+        return out;
+    }
+}
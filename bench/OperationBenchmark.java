@@ -0,0 +1,229 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.List;
+import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
+
+/**
+ * Benchmarks every Demo operation at several image sizes and reports time, throughput and
+ * allocation per call.
+ * <p>
+ * Build and run from the project root (the 8192 x 8192 images need a large heap):
+ * <pre>
+ *   javac -d out *.java bench/OperationBenchmark.java
+ *   java -Xmx6g -Djava.awt.headless=true -cp out OperationBenchmark
+ * </pre>
+ * To measure the vectorised kernels, also build simd/VectorKernels.java and add
+ * --add-modules jdk.incubator.vector to both commands, as described in PixelKernels.
+ * Options (system properties):
+ * <ul>
+ * <li>bench.sizes - comma separated edge lengths, default 512,2048,8192</li>
+ * <li>bench.ops - regular expression selecting benchmarks by name, default all</li>
+ * <li>bench.warmup / bench.measure - seconds of warm-up and measurement per benchmark, default 1 / 2</li>
+ * <li>bench.images - fixture directory, default images</li>
+ * <li>bench.csv - also write the results to this CSV file, for comparing runs</li>
+ * <li>demo.parallelism - worker threads used by the operations, as in Demo</li>
+ * </ul>
+ * Fixtures are LenaRGB.bmp and PeppersRGB.bmp from the images directory, scaled to each size.
+ * Allocation is the growth of the allocated-bytes counter of all live threads (including the
+ * RowBands workers) over the measured calls, divided by the number of calls.
+ */
+public class OperationBenchmark {
+    private static final double WARMUP = Double.parseDouble(System.getProperty("bench.warmup", "1"));
+    private static final double MEASURE = Double.parseDouble(System.getProperty("bench.measure", "2"));
+    // Every benchmark does at least this many warm-up and measured calls.
+    private static final int MIN_CALLS = 3;
+
+    // Keeps the JIT from discarding results.
+    private static volatile int sink;
+
+    // One benchmarked operation.
+    private interface Op {
+        Object run(BufferedImage a, BufferedImage b);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int[] sizes = Arrays.stream(System.getProperty("bench.sizes", "512,2048,8192").split(","))
+                .mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+        Pattern filter = Pattern.compile(System.getProperty("bench.ops", ".*"));
+        File dir = new File(System.getProperty("bench.images", "images"));
+        BufferedImage fixtureA = load(new File(dir, "LenaRGB.bmp"));
+        BufferedImage fixtureB = load(new File(dir, "PeppersRGB.bmp"));
+
+        Demo demo = new Demo();
+        Map<String, Op> ops = operations(demo);
+        String csv = System.getProperty("bench.csv");
+        PrintWriter out = (csv != null) ? new PrintWriter(new FileWriter(csv)) : null;
+        if (out != null) {
+            out.println("benchmark,size,calls,mean_ms,min_ms,mpix_per_s,alloc_mb_per_call");
+        }
+        System.out.printf("parallelism %d, %s kernels, warm-up %.1fs, measurement %.1fs%n",
+                RowBands.getParallelism(), PixelKernels.get().describe(), WARMUP, MEASURE);
+        System.out.printf("%-36s %6s %6s %10s %10s %10s %12s%n",
+                "benchmark", "size", "calls", "mean ms", "min ms", "MPix/s", "alloc MB/op");
+        for (int size : sizes) {
+            BufferedImage a = scale(fixtureA, size);
+            BufferedImage b = scale(fixtureB, size);
+            for (Map.Entry<String, Op> e : ops.entrySet()) {
+                if (!filter.matcher(e.getKey()).find()) {
+                    continue;
+                }
+                double[] r = measure(e.getValue(), a, b);
+                double mpix = (double) size * size / 1e6;
+                System.out.printf("%-36s %6d %6d %10.2f %10.2f %10.2f %12.2f%n",
+                        e.getKey(), size, (int) r[0], r[1], r[2], mpix / (r[1] / 1e3), r[3] / 1e6);
+                if (out != null) {
+                    out.printf(Locale.ROOT, "%s,%d,%d,%.3f,%.3f,%.3f,%.3f%n",
+                            e.getKey(), size, (int) r[0], r[1], r[2], mpix / (r[1] / 1e3), r[3] / 1e6);
+                    out.flush();
+                }
+            }
+        }
+        if (out != null) {
+            out.close();
+        }
+    }
+
+    // Every operation in the Demo menus, keyed by benchmark name, in menu order.
+    private static Map<String, Op> operations(Demo demo) {
+        Map<String, Op> ops = new LinkedHashMap<>();
+        named(ops, demo, "negative");
+        named(ops, demo, "rescale:1.5");
+        named(ops, demo, "shift:40");
+        named(ops, demo, "shift-rescale");
+        for (String op : new String[] {"add", "subtract", "multiply", "divide", "and", "or", "xor"}) {
+            ops.put(op, (a, b) -> demo.combineNamed(a, b, op));
+        }
+        named(ops, demo, "bitwise-not");
+        named(ops, demo, "log");
+        named(ops, demo, "power:0.5");
+        named(ops, demo, "random-lut");
+        named(ops, demo, "bitplane:3");
+        for (String preset : Demo.KERNEL_PRESETS) {
+            named(ops, demo, "conv:" + preset.replaceAll("[^A-Za-z0-9]", "").toLowerCase());
+        }
+        named(ops, demo, "blur:2");
+        named(ops, demo, "blur:8");
+        named(ops, demo, "box:5");
+        named(ops, demo, "box:51");
+        named(ops, demo, "noise:0.05");
+        for (String filter : new String[] {"min", "max", "midpoint", "median", "median-rgb"}) {
+            for (int size : new int[] {3, 5, 9}) {
+                named(ops, demo, filter + ":" + size);
+            }
+        }
+        for (String op : new String[] {"erode:", "open:", "gradient:"}) {
+            for (String element : new String[] {"square:15", "disk:15", "mask:010/111/010"}) {
+                named(ops, demo, op + element);
+            }
+        }
+        // The same on a black and white plane, which takes the bit-packed path. The plane is
+        // thresholded once per fixture, outside the measurement.
+        Map<BufferedImage, BitImage> binary = new IdentityHashMap<>();
+        for (String op : new String[] {"erode", "open", "gradient"}) {
+            for (String element : new String[] {"square:15", "disk:15"}) {
+                Morphology.Element e = Morphology.Element.parse(element);
+                ops.put(op + ":" + element + " (binary)", (a, b) -> Morphology.applyBinary(op,
+                        binary.computeIfAbsent(a, img -> BitImage.of(demo.grayPlane(img), img.getWidth(), img.getHeight())), e));
+            }
+        }
+        // The statistics are cached per image; drop them so every call does the pass.
+        ops.put("histogram", (a, b) -> {
+            ImageStats.invalidate(a);
+            return demo.computeHistogram(a);
+        });
+        named(ops, demo, "equalise");
+        named(ops, demo, "threshold:128");
+        ops.put("automated-threshold", (a, b) -> {
+            ImageStats.invalidate(a);
+            return demo.automatedThreshold(a);
+        });
+        named(ops, demo, "threshold:otsu");
+        named(ops, demo, "multi-otsu:4");
+        named(ops, demo, "local-std:15");
+        named(ops, demo, "niblack:25");
+        named(ops, demo, "sauvola:25");
+        named(ops, demo, "bradley:25");
+        named(ops, demo, "label:8");
+        return ops;
+    }
+
+    private static void named(Map<String, Op> ops, Demo demo, String step) {
+        int colon = step.indexOf(':');
+        String name = (colon < 0) ? step : step.substring(0, colon);
+        String arg = (colon < 0) ? null : step.substring(colon + 1);
+        ops.put(step, (a, b) -> {
+            // The statistics are cached per image; drop them so every call does the pass.
+            ImageStats.invalidate(a);
+            return demo.applyNamed(a, name, arg);
+        });
+    }
+
+    // Returns {calls, mean ms, min ms, allocated bytes per call}.
+    private static double[] measure(Op op, BufferedImage a, BufferedImage b) {
+        long end = System.nanoTime() + (long) (WARMUP * 1e9);
+        for (int i = 0; i < MIN_CALLS || System.nanoTime() < end; i++) {
+            consume(op.run(a, b));
+        }
+        System.gc();
+        long alloc0 = allocatedBytes();
+        long start = System.nanoTime();
+        end = start + (long) (MEASURE * 1e9);
+        long min = Long.MAX_VALUE;
+        int calls = 0;
+        while (calls < MIN_CALLS || System.nanoTime() < end) {
+            long t0 = System.nanoTime();
+            consume(op.run(a, b));
+            min = Math.min(min, System.nanoTime() - t0);
+            calls++;
+        }
+        long total = System.nanoTime() - start;
+        long alloc = allocatedBytes() - alloc0;
+        return new double[] {calls, total / 1e6 / calls, min / 1e6, (double) alloc / calls};
+    }
+
+    private static void consume(Object result) {
+        if (result instanceof BufferedImage) {
+            BufferedImage img = (BufferedImage) result;
+            sink += img.getRGB(img.getWidth() / 2, img.getHeight() / 2);
+        } else if (result instanceof int[]) {
+            sink += ((int[]) result)[128];
+        } else {
+            sink += result.hashCode();
+        }
+    }
+
+    // Bytes allocated so far by all live threads, or 0 if the JVM cannot tell.
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        long sum = 0;
+        for (long bytes : ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(bean.getAllThreadIds())) {
+            sum += Math.max(0, bytes);
+        }
+        return sum;
+    }
+
+    private static BufferedImage load(File file) throws IOException {
+        BufferedImage img = ImageIO.read(file);
+        if (img == null) {
+            throw new IOException("Cannot read fixture " + file);
+        }
+        return PixelBuffer.wrap(img).image();
+    }
+
+    // Fixture resampled (bilinear) to size x size TYPE_INT_RGB.
+    private static BufferedImage scale(BufferedImage img, int size) {
+        BufferedImage out = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = out.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(img, 0, 0, size, size, null);
+        g.dispose();
+        return out;
+    }
+}
@@ -0,0 +1,269 @@
+import jdk.incubator.vector.*;
+
+/**
+ * PixelKernels on the JDK Vector API (the jdk.incubator.vector module), loaded by
+ * PixelKernels.get() when available; see there for how to build and run with it.
+ * <p>
+ * Pixels are processed a full vector of packed ints at a time, using the preferred species
+ * of the CPU. Each channel is unpacked into its own int lanes with a shift and a mask,
+ * computed, and packed back; the few pixels left over at the end of a run use the scalar
+ * per-pixel helpers. Divisions are done in float lanes, which give the same results as the
+ * integer divisions of the scalar code for the value ranges involved (see divide()), and
+ * rounded back to int lanes with floor().
+ */
+final class VectorKernels extends PixelKernels {
+    private static final VectorSpecies<Integer> I = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> F = VectorSpecies.of(float.class, I.vectorShape());
+    private static final int ALPHA = 0xff000000;
+
+    @Override
+    String describe() {
+        return "vector (" + I.length() + " x int)";
+    }
+
+    private static IntVector channel(IntVector p, int shift) {
+        return p.lanewise(VectorOperators.LSHR, shift).and(0xff);
+    }
+
+    private static IntVector pack(IntVector r, IntVector g, IntVector b) {
+        return r.lanewise(VectorOperators.LSHL, 16).or(g.lanewise(VectorOperators.LSHL, 8)).or(b).or(ALPHA);
+    }
+
+    private static FloatVector toFloat(IntVector v) {
+        return (FloatVector) v.convertShape(VectorOperators.I2F, F, 0);
+    }
+
+    /**
+     * floor(x) for 0 <= x < 2^22. JDK 17 does not compile the F2I conversion to SIMD
+     * instructions, so instead x + 2^23 puts x rounded to the nearest integer in the low bits
+     * of the float, and one is taken off where that rounded up. Non-negative floats order
+     * like their bit patterns, so the comparison is an integer subtraction of those.
+     */
+    private static IntVector floor(FloatVector x) {
+        IntVector r = x.add(0x1p23f).reinterpretAsInts().sub(0x4b000000);
+        // (bits(x) - bits(r)) >> 31 is -1 where r > x and 0 elsewhere.
+        return r.add(x.reinterpretAsInts().sub(toFloat(r).reinterpretAsInts()).lanewise(VectorOperators.ASHR, 31));
+    }
+
+    // ------------------- Two-image operations -------------------
+
+    // The operators are constants in every loop below: the Vector API only compiles lanewise
+    // operations to SIMD instructions when their operator is known to the JIT.
+    @Override
+    void arithmetic(int op, int[] a, int ai, int[] b, int bi, int[] out, int n) {
+        int x;
+        switch(op) {
+            case ADD: x = add(a, ai, b, bi, out, n); break;
+            case SUBTRACT: x = subtract(a, ai, b, bi, out, n); break;
+            case MULTIPLY: x = multiply(a, ai, b, bi, out, n); break;
+            case DIVIDE: x = divide(a, ai, b, bi, out, n); break;
+            default: throw new IllegalArgumentException("Not an arithmetic operation: " + op);
+        }
+        for (; x < n; x++) {
+            int p = a[ai + x], q = b[bi + x];
+            out[x] = arithmetic(op, PixelBuffer.red(p), PixelBuffer.red(q));
+            out[n + x] = arithmetic(op, PixelBuffer.green(p), PixelBuffer.green(q));
+            out[2 * n + x] = arithmetic(op, PixelBuffer.blue(p), PixelBuffer.blue(q));
+        }
+    }
+
+    // Each of these handles the whole vectors of a run and returns the first pixel left over.
+    private static int add(int[] a, int ai, int[] b, int bi, int[] out, int n) {
+        int upper = I.loopBound(n);
+        for (int x = 0; x < upper; x += I.length()) {
+            IntVector p = IntVector.fromArray(I, a, ai + x), q = IntVector.fromArray(I, b, bi + x);
+            channel(p, 16).add(channel(q, 16)).intoArray(out, x);
+            channel(p, 8).add(channel(q, 8)).intoArray(out, n + x);
+            channel(p, 0).add(channel(q, 0)).intoArray(out, 2 * n + x);
+        }
+        return upper;
+    }
+
+    private static int subtract(int[] a, int ai, int[] b, int bi, int[] out, int n) {
+        int upper = I.loopBound(n);
+        for (int x = 0; x < upper; x += I.length()) {
+            IntVector p = IntVector.fromArray(I, a, ai + x), q = IntVector.fromArray(I, b, bi + x);
+            channel(p, 16).sub(channel(q, 16)).intoArray(out, x);
+            channel(p, 8).sub(channel(q, 8)).intoArray(out, n + x);
+            channel(p, 0).sub(channel(q, 0)).intoArray(out, 2 * n + x);
+        }
+        return upper;
+    }
+
+    private static int multiply(int[] a, int ai, int[] b, int bi, int[] out, int n) {
+        int upper = I.loopBound(n);
+        for (int x = 0; x < upper; x += I.length()) {
+            IntVector p = IntVector.fromArray(I, a, ai + x), q = IntVector.fromArray(I, b, bi + x);
+            channel(p, 16).mul(channel(q, 16)).intoArray(out, x);
+            channel(p, 8).mul(channel(q, 8)).intoArray(out, n + x);
+            channel(p, 0).mul(channel(q, 0)).intoArray(out, 2 * n + x);
+        }
+        return upper;
+    }
+
+    // Channel values are at most 255, so the float quotient is within 2^-16 of u / v: closer
+    // than any non-integer quotient comes to an integer, and truncating it is exact. One loop
+    // per channel keeps each loop body small enough for C2 to compile all of it to SIMD code.
+    private static int divide(int[] a, int ai, int[] b, int bi, int[] out, int n) {
+        int upper = I.loopBound(n);
+        for (int c = 0; c < 3; c++) {
+            int shift = 16 - 8 * c;
+            for (int x = 0; x < upper; x += I.length()) {
+                IntVector u = channel(IntVector.fromArray(I, a, ai + x), shift);
+                IntVector v = channel(IntVector.fromArray(I, b, bi + x), shift);
+                quotient(u, v).intoArray(out, c * n + x);
+            }
+        }
+        return upper;
+    }
+
+    private static IntVector quotient(IntVector u, IntVector v) {
+        return floor(toFloat(u).div(toFloat(v))).blend(0, v.eq(0));
+    }
+
+    @Override
+    void minMax(int[] v, int n, int[] minMax) {
+        IntVector lo = IntVector.broadcast(I, minMax[0]), hi = IntVector.broadcast(I, minMax[1]);
+        int upper = I.loopBound(n);
+        int i = 0;
+        for (; i < upper; i += I.length()) {
+            IntVector u = IntVector.fromArray(I, v, i);
+            lo = lo.min(u);
+            hi = hi.max(u);
+        }
+        int min = lo.reduceLanes(VectorOperators.MIN), max = hi.reduceLanes(VectorOperators.MAX);
+        for (; i < n; i++) {
+            min = Math.min(min, v[i]);
+            max = Math.max(max, v[i]);
+        }
+        minMax[0] = min;
+        minMax[1] = max;
+    }
+
+    @Override
+    void rescaleToRgb(int[] v, int n, int min, int range, int[] dst, int di) {
+        // (v - min) * 255 < 2^24 and range <= 65025 are exact floats and the quotient is below
+        // 256, so as in divide() the truncated float quotient is the integer quotient. The
+        // channels are scaled in place in one loop and packed in another: small loop bodies
+        // keep every Vector API call within what C2 compiles to SIMD instructions.
+        FloatVector scale = FloatVector.broadcast(F, (float) range);
+        int upper = I.loopBound(3 * n);
+        int i = 0;
+        for (; i < upper; i += I.length()) {
+            IntVector u = IntVector.fromArray(I, v, i).sub(min).mul(255);
+            floor(toFloat(u).div(scale)).intoArray(v, i);
+        }
+        for (; i < 3 * n; i++) {
+            v[i] = (v[i] - min) * 255 / range;
+        }
+        upper = I.loopBound(n);
+        int x = 0;
+        for (; x < upper; x += I.length()) {
+            pack(IntVector.fromArray(I, v, x), IntVector.fromArray(I, v, n + x), IntVector.fromArray(I, v, 2 * n + x))
+                    .intoArray(dst, di + x);
+        }
+        for (; x < n; x++) {
+            dst[di + x] = PixelBuffer.pack(v[x], v[n + x], v[2 * n + x]);
+        }
+    }
+
+    @Override
+    void bitwise(int op, int[] a, int ai, int[] b, int bi, int[] dst, int di, int n) {
+        int upper = I.loopBound(n);
+        switch(op) {
+            case AND:
+                for (int x = 0; x < upper; x += I.length()) {
+                    IntVector.fromArray(I, a, ai + x).and(IntVector.fromArray(I, b, bi + x)).or(ALPHA).intoArray(dst, di + x);
+                }
+                break;
+            case OR:
+                for (int x = 0; x < upper; x += I.length()) {
+                    IntVector.fromArray(I, a, ai + x).or(IntVector.fromArray(I, b, bi + x)).or(ALPHA).intoArray(dst, di + x);
+                }
+                break;
+            case XOR:
+                for (int x = 0; x < upper; x += I.length()) {
+                    IntVector.fromArray(I, a, ai + x).lanewise(VectorOperators.XOR, IntVector.fromArray(I, b, bi + x))
+                            .or(ALPHA).intoArray(dst, di + x);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Not a bitwise operation: " + op);
+        }
+        if (upper < n) {
+            super.bitwise(op, a, ai + upper, b, bi + upper, dst, di + upper, n - upper);
+        }
+    }
+
+    // ------------------- Point operations -------------------
+
+    @Override
+    void not(int[] a, int ai, int[] dst, int di, int n) {
+        int upper = I.loopBound(n);
+        int x = 0;
+        for (; x < upper; x += I.length()) {
+            IntVector.fromArray(I, a, ai + x).not().or(ALPHA).intoArray(dst, di + x);
+        }
+        for (; x < n; x++) {
+            dst[di + x] = ~a[ai + x] | ALPHA;
+        }
+    }
+
+    @Override
+    void shift(int[] a, int ai, int[] dst, int di, int n, int shift, int[] lut) {
+        int upper = I.loopBound(n);
+        int x = 0;
+        for (; x < upper; x += I.length()) {
+            IntVector p = IntVector.fromArray(I, a, ai + x);
+            pack(channel(p, 16).add(shift).max(0).min(255),
+                 channel(p, 8).add(shift).max(0).min(255),
+                 channel(p, 0).add(shift).max(0).min(255)).intoArray(dst, di + x);
+        }
+        for (; x < n; x++) {
+            dst[di + x] = shiftPixel(a[ai + x], shift);
+        }
+    }
+
+    @Override
+    void rescale(int[] a, int ai, int[] dst, int di, int n, float factor, int[] lut) {
+        // One loop per channel, each adding its channel to dst (see divide()).
+        int upper = I.loopBound(n);
+        java.util.Arrays.fill(dst, di, di + upper, ALPHA);
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            for (int x = 0; x < upper; x += I.length()) {
+                IntVector r = round(channel(IntVector.fromArray(I, a, ai + x), shift), factor);
+                IntVector.fromArray(I, dst, di + x).or(r.lanewise(VectorOperators.LSHL, shift)).intoArray(dst, di + x);
+            }
+        }
+        for (int x = upper; x < n; x++) {
+            dst[di + x] = rescalePixel(a[ai + x], factor);
+        }
+    }
+
+    // round(v * factor) clamped to [0,255]. Math.round is floor(s + 1/2) with s = v * factor,
+    // here clamped to [0, 256] first (on the bit patterns, as in floor()). s + 0.5f is exact or
+    // rounds down for s >= 0.5; below that the result is 0, but the float sum could round up to
+    // 1, so those lanes are cleared.
+    private static IntVector round(IntVector v, float factor) {
+        IntVector bits = toFloat(v).mul(factor).reinterpretAsInts().max(0).min(Float.floatToIntBits(256f));
+        IntVector k = floor(bits.reinterpretAsFloats().add(0.5f)).min(255);
+        return k.and(bits.sub(Float.floatToIntBits(0.5f)).lanewise(VectorOperators.ASHR, 31).not());
+    }
+
+    @Override
+    void threshold(int[] a, int ai, int[] dst, int di, int n, int t) {
+        // (R + G + B) / 3 >= t exactly when R + G + B >= 3t, so no division is needed.
+        int sum = 3 * t;
+        IntVector black = IntVector.broadcast(I, ALPHA);
+        int upper = I.loopBound(n);
+        int x = 0;
+        for (; x < upper; x += I.length()) {
+            IntVector p = IntVector.fromArray(I, a, ai + x);
+            IntVector s = channel(p, 16).add(channel(p, 8)).add(channel(p, 0));
+            black.blend(-1, s.compare(VectorOperators.GE, sum)).intoArray(dst, di + x);
+        }
+        for (; x < n; x++) {
+            dst[di + x] = thresholdPixel(a[ai + x], t);
+        }
+    }
+}